@@ -14,11 +14,15 @@ public class Constants {
     public static final String BINARY_SUBMIT_PATTERN = "/json/binary/submit/";
     public static final String BINARYCHUNK_SUBMIT_PATTERN = "/json/binarychunk/submit/";
     public static final String BINARYCHUNK_HACK_SUBMIT_PATTERN = "/json/textchunk/submit/";
+    public static final String BINARYCHUNK_STATUS_PATTERN = "/json/binarychunk/status/";
+    public static final String BINARY_HASH_PATTERN = "/json/binary/hashes/";
     public static final String DATABASE_DOWNLOAD_PATTERN = "/json/patient/list/";
     public static final String USERINFO_DOWNLOAD_PATTERN = "/json/patient/";
     public static final String EVENTLOG_SUBMIT_PATTERN = "/json/eventlog/submit/";
     
     public static final int DEFAULT_INIT_PACKET_SIZE = 20; // in KB
+    public static final int DEFAULT_UPLOAD_WIDTH = 2; // binaries uploaded at once
+    public static final int DEFAULT_UPLOAD_WORKERS = 2; // procedures uploaded at once
     
     public static final int MIN_PACKET_SIZE = 1; // at this point we just give up
     public static final String DEFAULT_BINARY_FILE_FOLDER = "/sdcard/"; // use "/sdcard/dcim/Camera/" for easy testing w/ Android camera app
@@ -42,9 +46,17 @@ public class Constants {
     public static final String PREFERENCE_BARCODE_ENABLED = "s_barcode_enabled";
     public static final String PREFERENCE_PROXY_HOST = "s_proxy_host";
     public static final String PREFERENCE_PROXY_PORT = "s_proxy_port";
+    public static final String PREFERENCE_UPLOAD_WIDTH = "s_upload_width";
+    public static final String PREFERENCE_UPLOAD_RESUME = "s_upload_resume";
+    public static final String PREFERENCE_UPLOAD_COMPRESSION = "s_upload_compression";
+    // response delay of the local MDS used by the upload load test, in msec
+    public static final String PREFERENCE_LOAD_TEST_LATENCY = "s_load_test_latency";
+    public static final int DEFAULT_LOAD_TEST_LATENCY = 0;
     
     public static final int DEFAULT_DATABASE_UPLOAD = 1;
     public static final String PREFERENCE_DATABASE_UPLOAD = "s_database_refresh_period";
+    // token from the MDS marking how far the patient cache has been synced
+    public static final String PREFERENCE_PATIENT_SYNC_TOKEN = "s_patient_sync_token";
     public static final int USER_INFO_TIMEOUT_PERIOD = 2; //in seconds
     
     // chunksize / estimated bytes per second = average time to upload
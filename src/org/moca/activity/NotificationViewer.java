@@ -58,16 +58,11 @@ public class NotificationViewer extends Activity implements OnClickListener {
         cursor.close();
         Uri savedUri = ContentUris.withAppendedId(SavedProcedureSQLFormat.CONTENT_URI, spId);
         
-        Uri procedureUri = ContentUris.withAppendedId(ProcedureSQLFormat.CONTENT_URI, procedureId);
-        Log.i(TAG, "Getting procedure " + procedureUri.toString());
-        cursor = getContentResolver().query(procedureUri, new String[] { ProcedureSQLFormat.PROCEDURE }, null, null, null);
-        cursor.moveToFirst();
-        String procedureXml = cursor.getString(0);
-        cursor.deactivate();
+        Log.i(TAG, "Getting procedure " + procedureId);
         
         Map<String, Map<String,String>> questionsAnswers = new HashMap<String, Map<String,String>>();
         try{
-	        Procedure p = Procedure.fromXMLString(procedureXml);
+	        Procedure p = Procedure.fromDatabase(this, procedureId);
 	        p.setInstanceUri(savedUri);
 	        
 	        JSONTokener tokener = new JSONTokener(answers);
@@ -13,10 +13,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.moca.R;
-import org.moca.db.EncounterDAO;
+import org.moca.db.AnswerJournalDAO;
+import org.moca.db.EncounterWriter;
 import org.moca.db.EventDAO;
 import org.moca.db.PatientInfo;
-import org.moca.db.ProcedureDAO;
 import org.moca.db.MocaDB.ProcedureSQLFormat;
 import org.moca.db.MocaDB.SavedProcedureSQLFormat;
 import org.moca.db.MocaDB.EventSQLFormat.EventType;
@@ -89,6 +89,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 	// State
 	private Procedure p = null;
 	private Uri thisSavedProcedure;
+	// Stores the answers of thisSavedProcedure off the UI thread
+	private EncounterWriter encounterWriter = null;
 	private boolean wasOnDonePage = false;
 	private int startPage = 0;
 	private boolean onDonePage = false;
@@ -112,14 +114,9 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
     }
     
     private void logEvent(EventType type, String value) {
-    	String savedProcedureGuid = "";
     	String patientId = "";
     	String userId = "";
     	
-    	if (thisSavedProcedure != null) {
-    		savedProcedureGuid = EncounterDAO.getEncounterGuid(this, thisSavedProcedure);
-    	}
-    	
     	if (p != null) {
     		PatientInfo pi = p.getPatientInfo();
     		if (pi != null) {
@@ -131,7 +128,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
     	
     	// TODO lookup current user
     	
-    	EventDAO.registerEvent(this, type, value, savedProcedureGuid, patientId, userId);
+    	// The encounter's guid is looked up by the writer, off the UI thread.
+    	EncounterWriter.logEvent(this, thisSavedProcedure, type, value, patientId, userId);
     }
 
 	
@@ -145,6 +143,10 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 		Log.i(TAG, "onServiceDisconnected");
 		mUploadService = null;
 	}
+
+	public void onStatusChanged(BackgroundUploader uploadService) {
+		Log.v(TAG, "Upload status: " + uploadService.getUploadStats());
+	}
 	
 	public void onPatientLookupFailure(final String patientIdentifier) {
 		logEvent(EventType.ENCOUNTER_LOOKUP_PATIENT_FAILED, patientIdentifier);
@@ -384,7 +386,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 	public boolean onOptionsItemSelected(MenuItem item){
 		switch (item.getItemId()) {
 		case OPTION_SAVE_EXIT:
-			storeCurrentProcedure(false);
+			storeCurrentProcedure(false, true);
 			setResult(RESULT_OK, null);
 			logEvent(EventType.ENCOUNTER_SAVE_QUIT, "");
 			finish();
@@ -569,6 +571,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 	
 	public void uploadProcedureInBackground() {
 		storeCurrentProcedure(true);
+		// The uploader reads the saved procedure, so it must be written first.
+		EncounterWriter.flush();
 		//First check to make sure procedure has not already been uploaded
 		if (MDSInterface.isProcedureAlreadyUploaded(thisSavedProcedure, getBaseContext())) {
 			showDialog(DIALOG_ALREADY_UPLOADED);
@@ -619,7 +623,6 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 			if (instance == null && !intent.hasExtra("savedProcedureUri")) {
 				Uri procedure = intent.getData();
 				int procedureId = Integer.parseInt(procedure.getPathSegments().get(1));
-				String procedureXml = ProcedureDAO.getXMLForProcedure(ProcedureRunner.this, procedure);
 
 				// Record that we are starting a new encounter
 				logEvent(EventType.ENCOUNTER_LOAD_NEW_ENCOUNTER, procedure.toString());
@@ -637,7 +640,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 
 				Procedure p = null;
 				try {
-					p = Procedure.fromXMLString(procedureXml);
+					p = Procedure.fromDatabase(ProcedureRunner.this, procedureId);
 				} catch (IOException e) {
 					Log.e(TAG, "Error loading procedure from XML: " + e.toString());
 					e.printStackTrace();
@@ -738,18 +741,20 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 					while(it.hasNext()) {
 						String key = (String)it.next();
 						answersMap.put(key, answersDict.getString(key));
-						Log.i(TAG, "ProcedureLoaderTask loaded answer '" + key + "' : '" + answersDict.getString(key) +"'");
 					}
 				} catch(JSONException e) {
 					Log.e(TAG, "onCreate() -- JSONException " + e.toString());	
 					e.printStackTrace();
 				}
+				int replayed = AnswerJournalDAO.replay(ProcedureRunner.this,
+						ContentUris.parseId(thisSavedProcedure), answersMap);
+				Log.i(TAG, "ProcedureLoaderTask loaded " + answersMap.size() + " answers, "
+						+ replayed + " of them from the journal.");
 				
 				Uri procedureUri = ContentUris.withAppendedId(ProcedureSQLFormat.CONTENT_URI, procedureId);
-				String procedureXml = ProcedureDAO.getXMLForProcedure(ProcedureRunner.this, procedureUri);
 				Procedure procedure = null;
 				try {
-					procedure = Procedure.fromXMLString(procedureXml);
+					procedure = Procedure.fromDatabase(ProcedureRunner.this, procedureId);
 					procedure.setInstanceUri(thisSavedProcedure);
 					procedure.restoreAnswers(answersMap);
 				} catch (IOException e) {
@@ -812,6 +817,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 		
 		setTitle(p.getTitle());
 		TextView mytv;
+		long processingTime = System.currentTimeMillis();
 		View procedureView = wrapViewWithInterface(p.toView(this));
 
 		// Now that the view is active, go to the correct page.
@@ -819,6 +825,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 			p.jumpToPage(startPage);
 			updateNextPrev();            
 		}
+		processingTime = System.currentTimeMillis() - processingTime;
+		Log.i(TAG, "Building procedure view took " + processingTime + " milliseconds.");
 
 		baseViews = new ViewAnimator(this);
 		baseViews.setBackgroundResource(android.R.drawable.alert_dark_frame);
@@ -946,22 +954,32 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 	 *            -- Whether to set the procedure as ready for upload.
 	 */
 	public void storeCurrentProcedure(boolean finished) {
+		storeCurrentProcedure(finished, finished);
+	}
+	
+	/**
+	 * Queues the answers of the current procedure to be stored by the
+	 * EncounterWriter, which writes them in the background. Only the answers
+	 * are read here, from the procedure's elements.
+	 * 
+	 * @param finished
+	 *            -- Whether to set the procedure as ready for upload.
+	 * @param compact
+	 *            -- Whether to write the full state, as readers of the saved
+	 *            procedure other than this activity expect to find it there.
+	 */
+	private void storeCurrentProcedure(boolean finished, boolean compact) {
 		if(p != null && thisSavedProcedure != null) {
-			JSONObject answersMap = new JSONObject(p.toAnswers());
-			String json = answersMap.toString();
-
-			ContentValues cv = new ContentValues();
-			cv.put(SavedProcedureSQLFormat.PROCEDURE_STATE, json);
-
-			if(finished) 
-				cv.put(SavedProcedureSQLFormat.FINISHED, finished);
-
-			int updatedObjects = getContentResolver().update(thisSavedProcedure, cv, null, null);
-			Log.i(TAG, "storeCurrentProcedure updated " + updatedObjects + " objects. (SHOULD ONLY BE 1)");
+			if (encounterWriter == null || !thisSavedProcedure.equals(encounterWriter.getEncounter()))
+				encounterWriter = new EncounterWriter(this, thisSavedProcedure);
+			encounterWriter.save(p.toAnswers(), finished, compact);
 		}
 	}
 
 	public void deleteCurrentProcedure() {
+		// Don't let a queued save write to the row after it is gone.
+		if (encounterWriter != null)
+			encounterWriter.discard();
 		getContentResolver().delete(thisSavedProcedure, null, null);
 	}
 
@@ -970,8 +988,9 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 		Log.i(TAG, "onPause");
 		
 		// This is the last method in which we are guaranteed not to be killed,
-		// so save state here.
-		storeCurrentProcedure(false);
+		// so save state here. Write it out in full if we are leaving.
+		storeCurrentProcedure(false, isFinishing());
+		EncounterWriter.flush();
 
 		if (lookupProgress != null) {
 			lookupProgress.dismiss();
@@ -986,6 +1005,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener, S
 	public void onDestroy() {
 		super.onDestroy();
 		Log.i(TAG, "onDestroy");
+		EncounterWriter.flush();
 
 		if (p != null) {
 			p.clearCachedViews();
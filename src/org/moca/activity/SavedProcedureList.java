@@ -1,13 +1,16 @@
 package org.moca.activity;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.moca.R;
+import org.moca.db.AnswerJournalDAO;
 import org.moca.db.MocaDB.ProcedureSQLFormat;
 import org.moca.db.MocaDB.SavedProcedureSQLFormat;
 import org.moca.service.BackgroundUploader;
@@ -55,6 +58,10 @@ public class SavedProcedureList extends ListActivity implements SimpleCursorAdap
 			Log.i(TAG, "onServiceDisconnected");
 			mUploadService = null;
 		}
+		
+		public void onStatusChanged(BackgroundUploader uploadService) {
+			Log.v(TAG, "Upload status: " + uploadService.getUploadStats());
+		}
     }	
 	
 	/**
@@ -80,27 +87,40 @@ public class SavedProcedureList extends ListActivity implements SimpleCursorAdap
 		return title;
 	}
 	
-	private String getPatientNameFromData(String jsonData) {
+	/**
+	 * @param savedProcedureId the saved procedure, whose answer journal is
+	 *            replayed over jsonData
+	 * @param jsonData the PROCEDURE_STATE of the saved procedure
+	 */
+	private String getPatientNameFromData(long savedProcedureId, String jsonData) {
         String patientId = "";
         String patientFirst = "";
         String patientLast = "";
         
+        Map<String,String> answers = new HashMap<String,String>();
         try {
     		JSONTokener tokener = new JSONTokener(jsonData);
             JSONObject answersDict = new JSONObject(tokener);
-            if (answersDict.has("patientId"))
-            	patientId = (String)answersDict.get("patientId");
-            if (answersDict.has("newPatientFirstName"))
-            	patientFirst = (String)answersDict.get("newPatientFirstName");
-            if (answersDict.has("patientFirstName") && "".equals(patientFirst))
-            	patientFirst = (String)answersDict.get("patientFirstName");
-            if (answersDict.has("newPatientLastName"))
-            	patientLast = (String)answersDict.get("newPatientLastName");
-            if (answersDict.has("patientLastName") && "".equals(patientLast))
-            	patientLast = (String)answersDict.get("patientLastName");
+            Iterator<?> it = answersDict.keys();
+            while(it.hasNext()) {
+            	String key = (String)it.next();
+            	answers.put(key, answersDict.getString(key));
+            }
         } catch(JSONException e) {
         	
         }
+        // answers given since PROCEDURE_STATE was last written
+        AnswerJournalDAO.replay(this, savedProcedureId, answers);
+        if (answers.containsKey("patientId"))
+        	patientId = answers.get("patientId");
+        if (answers.containsKey("newPatientFirstName"))
+        	patientFirst = answers.get("newPatientFirstName");
+        if (answers.containsKey("patientFirstName") && "".equals(patientFirst))
+        	patientFirst = answers.get("patientFirstName");
+        if (answers.containsKey("newPatientLastName"))
+        	patientLast = answers.get("newPatientLastName");
+        if (answers.containsKey("patientLastName") && "".equals(patientLast))
+        	patientLast = answers.get("patientLastName");
         
         StringBuilder result = new StringBuilder(patientId);
         if(!patientFirst.equals("")) {
@@ -148,7 +168,7 @@ public class SavedProcedureList extends ListActivity implements SimpleCursorAdap
 				case 3:
 					//Log.i(TAG, "Setting patient id and name in SavedProcedureList text");
 					String jsonData = cur.getString(columnIndex);
-					String patientName = getPatientNameFromData(jsonData);
+					String patientName = getPatientNameFromData(cur.getLong(0), jsonData);
 					((TextView)v).setText(patientName);
 					break;
 				case 4:
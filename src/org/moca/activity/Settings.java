@@ -1,19 +1,34 @@
 package org.moca.activity;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.moca.Constants;
+import org.moca.net.Base64FormRequestEntityCheck;
+import org.moca.net.MDSLoadTest;
+import org.moca.net.PacketSizeReplay;
+import org.moca.procedure.ProcedureBenchmark;
+import org.moca.util.PatientInsertBenchmark;
+import org.moca.util.PatientSearchBenchmark;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
+import android.preference.Preference;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
+import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.telephony.TelephonyManager;
 import android.text.method.DialerKeyListener;
 import android.text.method.DigitsKeyListener;
 import android.text.method.PasswordTransformationMethod;
 import android.util.Log;
+import android.widget.Toast;
 
 /**
  * Settings creates the settings window for specifying the Moca Dispatch server
@@ -86,6 +101,17 @@ public class Settings extends PreferenceActivity {
 		initialPacketSize.getEditText().setKeyListener(new DigitsKeyListener());
 		dialogBasedPrefCat.addPreference(initialPacketSize);
 
+		// Number of binaries uploaded at once
+		EditTextPreference uploadWidth = new EditTextPreference(this);
+		uploadWidth.setDialogTitle("Parallel uploads");
+		uploadWidth.setKey(Constants.PREFERENCE_UPLOAD_WIDTH);
+		uploadWidth.setTitle("Parallel Uploads");
+		uploadWidth.setSummary("Number of pictures or sounds sent at the same time (1 to upload one at a time)");
+		uploadWidth.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_UPLOAD_WIDTH));
+		uploadWidth.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(uploadWidth);
+
 		// Binary file location
 		EditTextPreference binaryFileLocation = new EditTextPreference(this);
 		binaryFileLocation.setDialogTitle("External Device File Folder");
@@ -188,6 +214,206 @@ public class Settings extends PreferenceActivity {
 		enableUploadHack.setDefaultValue(false);
 		dialogBasedPrefCat.addPreference(enableUploadHack);
 		
+		// Whether to ask the MDS where to resume interrupted uploads
+		CheckBoxPreference enableUploadResume = new CheckBoxPreference(this);
+		enableUploadResume.setKey(Constants.PREFERENCE_UPLOAD_RESUME);
+		enableUploadResume.setTitle("Resume Uploads from MDS");
+		enableUploadResume.setSummary("Ask the MDS how much of each file it already has before uploading, so interrupted uploads do not resend data. Requires MDS support.");
+		enableUploadResume.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(enableUploadResume);
+		
+		// Whether to gzip text uploads
+		CheckBoxPreference enableUploadCompression = new CheckBoxPreference(this);
+		enableUploadCompression.setKey(Constants.PREFERENCE_UPLOAD_COMPRESSION);
+		enableUploadCompression.setTitle("Compress Uploads");
+		enableUploadCompression.setSummary("Compress responses and event logs sent to the MDS. Turned off automatically if the MDS does not support it.");
+		enableUploadCompression.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(enableUploadCompression);
+		
+		// Times the handling of the loaded procedures on this phone
+		Preference benchmark = new Preference(this);
+		benchmark.setTitle("Benchmark Procedures");
+		benchmark.setSummary("Time parsing, branching and saving of every loaded procedure. Results are added to the event log.");
+		benchmark.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				preference.setEnabled(false);
+				new BenchmarkTask(preference).execute();
+				return true;
+			}
+		});
+		dialogBasedPrefCat.addPreference(benchmark);
+		
+		// Times writing and searching the patient cache on this phone
+		Preference patientBenchmark = new Preference(this);
+		patientBenchmark.setTitle("Benchmark Patient Cache (adds test patients)");
+		patientBenchmark.setSummary("Time writing 50,000 test patients to the patient cache and searching them by name. Takes several minutes, during which patient lookups also find the test patients. They are deleted afterwards. Results are added to the event log.");
+		patientBenchmark.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				preference.setEnabled(false);
+				new PatientBenchmarkTask(preference).execute();
+				return true;
+			}
+		});
+		dialogBasedPrefCat.addPreference(patientBenchmark);
+		
+		// Response delay of the local MDS the load test uploads to
+		EditTextPreference loadTestLatency = new EditTextPreference(this);
+		loadTestLatency.setDialogTitle("Load test latency");
+		loadTestLatency.setKey(Constants.PREFERENCE_LOAD_TEST_LATENCY);
+		loadTestLatency.setTitle("Load Test Latency");
+		loadTestLatency.setSummary("Milliseconds the local MDS waits before answering each request during the upload load test");
+		loadTestLatency.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_LOAD_TEST_LATENCY));
+		loadTestLatency.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(loadTestLatency);
+		
+		// Uploads synthetic encounters to an MDS running on this phone
+		Preference loadTest = new Preference(this);
+		loadTest.setTitle("Load Test Uploads");
+		loadTest.setSummary("Upload " + MDSLoadTest.DEFAULT_ENCOUNTERS + " test encounters to a local MDS and measure the throughput. Results are added to the event log.");
+		loadTest.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				preference.setEnabled(false);
+				new LoadTestTask(preference).execute();
+				return true;
+			}
+		});
+		dialogBasedPrefCat.addPreference(loadTest);
+		
+		// Checks parts of the upload path which need no real MDS
+		Preference uploadCheck = new Preference(this);
+		uploadCheck.setTitle("Check Uploads");
+		uploadCheck.setSummary("Check that text-mode chunks are encoded as before and that a cut off upload resumes against a local MDS, and replay link traces through the packet size controller. Results are written to the log.");
+		uploadCheck.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				preference.setEnabled(false);
+				new UploadCheckTask(preference).execute();
+				return true;
+			}
+		});
+		dialogBasedPrefCat.addPreference(uploadCheck);
+		
 		return root;
 	}
+	
+	private class BenchmarkTask extends AsyncTask<Void, Void, List<String>> {
+		private final Preference preference;
+		
+		BenchmarkTask(Preference preference) {
+			this.preference = preference;
+		}
+		
+		@Override
+		protected void onPreExecute() {
+			Toast.makeText(Settings.this, "Benchmarking procedures...", Toast.LENGTH_SHORT).show();
+		}
+		
+		@Override
+		protected List<String> doInBackground(Void... params) {
+			return ProcedureBenchmark.run(Settings.this);
+		}
+		
+		@Override
+		protected void onPostExecute(List<String> results) {
+			preference.setEnabled(true);
+			Log.i(TAG, "Procedure benchmark recorded " + results.size() + " timings.");
+			Toast.makeText(Settings.this, "Recorded " + results.size() + " timings in the event log.", Toast.LENGTH_LONG).show();
+		}
+	}
+	
+	private class PatientBenchmarkTask extends AsyncTask<Void, Void, List<String>> {
+		private final Preference preference;
+		
+		PatientBenchmarkTask(Preference preference) {
+			this.preference = preference;
+		}
+		
+		@Override
+		protected void onPreExecute() {
+			Toast.makeText(Settings.this, "Benchmarking the patient cache...", Toast.LENGTH_SHORT).show();
+		}
+		
+		@Override
+		protected List<String> doInBackground(Void... params) {
+			List<String> results = PatientSearchBenchmark.run(Settings.this);
+			results.addAll(PatientInsertBenchmark.run(Settings.this));
+			return results;
+		}
+		
+		@Override
+		protected void onPostExecute(List<String> results) {
+			preference.setEnabled(true);
+			Log.i(TAG, "Patient cache benchmark recorded " + results.size() + " timings.");
+			Toast.makeText(Settings.this, "Recorded " + results.size() + " timings in the event log.", Toast.LENGTH_LONG).show();
+		}
+	}
+	
+	private class UploadCheckTask extends AsyncTask<Void, Void, List<String>> {
+		private final Preference preference;
+		
+		UploadCheckTask(Preference preference) {
+			this.preference = preference;
+		}
+		
+		@Override
+		protected List<String> doInBackground(Void... params) {
+			List<String> results = new ArrayList<String>();
+			try {
+				results.addAll(Base64FormRequestEntityCheck.run(getCacheDir()));
+			} catch (IOException e) {
+				results.add(Base64FormRequestEntityCheck.FAILED + " to run the encoding check: " + e.toString());
+			}
+			results.addAll(MDSLoadTest.checkResume(Settings.this));
+			results.addAll(PacketSizeReplay.run());
+			return results;
+		}
+		
+		@Override
+		protected void onPostExecute(List<String> results) {
+			preference.setEnabled(true);
+			int failed = 0;
+			for (String result : results) {
+				Log.i(TAG, "Upload check: " + result);
+				if (result.startsWith(Base64FormRequestEntityCheck.FAILED))
+					failed++;
+			}
+			Toast.makeText(Settings.this, failed == 0 ? "All " + results.size() + " upload checks passed." 
+					: failed + " of " + results.size() + " upload checks failed, see the log.", Toast.LENGTH_LONG).show();
+		}
+	}
+	
+	private class LoadTestTask extends AsyncTask<Void, Void, List<String>> {
+		private final Preference preference;
+		
+		LoadTestTask(Preference preference) {
+			this.preference = preference;
+		}
+		
+		@Override
+		protected void onPreExecute() {
+			Toast.makeText(Settings.this, "Uploading test encounters...", Toast.LENGTH_SHORT).show();
+		}
+		
+		@Override
+		protected List<String> doInBackground(Void... params) {
+			String sLatency = PreferenceManager.getDefaultSharedPreferences(Settings.this).getString(
+					Constants.PREFERENCE_LOAD_TEST_LATENCY, Integer.toString(Constants.DEFAULT_LOAD_TEST_LATENCY));
+			int latency = Constants.DEFAULT_LOAD_TEST_LATENCY;
+			try {
+				latency = Integer.parseInt(sLatency);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid load test latency: " + sLatency);
+			}
+			return MDSLoadTest.run(Settings.this, MDSLoadTest.DEFAULT_ENCOUNTERS, latency);
+		}
+		
+		@Override
+		protected void onPostExecute(List<String> results) {
+			preference.setEnabled(true);
+			for (String result : results)
+				Log.i(TAG, "Upload load test: " + result);
+			if (!results.isEmpty())
+				Toast.makeText(Settings.this, results.get(0), Toast.LENGTH_LONG).show();
+		}
+	}
 }
@@ -0,0 +1,87 @@
+package org.moca.db;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.moca.db.MocaDB.AnswerJournalSQLFormat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * Journal of the answers given in a saved procedure.
+ *
+ * The full state of a saved procedure is written to its PROCEDURE_STATE only
+ * now and then. In between, each save appends just the answers that changed
+ * to the journal. The answers of a saved procedure are its PROCEDURE_STATE
+ * with the journal replayed over it in order. Writing the full state and then
+ * clearing the journal compacts it; if that is interrupted, replaying the
+ * journal again only sets answers which the state already holds.
+ */
+public class AnswerJournalDAO {
+	private static final String[] PROJECTION = new String[] {
+		AnswerJournalSQLFormat.ELEMENT_ID, AnswerJournalSQLFormat.ANSWER };
+
+	private static final String SELECTION = AnswerJournalSQLFormat.SAVED_PROCEDURE_ID + "=?";
+
+	/**
+	 * Appends answers to the journal of a saved procedure.
+	 *
+	 * @param c current context
+	 * @param savedProcedureId the id of the saved procedure
+	 * @param answers element id to answer, for the answers which changed
+	 * @return the number of entries appended
+	 */
+	public static int append(Context c, long savedProcedureId, Map<String,String> answers) {
+		if (answers.isEmpty())
+			return 0;
+		ContentValues[] entries = new ContentValues[answers.size()];
+		int i = 0;
+		for (Entry<String,String> e : answers.entrySet()) {
+			ContentValues cv = new ContentValues();
+			cv.put(AnswerJournalSQLFormat.SAVED_PROCEDURE_ID, savedProcedureId);
+			cv.put(AnswerJournalSQLFormat.ELEMENT_ID, e.getKey());
+			cv.put(AnswerJournalSQLFormat.ANSWER, e.getValue());
+			entries[i++] = cv;
+		}
+		return c.getContentResolver().bulkInsert(AnswerJournalSQLFormat.CONTENT_URI, entries);
+	}
+
+	/**
+	 * Replays the journal of a saved procedure over its answers.
+	 *
+	 * @param c current context
+	 * @param savedProcedureId the id of the saved procedure
+	 * @param answers element id to answer, as read from PROCEDURE_STATE;
+	 *            updated in place
+	 * @return the number of entries replayed
+	 */
+	public static int replay(Context c, long savedProcedureId, Map<String,String> answers) {
+		Cursor cursor = c.getContentResolver().query(AnswerJournalSQLFormat.CONTENT_URI, PROJECTION,
+				SELECTION, new String[] { Long.toString(savedProcedureId) },
+				AnswerJournalSQLFormat.DEFAULT_SORT_ORDER);
+		try {
+			int count = 0;
+			while (cursor.moveToNext()) {
+				answers.put(cursor.getString(0), cursor.getString(1));
+				count++;
+			}
+			return count;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Empties the journal of a saved procedure. Call only once its answers
+	 * have been written to PROCEDURE_STATE.
+	 *
+	 * @param c current context
+	 * @param savedProcedureId the id of the saved procedure
+	 */
+	public static void clear(Context c, long savedProcedureId) {
+		c.getContentResolver().delete(AnswerJournalSQLFormat.CONTENT_URI, SELECTION,
+				new String[] { Long.toString(savedProcedureId) });
+	}
+}
@@ -0,0 +1,215 @@
+package org.moca.db;
+
+import java.util.HashMap;
+
+import org.moca.db.MocaDB.AnswerJournalSQLFormat;
+import org.moca.db.MocaDB.DatabaseHelper;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The answers given in each saved procedure since its state was last written
+ * out in full, one row per answer change, in the order they were given. See
+ * AnswerJournalDAO.
+ */
+public class AnswerJournalProvider extends ContentProvider {
+	private static final String TAG = AnswerJournalProvider.class.toString();
+
+	private static final String ANSWER_JOURNAL_TABLE_NAME = "answer_journal";
+
+	private static final int ANSWERS = 1;
+	private static final int ANSWER_ID = 2;
+
+	private DatabaseHelper mOpenHelper;
+	private static final UriMatcher sUriMatcher;
+	private static HashMap<String,String> sAnswerJournalProjectionMap;
+
+	@Override
+	public boolean onCreate() {
+		Log.i(TAG, "onCreate()");
+		mOpenHelper = new DatabaseHelper(getContext());
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		qb.setTables(ANSWER_JOURNAL_TABLE_NAME);
+
+		switch(sUriMatcher.match(uri)) {
+		case ANSWERS:
+			break;
+		case ANSWER_ID:
+			qb.appendWhere(AnswerJournalSQLFormat._ID + "=" + uri.getPathSegments().get(1));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		String orderBy;
+		if(TextUtils.isEmpty(sortOrder)) {
+			orderBy = AnswerJournalSQLFormat.DEFAULT_SORT_ORDER;
+		} else {
+			orderBy = sortOrder;
+		}
+
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+		c.setNotificationUri(getContext().getContentResolver(), uri);
+		return c;
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count;
+		switch (sUriMatcher.match(uri)) {
+		case ANSWERS:
+			count = db.delete(ANSWER_JOURNAL_TABLE_NAME, selection, selectionArgs);
+			break;
+		case ANSWER_ID:
+			String answerId = uri.getPathSegments().get(1);
+			count = db.delete(ANSWER_JOURNAL_TABLE_NAME, AnswerJournalSQLFormat._ID + "=" + answerId + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		switch(sUriMatcher.match(uri)) {
+		case ANSWERS:
+			return AnswerJournalSQLFormat.CONTENT_TYPE;
+		case ANSWER_ID:
+			return AnswerJournalSQLFormat.CONTENT_ITEM_TYPE;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+	}
+
+	private static ContentValues withDefaults(ContentValues initialValues, Long now) {
+		ContentValues values;
+		if(initialValues != null) {
+			values = new ContentValues(initialValues);
+		} else {
+			values = new ContentValues();
+		}
+
+		if(!values.containsKey(AnswerJournalSQLFormat.SAVED_PROCEDURE_ID)) {
+			values.put(AnswerJournalSQLFormat.SAVED_PROCEDURE_ID, -1);
+		}
+		if(!values.containsKey(AnswerJournalSQLFormat.ELEMENT_ID)) {
+			values.put(AnswerJournalSQLFormat.ELEMENT_ID, "");
+		}
+		if(!values.containsKey(AnswerJournalSQLFormat.ANSWER)) {
+			values.put(AnswerJournalSQLFormat.ANSWER, "");
+		}
+		if(!values.containsKey(AnswerJournalSQLFormat.CREATED_DATE)) {
+			values.put(AnswerJournalSQLFormat.CREATED_DATE, now);
+		}
+		return values;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues initialValues) {
+		if (sUriMatcher.match(uri) != ANSWERS) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		ContentValues values = withDefaults(initialValues, Long.valueOf(System.currentTimeMillis()));
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		long rowId = db.insert(ANSWER_JOURNAL_TABLE_NAME, null, values);
+
+		if(rowId > 0) {
+			Uri answerUri = ContentUris.withAppendedId(AnswerJournalSQLFormat.CONTENT_URI, rowId);
+			getContext().getContentResolver().notifyChange(answerUri, null);
+			return answerUri;
+		}
+
+		throw new SQLException("Failed to insert row into " + uri);
+	}
+
+	/**
+	 * Appends all the given answers in one transaction, so that a page's
+	 * changes cost a single commit and are either all journaled or none are.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] initialValues) {
+		if (sUriMatcher.match(uri) != ANSWERS) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		Long now = Long.valueOf(System.currentTimeMillis());
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (ContentValues initial : initialValues) {
+				if (db.insert(ANSWER_JOURNAL_TABLE_NAME, null, withDefaults(initial, now)) <= 0)
+					throw new SQLException("Failed to insert row into " + uri);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return initialValues.length;
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		// The journal is append only, so no URI can be updated.
+		throw new IllegalArgumentException("Unknown URI " + uri);
+	}
+
+	public static void onCreateDatabase(SQLiteDatabase db) {
+		Log.i(TAG, "Creating Answer Journal Table");
+		db.execSQL("CREATE TABLE " + ANSWER_JOURNAL_TABLE_NAME + " ("
+				+ AnswerJournalSQLFormat._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ AnswerJournalSQLFormat.SAVED_PROCEDURE_ID + " INTEGER, "
+				+ AnswerJournalSQLFormat.ELEMENT_ID + " TEXT, "
+				+ AnswerJournalSQLFormat.ANSWER + " TEXT, "
+				+ AnswerJournalSQLFormat.CREATED_DATE + " INTEGER"
+				+ ");");
+		db.execSQL("CREATE INDEX " + ANSWER_JOURNAL_TABLE_NAME + "_saved_procedure ON "
+				+ ANSWER_JOURNAL_TABLE_NAME + " (" + AnswerJournalSQLFormat.SAVED_PROCEDURE_ID + ");");
+	}
+
+	public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+				+ newVersion);
+
+		if (oldVersion < 9) {
+			// This table is created in version 9.
+			onCreateDatabase(db);
+		}
+	}
+
+	static {
+		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+		sUriMatcher.addURI(MocaDB.ANSWER_JOURNAL_AUTHORITY, "answers", ANSWERS);
+		sUriMatcher.addURI(MocaDB.ANSWER_JOURNAL_AUTHORITY, "answers/#", ANSWER_ID);
+
+		sAnswerJournalProjectionMap = new HashMap<String, String>();
+		sAnswerJournalProjectionMap.put(AnswerJournalSQLFormat._ID, AnswerJournalSQLFormat._ID);
+		sAnswerJournalProjectionMap.put(AnswerJournalSQLFormat.SAVED_PROCEDURE_ID, AnswerJournalSQLFormat.SAVED_PROCEDURE_ID);
+		sAnswerJournalProjectionMap.put(AnswerJournalSQLFormat.ELEMENT_ID, AnswerJournalSQLFormat.ELEMENT_ID);
+		sAnswerJournalProjectionMap.put(AnswerJournalSQLFormat.ANSWER, AnswerJournalSQLFormat.ANSWER);
+		sAnswerJournalProjectionMap.put(AnswerJournalSQLFormat.CREATED_DATE, AnswerJournalSQLFormat.CREATED_DATE);
+	}
+}
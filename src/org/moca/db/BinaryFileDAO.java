@@ -0,0 +1,109 @@
+package org.moca.db;
+
+import java.io.File;
+
+import org.moca.db.MocaDB.BinaryFileSQLFormat;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Upload state of BINARYFILE answers, kept per saved procedure and file path.
+ * A file whose size or modification time has changed since its upload began
+ * is treated as a new file and uploaded from the start.
+ */
+public class BinaryFileDAO {
+	private static final String TAG = BinaryFileDAO.class.getName();
+
+	private static final String[] PROJECTION = new String[] {
+		BinaryFileSQLFormat._ID, BinaryFileSQLFormat.FILE_SIZE,
+		BinaryFileSQLFormat.FILE_MODIFIED, BinaryFileSQLFormat.UPLOADED };
+
+	private static final String SELECTION = BinaryFileSQLFormat.SAVED_PROCEDURE_GUID
+		+ "=? AND " + BinaryFileSQLFormat.PATH + "=?";
+
+	/**
+	 * Returns the row holding the upload state of a file, creating it or
+	 * resetting its progress if the file has changed.
+	 *
+	 * @param c current context
+	 * @param savedProcedureGuid the guid of the saved procedure the file belongs to
+	 * @param file the file being uploaded
+	 * @return the uri of the row, whose UPLOAD_PROGRESS and UPLOADED columns track the upload
+	 */
+	public static Uri getUploadState(Context c, String savedProcedureGuid, File file) {
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long modified = file.lastModified();
+
+		Cursor cursor = c.getContentResolver().query(BinaryFileSQLFormat.CONTENT_URI, PROJECTION,
+				SELECTION, new String[] { savedProcedureGuid, path }, null);
+		try {
+			if (cursor.moveToFirst()) {
+				Uri uri = ContentUris.withAppendedId(BinaryFileSQLFormat.CONTENT_URI, cursor.getLong(0));
+				if (cursor.getLong(1) != size || cursor.getLong(2) != modified) {
+					Log.i(TAG, path + " changed since its upload began, starting over.");
+					ContentValues cv = new ContentValues();
+					cv.put(BinaryFileSQLFormat.FILE_SIZE, size);
+					cv.put(BinaryFileSQLFormat.FILE_MODIFIED, modified);
+					cv.put(BinaryFileSQLFormat.UPLOAD_PROGRESS, 0);
+					cv.put(BinaryFileSQLFormat.UPLOADED, false);
+					cv.put(BinaryFileSQLFormat.MODIFIED_DATE, Long.valueOf(System.currentTimeMillis()));
+					c.getContentResolver().update(uri, cv, null, null);
+				}
+				return uri;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		ContentValues cv = new ContentValues();
+		cv.put(BinaryFileSQLFormat.SAVED_PROCEDURE_GUID, savedProcedureGuid);
+		cv.put(BinaryFileSQLFormat.PATH, path);
+		cv.put(BinaryFileSQLFormat.FILE_SIZE, size);
+		cv.put(BinaryFileSQLFormat.FILE_MODIFIED, modified);
+		return c.getContentResolver().insert(BinaryFileSQLFormat.CONTENT_URI, cv);
+	}
+
+	/**
+	 * @param c current context
+	 * @param savedProcedureGuid the guid of the saved procedure the file belongs to
+	 * @param file the file to check
+	 * @return true if the upload of the file has not begun, or the file has
+	 *         changed since it began
+	 */
+	public static boolean hasChanged(Context c, String savedProcedureGuid, File file) {
+		Cursor cursor = c.getContentResolver().query(BinaryFileSQLFormat.CONTENT_URI, PROJECTION,
+				SELECTION, new String[] { savedProcedureGuid, file.getAbsolutePath() }, null);
+		try {
+			return !cursor.moveToFirst()
+				|| cursor.getLong(1) != file.length()
+				|| cursor.getLong(2) != file.lastModified();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @param c current context
+	 * @param savedProcedureGuid the guid of the saved procedure the file belongs to
+	 * @param file the file to check
+	 * @return true if the file, unchanged since, has been uploaded completely
+	 */
+	public static boolean isUploaded(Context c, String savedProcedureGuid, File file) {
+		Cursor cursor = c.getContentResolver().query(BinaryFileSQLFormat.CONTENT_URI, PROJECTION,
+				SELECTION, new String[] { savedProcedureGuid, file.getAbsolutePath() }, null);
+		try {
+			return cursor.moveToFirst()
+				&& cursor.getLong(1) == file.length()
+				&& cursor.getLong(2) == file.lastModified()
+				&& cursor.getInt(3) != 0;
+		} finally {
+			cursor.close();
+		}
+	}
+}
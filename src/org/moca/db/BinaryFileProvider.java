@@ -0,0 +1,222 @@
+package org.moca.db;
+
+import java.util.HashMap;
+
+import org.moca.db.MocaDB.DatabaseHelper;
+import org.moca.db.MocaDB.BinaryFileSQLFormat;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Tracks the upload progress of BINARYFILE answers, which unlike pictures and
+ * sounds are plain files with no other row in the database.
+ */
+public class BinaryFileProvider extends ContentProvider {
+	private static final String TAG = BinaryFileProvider.class.toString();
+
+	private static final String BINARY_FILES_TABLE_NAME = "binary_files";
+
+	private static final int BINARY_FILES = 1;
+	private static final int BINARY_FILE_ID = 2;
+
+	private DatabaseHelper mOpenHelper;
+	private static final UriMatcher sUriMatcher;
+	private static HashMap<String,String> sBinaryFileProjectionMap;
+
+	@Override
+	public boolean onCreate() {
+		Log.i(TAG, "onCreate()");
+		mOpenHelper = new DatabaseHelper(getContext());
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		Log.i(TAG, "query() uri="+uri.toString() + " projection=" + TextUtils.join(",",projection));
+
+		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		qb.setTables(BINARY_FILES_TABLE_NAME);
+
+		switch(sUriMatcher.match(uri)) {
+		case BINARY_FILES:
+			break;
+		case BINARY_FILE_ID:
+			qb.appendWhere(BinaryFileSQLFormat._ID + "=" + uri.getPathSegments().get(1));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		String orderBy;
+		if(TextUtils.isEmpty(sortOrder)) {
+			orderBy = BinaryFileSQLFormat.DEFAULT_SORT_ORDER;
+		} else {
+			orderBy = sortOrder;
+		}
+
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+		c.setNotificationUri(getContext().getContentResolver(), uri);
+		return c;
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		Log.i(TAG, "delete: " + uri);
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count;
+		switch (sUriMatcher.match(uri)) {
+		case BINARY_FILES:
+			count = db.delete(BINARY_FILES_TABLE_NAME, selection, selectionArgs);
+			break;
+		case BINARY_FILE_ID:
+			String fileId = uri.getPathSegments().get(1);
+			count = db.delete(BINARY_FILES_TABLE_NAME, BinaryFileSQLFormat._ID + "=" + fileId + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		Log.i(TAG, "getType(uri="+uri.toString()+")");
+		switch(sUriMatcher.match(uri)) {
+		case BINARY_FILES:
+			return BinaryFileSQLFormat.CONTENT_TYPE;
+		case BINARY_FILE_ID:
+			return BinaryFileSQLFormat.CONTENT_ITEM_TYPE;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues initialValues) {
+		if (sUriMatcher.match(uri) != BINARY_FILES) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		ContentValues values;
+		if(initialValues != null) {
+			values = new ContentValues(initialValues);
+		} else {
+			values = new ContentValues();
+		}
+
+		Long now = Long.valueOf(System.currentTimeMillis());
+
+		if(!values.containsKey(BinaryFileSQLFormat.SAVED_PROCEDURE_GUID)) {
+			values.put(BinaryFileSQLFormat.SAVED_PROCEDURE_GUID, "");
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.PATH)) {
+			values.put(BinaryFileSQLFormat.PATH, "");
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.FILE_SIZE)) {
+			values.put(BinaryFileSQLFormat.FILE_SIZE, 0);
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.FILE_MODIFIED)) {
+			values.put(BinaryFileSQLFormat.FILE_MODIFIED, 0);
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.UPLOAD_PROGRESS)) {
+			values.put(BinaryFileSQLFormat.UPLOAD_PROGRESS, 0);
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.UPLOADED)) {
+			values.put(BinaryFileSQLFormat.UPLOADED, false);
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.CREATED_DATE)) {
+			values.put(BinaryFileSQLFormat.CREATED_DATE, now);
+		}
+		if(!values.containsKey(BinaryFileSQLFormat.MODIFIED_DATE)) {
+			values.put(BinaryFileSQLFormat.MODIFIED_DATE, now);
+		}
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		long rowId = db.insert(BINARY_FILES_TABLE_NAME, null, values);
+
+		if(rowId > 0) {
+			Uri fileUri = ContentUris.withAppendedId(BinaryFileSQLFormat.CONTENT_URI, rowId);
+			getContext().getContentResolver().notifyChange(fileUri, null);
+			return fileUri;
+		}
+
+		throw new SQLException("Failed to insert row into " + uri);
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count = 0;
+
+		switch(sUriMatcher.match(uri)) {
+		case BINARY_FILES:
+			count = db.update(BINARY_FILES_TABLE_NAME, values, selection, selectionArgs);
+			break;
+		case BINARY_FILE_ID:
+			String fileId = uri.getPathSegments().get(1);
+			count = db.update(BINARY_FILES_TABLE_NAME, values, BinaryFileSQLFormat._ID + "=" + fileId + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	public static void onCreateDatabase(SQLiteDatabase db) {
+		Log.i(TAG, "Creating Binary Files Table");
+		db.execSQL("CREATE TABLE " + BINARY_FILES_TABLE_NAME + " ("
+				+ BinaryFileSQLFormat._ID + " INTEGER PRIMARY KEY,"
+				+ BinaryFileSQLFormat.SAVED_PROCEDURE_GUID + " TEXT, "
+				+ BinaryFileSQLFormat.PATH + " TEXT, "
+				+ BinaryFileSQLFormat.FILE_SIZE + " INTEGER, "
+				+ BinaryFileSQLFormat.FILE_MODIFIED + " INTEGER, "
+				+ BinaryFileSQLFormat.UPLOAD_PROGRESS + " INTEGER, "
+				+ BinaryFileSQLFormat.UPLOADED + " INTEGER, "
+				+ BinaryFileSQLFormat.CREATED_DATE + " INTEGER,"
+				+ BinaryFileSQLFormat.MODIFIED_DATE + " INTEGER"
+				+ ");");
+	}
+
+	public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+				+ newVersion);
+
+		if (oldVersion < 4) {
+			// This table is created in version 4.
+			onCreateDatabase(db);
+		}
+	}
+
+	static {
+		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+		sUriMatcher.addURI(MocaDB.BINARY_FILE_AUTHORITY, "binaryFiles", BINARY_FILES);
+		sUriMatcher.addURI(MocaDB.BINARY_FILE_AUTHORITY, "binaryFiles/#", BINARY_FILE_ID);
+
+		sBinaryFileProjectionMap = new HashMap<String, String>();
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat._ID, BinaryFileSQLFormat._ID);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.SAVED_PROCEDURE_GUID, BinaryFileSQLFormat.SAVED_PROCEDURE_GUID);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.PATH, BinaryFileSQLFormat.PATH);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.FILE_SIZE, BinaryFileSQLFormat.FILE_SIZE);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.FILE_MODIFIED, BinaryFileSQLFormat.FILE_MODIFIED);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.UPLOAD_PROGRESS, BinaryFileSQLFormat.UPLOAD_PROGRESS);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.UPLOADED, BinaryFileSQLFormat.UPLOADED);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.CREATED_DATE, BinaryFileSQLFormat.CREATED_DATE);
+		sBinaryFileProjectionMap.put(BinaryFileSQLFormat.MODIFIED_DATE, BinaryFileSQLFormat.MODIFIED_DATE);
+	}
+}
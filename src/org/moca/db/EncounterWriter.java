@@ -0,0 +1,190 @@
+package org.moca.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONObject;
+import org.moca.db.MocaDB.SavedProcedureSQLFormat;
+import org.moca.db.MocaDB.EventSQLFormat.EventType;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Stores the answers of an encounter, and logs its events, on a single
+ * background thread so that the UI never waits on the disk.
+ *
+ * A save replaces one of the same encounter which is still waiting to be
+ * written, so a burst of page turns costs one write. Call flush before
+ * anything else reads the encounter, and whenever the process might be
+ * killed.
+ */
+public class EncounterWriter {
+	private static final String TAG = EncounterWriter.class.getName();
+
+	// Every write goes through this one thread, in the order asked for.
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+	private final Context context;
+	private final Uri encounter;
+	private final long savedProcedureId;
+
+	// The answers as last stored, and the number of journal entries written
+	// since they were last stored in full. Used by the writer thread only.
+	private Map<String,String> storedAnswers = null;
+	private int journalLength = 0;
+
+	// The save waiting to be written, if any
+	private Map<String,String> pendingAnswers = null;
+	private boolean pendingFinished = false;
+	private boolean pendingCompact = false;
+
+	/**
+	 * @param c current context; its application context is kept
+	 * @param encounter the saved procedure to write
+	 */
+	public EncounterWriter(Context c, Uri encounter) {
+		this.context = c.getApplicationContext();
+		this.encounter = encounter;
+		this.savedProcedureId = ContentUris.parseId(encounter);
+	}
+
+	/** @return the saved procedure this writes */
+	public Uri getEncounter() {
+		return encounter;
+	}
+
+	/**
+	 * Queues the answers of the encounter to be stored. Usually only the
+	 * answers which changed since the last store are appended to the answer
+	 * journal (see AnswerJournalDAO). The full JSON state is written, and the
+	 * journal cleared, when compact is set, on the first store, and once the
+	 * journal holds more entries than the procedure has answers.
+	 *
+	 * @param answers element id to answer; must not be changed afterwards
+	 * @param finished whether to set the encounter as ready for upload
+	 * @param compact whether to write the full state, as readers of the
+	 *            encounter other than the procedure runner expect to find it
+	 *            there
+	 */
+	public void save(Map<String,String> answers, boolean finished, boolean compact) {
+		synchronized (this) {
+			boolean queued = pendingAnswers != null;
+			pendingAnswers = answers;
+			pendingFinished |= finished;
+			pendingCompact |= compact;
+			if (queued)
+				return;
+		}
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					write();
+				} catch (Exception e) {
+					Log.e(TAG, "Could not store " + encounter + ": " + e.toString());
+					EventDAO.logException(context, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drops any save still waiting to be written, and waits for the one being
+	 * written, if any. Call before deleting the encounter.
+	 */
+	public void discard() {
+		synchronized (this) {
+			pendingAnswers = null;
+			pendingFinished = false;
+			pendingCompact = false;
+		}
+		flush();
+	}
+
+	private void write() {
+		Map<String,String> answers;
+		boolean finished, compact;
+		synchronized (this) {
+			answers = pendingAnswers;
+			finished = pendingFinished;
+			compact = pendingCompact;
+			pendingAnswers = null;
+			pendingFinished = false;
+			pendingCompact = false;
+		}
+		if (answers == null)
+			return;
+
+		if (!finished && !compact && storedAnswers != null
+				&& journalLength <= answers.size()) {
+			Map<String,String> changed = new HashMap<String,String>();
+			for (Map.Entry<String,String> e : answers.entrySet()) {
+				// as in the JSON state, unanswered elements are left out
+				String answer = e.getValue();
+				if (answer != null && !answer.equals(storedAnswers.get(e.getKey())))
+					changed.put(e.getKey(), answer);
+			}
+			journalLength += AnswerJournalDAO.append(context, savedProcedureId, changed);
+			storedAnswers = answers;
+			Log.i(TAG, "Journaled " + changed.size() + " answers of " + encounter);
+			return;
+		}
+
+		ContentValues cv = new ContentValues();
+		cv.put(SavedProcedureSQLFormat.PROCEDURE_STATE, new JSONObject(answers).toString());
+		if (finished)
+			cv.put(SavedProcedureSQLFormat.FINISHED, finished);
+
+		int updatedObjects = context.getContentResolver().update(encounter, cv, null, null);
+		Log.i(TAG, "Stored " + encounter + ", updated " + updatedObjects + " objects. (SHOULD ONLY BE 1)");
+
+		// Only once the state holds every answer in the journal.
+		AnswerJournalDAO.clear(context, savedProcedureId);
+		storedAnswers = answers;
+		journalLength = 0;
+	}
+
+	/**
+	 * Queues an event to be logged against an encounter. The guid of the
+	 * encounter is looked up on the writer thread too.
+	 *
+	 * @param c current context
+	 * @param encounter the saved procedure, or null
+	 */
+	public static void logEvent(Context c, final Uri encounter, final EventType type,
+			final String value, final String patientRef, final String userRef) {
+		final Context context = c.getApplicationContext();
+		writer.execute(new Runnable() {
+			public void run() {
+				String encounterRef = "";
+				if (encounter != null)
+					encounterRef = EncounterDAO.getEncounterGuid(context, encounter);
+				EventDAO.registerEvent(context, type, value, encounterRef, patientRef, userRef);
+			}
+		});
+	}
+
+	/**
+	 * Blocks until everything queued so far, by any EncounterWriter, has been
+	 * written.
+	 */
+	public static void flush() {
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while flushing writes.");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Flushing writes failed: " + e.toString());
+		}
+	}
+}
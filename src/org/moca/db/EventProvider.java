@@ -198,7 +198,7 @@ public class EventProvider extends ContentProvider {
 		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
 				+ newVersion);
 		
-		if (oldVersion == 1 && newVersion == 2) {
+		if (oldVersion < 2) {
 			// This table is created in version 2.
 			onCreateDatabase(db);
 		}
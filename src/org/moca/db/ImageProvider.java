@@ -319,6 +319,7 @@ public class ImageProvider extends ContentProvider {
                 + ImageSQLFormat.FILE_SIZE + " INTEGER,"
                 + ImageSQLFormat.UPLOAD_PROGRESS + " INTEGER,"
                 + ImageSQLFormat.UPLOADED + " INTEGER,"
+                + ImageSQLFormat.CONTENT_HASH + " TEXT,"
                 + ImageSQLFormat.CREATED_DATE + " INTEGER,"
                 + ImageSQLFormat.MODIFIED_DATE + " INTEGER"
                 + ");");
@@ -327,8 +328,10 @@ public class ImageProvider extends ContentProvider {
     public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                 + newVersion);
-        if (oldVersion == 1 && newVersion == 2) {
-        	// Do nothing
+        if (oldVersion < 5) {
+            // The content hash is added in version 5.
+            db.execSQL("ALTER TABLE " + IMAGE_TABLE_NAME + " ADD COLUMN "
+                    + ImageSQLFormat.CONTENT_HASH + " TEXT;");
         }
     }
 
@@ -347,6 +350,7 @@ public class ImageProvider extends ContentProvider {
         sImageProjectionMap.put(ImageSQLFormat.FILE_SIZE, ImageSQLFormat.FILE_SIZE);
         sImageProjectionMap.put(ImageSQLFormat.UPLOAD_PROGRESS, ImageSQLFormat.UPLOAD_PROGRESS);
         sImageProjectionMap.put(ImageSQLFormat.UPLOADED, ImageSQLFormat.UPLOADED);
+        sImageProjectionMap.put(ImageSQLFormat.CONTENT_HASH, ImageSQLFormat.CONTENT_HASH);
         sImageProjectionMap.put(ImageSQLFormat.CREATED_DATE, ImageSQLFormat.CREATED_DATE);
         sImageProjectionMap.put(ImageSQLFormat.MODIFIED_DATE, ImageSQLFormat.MODIFIED_DATE);
     }
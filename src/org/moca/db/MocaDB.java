@@ -14,9 +14,12 @@ public final class MocaDB {
     public static final String NOTIFICATION_AUTHORITY = "org.moca.provider.Notification";
     public static final String PATIENT_AUTHORITY = "org.moca.provider.Patient";
     public static final String EVENT_AUTHORITY = "org.moca.provider.Event";
+    public static final String NETWORK_STATS_AUTHORITY = "org.moca.provider.NetworkStats";
+    public static final String BINARY_FILE_AUTHORITY = "org.moca.provider.BinaryFile";
+    public static final String ANSWER_JOURNAL_AUTHORITY = "org.moca.provider.AnswerJournal";
     
     public static final String DATABASE_NAME = "moca.db";
-    public static final int DATABASE_VERSION = 2; // Reset this to 1 before release
+    public static final int DATABASE_VERSION = 9; // Reset this to 1 before release
     
     public static final class ProcedureSQLFormat implements BaseColumns {
         private ProcedureSQLFormat() {
@@ -39,6 +42,9 @@ public final class MocaDB {
 
         public static final String PROCEDURE = "procedure";
 
+        // PROCEDURE compiled by CompiledProcedure, null if it could not be compiled
+        public static final String COMPILED = "compiled";
+
         public static final String CREATED_DATE = "created";
 
         public static final String MODIFIED_DATE = "modified";
@@ -130,6 +136,9 @@ public final class MocaDB {
         
         public static final String UPLOADED = "uploaded";
 
+        // Hex SHA-256 of the file, so content the MDS already has is not sent again
+        public static final String CONTENT_HASH = "content_hash";
+
         public static final String CREATED_DATE = "created";
 
         public static final String MODIFIED_DATE = "modified";
@@ -165,6 +174,9 @@ public final class MocaDB {
         
         public static final String UPLOADED = "uploaded";
         
+        // Hex SHA-256 of the file, so content the MDS already has is not sent again
+        public static final String CONTENT_HASH = "content_hash";
+        
         public static final String CREATED_DATE = "created";
 
         public static final String MODIFIED_DATE = "modified";
@@ -227,6 +239,14 @@ public final class MocaDB {
     	
     	public static final String PATIENT_GENDER = "patient_gender";
     	
+    	// time of the sync with the MDS which last saw this patient
+    	public static final String SYNCED = "synced";
+    	
+    	// phonetic keys of the names, see PatientProvider.getPhoneticKey
+    	public static final String FIRSTNAME_PHONETIC = "patient_firstname_phonetic";
+    	
+    	public static final String LASTNAME_PHONETIC = "patient_lastname_phonetic";
+    	
     }
     
     public static final class EventSQLFormat implements BaseColumns {
@@ -337,6 +357,10 @@ public final class MocaDB {
     		PHONE_CPU_LOAD,
     		PHONE_MEMORY_USAGE,
     		
+    		// Performance Events
+    		// One result of a benchmark or load test started from Settings
+    		PERFORMANCE_BENCHMARK,
+    		
     		UNSPECIFIED
     	}
     	
@@ -360,6 +384,97 @@ public final class MocaDB {
     	
     }
     
+    public static final class NetworkStatsSQLFormat implements BaseColumns {
+        private NetworkStatsSQLFormat() {
+        }
+
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + NETWORK_STATS_AUTHORITY + "/networkStats");
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/org.moca.networkStats";
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/org.moca.networkStats";
+
+        public static final String DEFAULT_SORT_ORDER = "modified DESC";
+
+        // COLUMNS
+
+        // The kind of connection the statistics were learned on, e.g. WIFI or EDGE
+        public static final String NETWORK_TYPE = "network_type";
+
+        // The chunk size, in bytes, the upload controller last settled on
+        public static final String PACKET_SIZE = "packet_size";
+
+        // Smoothed throughput of chunk uploads, in bytes/msec
+        public static final String THROUGHPUT = "throughput";
+
+        public static final String CREATED_DATE = "created";
+
+        public static final String MODIFIED_DATE = "modified";
+    }
+    
+    public static final class BinaryFileSQLFormat implements BaseColumns {
+        private BinaryFileSQLFormat() {
+        }
+
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + BINARY_FILE_AUTHORITY + "/binaryFiles");
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/org.moca.binaryFile";
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/org.moca.binaryFile";
+
+        public static final String DEFAULT_SORT_ORDER = "modified DESC";
+
+        // COLUMNS
+
+        // guid of the saved procedure the file is uploaded for
+        public static final String SAVED_PROCEDURE_GUID = "procedure_guid";
+
+        // absolute path of the file on the phone
+        public static final String PATH = "path";
+
+        // size and mtime of the file when the upload started. If either
+        // changes the file is uploaded again from the start.
+        public static final String FILE_SIZE = "file_size";
+
+        public static final String FILE_MODIFIED = "file_modified";
+
+        public static final String UPLOAD_PROGRESS = "upload_progress";
+
+        public static final String UPLOADED = "uploaded";
+
+        public static final String CREATED_DATE = "created";
+
+        public static final String MODIFIED_DATE = "modified";
+    }
+    
+    public static final class AnswerJournalSQLFormat implements BaseColumns {
+        private AnswerJournalSQLFormat() {
+        }
+
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + ANSWER_JOURNAL_AUTHORITY + "/answers");
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/org.moca.answer";
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/org.moca.answer";
+
+        // entries must be replayed in the order they were written
+        public static final String DEFAULT_SORT_ORDER = "_id ASC";
+
+        // COLUMNS
+
+        // foreign key of the saved procedure the answer belongs to
+        public static final String SAVED_PROCEDURE_ID = "saved_procedure_id";
+
+        public static final String ELEMENT_ID = "element_id";
+
+        public static final String ANSWER = "answer";
+
+        public static final String CREATED_DATE = "created";
+    }
+    
     public static final class DoctorGroupSQLFormat implements BaseColumns {
     	private DoctorGroupSQLFormat() {	
     	}
@@ -399,6 +514,9 @@ public final class MocaDB {
             PatientProvider.onCreateDatabase(db);
             //DoctorGroupProvider.onCreateDatabase(db);
             EventProvider.onCreateDatabase(db);
+            NetworkStatsProvider.onCreateDatabase(db);
+            BinaryFileProvider.onCreateDatabase(db);
+            AnswerJournalProvider.onCreateDatabase(db);
         }
 
         @Override
@@ -411,6 +529,9 @@ public final class MocaDB {
             PatientProvider.onUpgradeDatabase(db, oldVersion, newVersion);
             //DoctorGroupProvider.onUpgradeDatabase(db, oldVersion, newVersion);
             EventProvider.onUpgradeDatabase(db, oldVersion, newVersion);
+            NetworkStatsProvider.onUpgradeDatabase(db, oldVersion, newVersion);
+            BinaryFileProvider.onUpgradeDatabase(db, oldVersion, newVersion);
+            AnswerJournalProvider.onUpgradeDatabase(db, oldVersion, newVersion);
         }
     }
     
@@ -0,0 +1,208 @@
+package org.moca.db;
+
+import java.util.HashMap;
+
+import org.moca.db.MocaDB.DatabaseHelper;
+import org.moca.db.MocaDB.NetworkStatsSQLFormat;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Stores what the upload controller has learned about each kind of network
+ * connection so later uploads on the same kind of network start from a
+ * sensible chunk size.
+ */
+public class NetworkStatsProvider extends ContentProvider {
+	private static final String TAG = NetworkStatsProvider.class.toString();
+
+	private static final String NETWORK_STATS_TABLE_NAME = "network_stats";
+
+	private static final int NETWORK_STATS = 1;
+	private static final int NETWORK_STATS_ID = 2;
+
+	private DatabaseHelper mOpenHelper;
+	private static final UriMatcher sUriMatcher;
+	private static HashMap<String,String> sNetworkStatsProjectionMap;
+
+	@Override
+	public boolean onCreate() {
+		Log.i(TAG, "onCreate()");
+		mOpenHelper = new DatabaseHelper(getContext());
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		Log.i(TAG, "query() uri="+uri.toString() + " projection=" + TextUtils.join(",",projection));
+
+		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		qb.setTables(NETWORK_STATS_TABLE_NAME);
+
+		switch(sUriMatcher.match(uri)) {
+		case NETWORK_STATS:
+			break;
+		case NETWORK_STATS_ID:
+			qb.appendWhere(NetworkStatsSQLFormat._ID + "=" + uri.getPathSegments().get(1));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		String orderBy;
+		if(TextUtils.isEmpty(sortOrder)) {
+			orderBy = NetworkStatsSQLFormat.DEFAULT_SORT_ORDER;
+		} else {
+			orderBy = sortOrder;
+		}
+
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+		c.setNotificationUri(getContext().getContentResolver(), uri);
+		return c;
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		Log.i(TAG, "delete: " + uri);
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count;
+		switch (sUriMatcher.match(uri)) {
+		case NETWORK_STATS:
+			count = db.delete(NETWORK_STATS_TABLE_NAME, selection, selectionArgs);
+			break;
+		case NETWORK_STATS_ID:
+			String statsId = uri.getPathSegments().get(1);
+			count = db.delete(NETWORK_STATS_TABLE_NAME, NetworkStatsSQLFormat._ID + "=" + statsId + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		Log.i(TAG, "getType(uri="+uri.toString()+")");
+		switch(sUriMatcher.match(uri)) {
+		case NETWORK_STATS:
+			return NetworkStatsSQLFormat.CONTENT_TYPE;
+		case NETWORK_STATS_ID:
+			return NetworkStatsSQLFormat.CONTENT_ITEM_TYPE;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues initialValues) {
+		if (sUriMatcher.match(uri) != NETWORK_STATS) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		ContentValues values;
+		if(initialValues != null) {
+			values = new ContentValues(initialValues);
+		} else {
+			values = new ContentValues();
+		}
+
+		Long now = Long.valueOf(System.currentTimeMillis());
+
+		if(!values.containsKey(NetworkStatsSQLFormat.NETWORK_TYPE)) {
+			values.put(NetworkStatsSQLFormat.NETWORK_TYPE, "");
+		}
+		if(!values.containsKey(NetworkStatsSQLFormat.PACKET_SIZE)) {
+			values.put(NetworkStatsSQLFormat.PACKET_SIZE, 0);
+		}
+		if(!values.containsKey(NetworkStatsSQLFormat.THROUGHPUT)) {
+			values.put(NetworkStatsSQLFormat.THROUGHPUT, 0.0);
+		}
+		if(!values.containsKey(NetworkStatsSQLFormat.CREATED_DATE)) {
+			values.put(NetworkStatsSQLFormat.CREATED_DATE, now);
+		}
+		if(!values.containsKey(NetworkStatsSQLFormat.MODIFIED_DATE)) {
+			values.put(NetworkStatsSQLFormat.MODIFIED_DATE, now);
+		}
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		long rowId = db.insert(NETWORK_STATS_TABLE_NAME, null, values);
+
+		if(rowId > 0) {
+			Uri statsUri = ContentUris.withAppendedId(NetworkStatsSQLFormat.CONTENT_URI, rowId);
+			getContext().getContentResolver().notifyChange(statsUri, null);
+			return statsUri;
+		}
+
+		throw new SQLException("Failed to insert row into " + uri);
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count = 0;
+
+		switch(sUriMatcher.match(uri)) {
+		case NETWORK_STATS:
+			count = db.update(NETWORK_STATS_TABLE_NAME, values, selection, selectionArgs);
+			break;
+		case NETWORK_STATS_ID:
+			String statsId = uri.getPathSegments().get(1);
+			count = db.update(NETWORK_STATS_TABLE_NAME, values, NetworkStatsSQLFormat._ID + "=" + statsId + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	public static void onCreateDatabase(SQLiteDatabase db) {
+		Log.i(TAG, "Creating Network Stats Table");
+		db.execSQL("CREATE TABLE " + NETWORK_STATS_TABLE_NAME + " ("
+				+ NetworkStatsSQLFormat._ID + " INTEGER PRIMARY KEY,"
+				+ NetworkStatsSQLFormat.NETWORK_TYPE + " TEXT UNIQUE, "
+				+ NetworkStatsSQLFormat.PACKET_SIZE + " INTEGER, "
+				+ NetworkStatsSQLFormat.THROUGHPUT + " REAL, "
+				+ NetworkStatsSQLFormat.CREATED_DATE + " INTEGER,"
+				+ NetworkStatsSQLFormat.MODIFIED_DATE + " INTEGER"
+				+ ");");
+	}
+
+	public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+				+ newVersion);
+
+		if (oldVersion < 3) {
+			// This table is created in version 3.
+			onCreateDatabase(db);
+		}
+	}
+
+	static {
+		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+		sUriMatcher.addURI(MocaDB.NETWORK_STATS_AUTHORITY, "networkStats", NETWORK_STATS);
+		sUriMatcher.addURI(MocaDB.NETWORK_STATS_AUTHORITY, "networkStats/#", NETWORK_STATS_ID);
+
+		sNetworkStatsProjectionMap = new HashMap<String, String>();
+		sNetworkStatsProjectionMap.put(NetworkStatsSQLFormat._ID, NetworkStatsSQLFormat._ID);
+		sNetworkStatsProjectionMap.put(NetworkStatsSQLFormat.NETWORK_TYPE, NetworkStatsSQLFormat.NETWORK_TYPE);
+		sNetworkStatsProjectionMap.put(NetworkStatsSQLFormat.PACKET_SIZE, NetworkStatsSQLFormat.PACKET_SIZE);
+		sNetworkStatsProjectionMap.put(NetworkStatsSQLFormat.THROUGHPUT, NetworkStatsSQLFormat.THROUGHPUT);
+		sNetworkStatsProjectionMap.put(NetworkStatsSQLFormat.CREATED_DATE, NetworkStatsSQLFormat.CREATED_DATE);
+		sNetworkStatsProjectionMap.put(NetworkStatsSQLFormat.MODIFIED_DATE, NetworkStatsSQLFormat.MODIFIED_DATE);
+	}
+}
@@ -2,6 +2,7 @@ package org.moca.db;
 
 import java.util.HashMap;
 
+import org.apache.commons.codec.language.DoubleMetaphone;
 import org.moca.db.MocaDB.DatabaseHelper;
 import org.moca.db.MocaDB.PatientSQLFormat;
 import org.moca.db.MocaDB.ProcedureSQLFormat;
@@ -14,6 +15,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -35,6 +37,8 @@ public class PatientProvider extends ContentProvider {
 	private DatabaseHelper mOpenHelper;
 	private static final UriMatcher sUriMatcher;
 	private static HashMap<String,String> sPatientProjectionMap;
+	// not documented as thread safe, so it is used while holding its lock
+	private static final DoubleMetaphone sPhoneticEncoder = new DoubleMetaphone();
 
 	@Override
 	public boolean onCreate() {
@@ -118,15 +122,12 @@ public class PatientProvider extends ContentProvider {
 
 	@Override
 	public Uri insert(Uri uri, ContentValues initialValues) {
-		Log.i(TAG,"starting insert method");
 		if (sUriMatcher.match(uri) != PATIENTS) {
-			Log.i(TAG, "Throwing IllegalArgumentException");
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 
 		ContentValues values;
 		if(initialValues != null) {
-			Log.i(TAG,"do we get to this point?");
 			values = new ContentValues(initialValues);
 		} else {
 			values = new ContentValues();
@@ -153,6 +154,9 @@ public class PatientProvider extends ContentProvider {
 		if(values.containsKey(PatientSQLFormat.PATIENT_GENDER) == false) {
 			values.put(PatientSQLFormat.PATIENT_GENDER, "");
 		}
+		
+		values.put(PatientSQLFormat.FIRSTNAME_PHONETIC, getPhoneticKey(values.getAsString(PatientSQLFormat.PATIENT_FIRSTNAME)));
+		values.put(PatientSQLFormat.LASTNAME_PHONETIC, getPhoneticKey(values.getAsString(PatientSQLFormat.PATIENT_LASTNAME)));
  
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
  
@@ -171,6 +175,98 @@ public class PatientProvider extends ContentProvider {
 		throw new SQLException("Failed to insert row into " + uri);
 	}
 
+	/**
+	 * Upserts patients by patient id, replacing any row with the same
+	 * patient id. Unlike calling insert() for each patient, the whole batch
+	 * runs in one transaction with precompiled statements and observers are
+	 * notified once.
+	 * 
+	 * @return the number of patients written
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if (sUriMatcher.match(uri) != PATIENTS) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count = 0;
+		db.beginTransaction();
+		SQLiteStatement delete = null;
+		SQLiteStatement insert = null;
+		try {
+			delete = db.compileStatement("DELETE FROM " + PATIENT_TABLE_NAME 
+					+ " WHERE " + PatientSQLFormat.PATIENT_ID + "=?");
+			insert = db.compileStatement("INSERT INTO " + PATIENT_TABLE_NAME + " ("
+					+ PatientSQLFormat.PATIENT_ID + ","
+					+ PatientSQLFormat.PATIENT_FIRSTNAME + ","
+					+ PatientSQLFormat.PATIENT_LASTNAME + ","
+					+ PatientSQLFormat.PATIENT_GENDER + ","
+					+ PatientSQLFormat.PATIENT_DOB + ","
+					+ PatientSQLFormat.SYNCED + ","
+					+ PatientSQLFormat.FIRSTNAME_PHONETIC + ","
+					+ PatientSQLFormat.LASTNAME_PHONETIC
+					+ ") VALUES (?,?,?,?,?,?,?,?)");
+			for (ContentValues patient : values) {
+				String patientId = patient.getAsString(PatientSQLFormat.PATIENT_ID);
+				if (patientId == null)
+					continue;
+				delete.bindString(1, patientId);
+				delete.execute();
+
+				String firstname = patient.getAsString(PatientSQLFormat.PATIENT_FIRSTNAME);
+				String lastname = patient.getAsString(PatientSQLFormat.PATIENT_LASTNAME);
+				insert.bindString(1, patientId);
+				bindString(insert, 2, firstname);
+				bindString(insert, 3, lastname);
+				bindString(insert, 4, patient.getAsString(PatientSQLFormat.PATIENT_GENDER));
+				bindString(insert, 5, patient.getAsString(PatientSQLFormat.PATIENT_DOB));
+				Long synced = patient.getAsLong(PatientSQLFormat.SYNCED);
+				if (synced != null)
+					insert.bindLong(6, synced);
+				else
+					insert.bindNull(6);
+				insert.bindString(7, getPhoneticKey(firstname));
+				insert.bindString(8, getPhoneticKey(lastname));
+				insert.executeInsert();
+				count++;
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			if (delete != null)
+				delete.close();
+			if (insert != null)
+				insert.close();
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	// Binds a value, or an empty string for a missing value as insert() does.
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		statement.bindString(index, value != null ? value : "");
+	}
+	
+	/**
+	 * Returns the key under which a name is stored for phonetic search. Names
+	 * which sound alike, such as different transliterations of the same name,
+	 * share a key.
+	 * 
+	 * @param name a first or last name
+	 * @return the primary Double Metaphone code of the name, or "" if it has none
+	 */
+	public static String getPhoneticKey(String name) {
+		if (name == null)
+			return "";
+		String key;
+		synchronized (sPhoneticEncoder) {
+			key = sPhoneticEncoder.doubleMetaphone(name.trim());
+		}
+		return key != null ? key : "";
+	}
+
 	@Override
 	public String getType(Uri uri) {
 		Log.i(TAG, "getType(uri="+uri.toString()+")");
@@ -192,8 +288,13 @@ public class PatientProvider extends ContentProvider {
 				+ PatientSQLFormat.PATIENT_FIRSTNAME + " TEXT,"
 				+ PatientSQLFormat.PATIENT_LASTNAME + " TEXT,"
 				+ PatientSQLFormat.PATIENT_GENDER + " TEXT,"
-				+ PatientSQLFormat.PATIENT_DOB + " INTEGER"
+				+ PatientSQLFormat.PATIENT_DOB + " INTEGER,"
+				+ PatientSQLFormat.SYNCED + " INTEGER,"
+				+ PatientSQLFormat.FIRSTNAME_PHONETIC + " TEXT,"
+				+ PatientSQLFormat.LASTNAME_PHONETIC + " TEXT"
 				+ ");");
+		createPatientIdIndex(db);
+		createNameIndexes(db);
 		Log.i(TAG, "Finished Creating Patient Data TAble");
 		
 	}
@@ -201,9 +302,62 @@ public class PatientProvider extends ContentProvider {
 	public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
 		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
 				+ newVersion);
-        if (oldVersion == 1 && newVersion == 2) {
-        	// Do nothing
-        }
+		if (oldVersion < 6) {
+			// Patients are upserted by patient id from version 6.
+			db.execSQL("ALTER TABLE " + PATIENT_TABLE_NAME + " ADD COLUMN "
+					+ PatientSQLFormat.SYNCED + " INTEGER;");
+			createPatientIdIndex(db);
+		}
+		if (oldVersion < 7) {
+			// Patients are searched by name from version 7.
+			db.execSQL("ALTER TABLE " + PATIENT_TABLE_NAME + " ADD COLUMN "
+					+ PatientSQLFormat.FIRSTNAME_PHONETIC + " TEXT;");
+			db.execSQL("ALTER TABLE " + PATIENT_TABLE_NAME + " ADD COLUMN "
+					+ PatientSQLFormat.LASTNAME_PHONETIC + " TEXT;");
+			createNameIndexes(db);
+			updatePhoneticKeys(db);
+		}
+	}
+	
+	private static void createPatientIdIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX " + PATIENT_TABLE_NAME + "_" + PatientSQLFormat.PATIENT_ID
+				+ " ON " + PATIENT_TABLE_NAME + " (" + PatientSQLFormat.PATIENT_ID + ");");
+	}
+	
+	// Name prefixes are searched case insensitively, see UserDatabase.searchPatients
+	private static void createNameIndexes(SQLiteDatabase db) {
+		String[] names = { PatientSQLFormat.PATIENT_FIRSTNAME, PatientSQLFormat.PATIENT_LASTNAME };
+		for (String name : names) {
+			db.execSQL("CREATE INDEX " + PATIENT_TABLE_NAME + "_" + name
+					+ " ON " + PATIENT_TABLE_NAME + " (" + name + " COLLATE NOCASE);");
+		}
+		String[] keys = { PatientSQLFormat.FIRSTNAME_PHONETIC, PatientSQLFormat.LASTNAME_PHONETIC };
+		for (String key : keys) {
+			db.execSQL("CREATE INDEX " + PATIENT_TABLE_NAME + "_" + key
+					+ " ON " + PATIENT_TABLE_NAME + " (" + key + ");");
+		}
+	}
+	
+	// Computes the phonetic keys of patients cached before they existed.
+	private static void updatePhoneticKeys(SQLiteDatabase db) {
+		Cursor c = db.query(PATIENT_TABLE_NAME, new String[] { PatientSQLFormat._ID,
+				PatientSQLFormat.PATIENT_FIRSTNAME, PatientSQLFormat.PATIENT_LASTNAME }, 
+				null, null, null, null, null);
+		SQLiteStatement update = db.compileStatement("UPDATE " + PATIENT_TABLE_NAME + " SET "
+				+ PatientSQLFormat.FIRSTNAME_PHONETIC + "=?,"
+				+ PatientSQLFormat.LASTNAME_PHONETIC + "=? WHERE "
+				+ PatientSQLFormat._ID + "=?");
+		try {
+			while (c.moveToNext()) {
+				update.bindString(1, getPhoneticKey(c.getString(1)));
+				update.bindString(2, getPhoneticKey(c.getString(2)));
+				update.bindLong(3, c.getLong(0));
+				update.execute();
+			}
+		} finally {
+			c.close();
+			update.close();
+		}
 	}
 
 	static {
@@ -218,5 +372,8 @@ public class PatientProvider extends ContentProvider {
 		sPatientProjectionMap.put(PatientSQLFormat.PATIENT_LASTNAME, PatientSQLFormat.PATIENT_LASTNAME);
 		sPatientProjectionMap.put(PatientSQLFormat.PATIENT_DOB, PatientSQLFormat.PATIENT_DOB);
 		sPatientProjectionMap.put(PatientSQLFormat.PATIENT_GENDER, PatientSQLFormat.PATIENT_GENDER);
+		sPatientProjectionMap.put(PatientSQLFormat.SYNCED, PatientSQLFormat.SYNCED);
+		sPatientProjectionMap.put(PatientSQLFormat.FIRSTNAME_PHONETIC, PatientSQLFormat.FIRSTNAME_PHONETIC);
+		sPatientProjectionMap.put(PatientSQLFormat.LASTNAME_PHONETIC, PatientSQLFormat.LASTNAME_PHONETIC);
 	}
 }
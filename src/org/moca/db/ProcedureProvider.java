@@ -4,6 +4,7 @@ import java.util.HashMap;
 
 import org.moca.db.MocaDB.DatabaseHelper;
 import org.moca.db.MocaDB.ProcedureSQLFormat;
+import org.moca.procedure.CompiledProcedure;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
@@ -72,6 +73,11 @@ public class ProcedureProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
+        if (values.containsKey(ProcedureSQLFormat.PROCEDURE)) {
+            values = new ContentValues(values);
+            compileProcedure(values);
+        }
+        
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = 0; 
         
@@ -148,6 +154,7 @@ public class ProcedureProvider extends ContentProvider {
         if(values.containsKey(ProcedureSQLFormat.PROCEDURE) == false) {
             values.put(ProcedureSQLFormat.PROCEDURE, "");
         }
+        compileProcedure(values);
         
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long rowId = db.insert(PROCEDURE_TABLE_NAME, ProcedureSQLFormat.PROCEDURE, values);
@@ -180,6 +187,7 @@ public class ProcedureProvider extends ContentProvider {
                 + ProcedureSQLFormat.TITLE + " TEXT,"
                 + ProcedureSQLFormat.AUTHOR + " TEXT,"
                 + ProcedureSQLFormat.PROCEDURE + " TEXT,"
+                + ProcedureSQLFormat.COMPILED + " BLOB,"
                 + ProcedureSQLFormat.CREATED_DATE + " INTEGER,"
                 + ProcedureSQLFormat.MODIFIED_DATE + " INTEGER"
                 + ");");
@@ -191,6 +199,45 @@ public class ProcedureProvider extends ContentProvider {
         if (oldVersion == 1 && newVersion == 2) {
         	// Do nothing
         }
+        if (oldVersion < 8) {
+            // Procedures are stored compiled from version 8.
+            db.execSQL("ALTER TABLE " + PROCEDURE_TABLE_NAME + " ADD COLUMN "
+                    + ProcedureSQLFormat.COMPILED + " BLOB;");
+            compileProcedures(db);
+        }
+    }
+    
+    /**
+     * Stores the compiled form of the procedure being written alongside it,
+     * unless the writer supplied one. A procedure which cannot be compiled
+     * is stored without, and is parsed from XML when loaded.
+     */
+    private static void compileProcedure(ContentValues values) {
+        if (values.containsKey(ProcedureSQLFormat.COMPILED))
+            return;
+        String xml = values.getAsString(ProcedureSQLFormat.PROCEDURE);
+        byte[] compiled = TextUtils.isEmpty(xml) ? null : CompiledProcedure.compile(xml);
+        if (compiled != null)
+            values.put(ProcedureSQLFormat.COMPILED, compiled);
+        else
+            values.putNull(ProcedureSQLFormat.COMPILED);
+    }
+    
+    // Compiles the procedures stored before they were compiled on insert.
+    private static void compileProcedures(SQLiteDatabase db) {
+        Cursor c = db.query(PROCEDURE_TABLE_NAME, new String[] { ProcedureSQLFormat._ID,
+                ProcedureSQLFormat.PROCEDURE }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(ProcedureSQLFormat.PROCEDURE, c.getString(1));
+                compileProcedure(values);
+                values.remove(ProcedureSQLFormat.PROCEDURE);
+                db.update(PROCEDURE_TABLE_NAME, values, ProcedureSQLFormat._ID + "=" + c.getLong(0), null);
+            }
+        } finally {
+            c.close();
+        }
     }
 
     static {
@@ -203,6 +250,7 @@ public class ProcedureProvider extends ContentProvider {
         sProcedureProjectionMap.put(ProcedureSQLFormat.TITLE, ProcedureSQLFormat.TITLE);
         sProcedureProjectionMap.put(ProcedureSQLFormat.AUTHOR, ProcedureSQLFormat.AUTHOR);
         sProcedureProjectionMap.put(ProcedureSQLFormat.PROCEDURE, ProcedureSQLFormat.PROCEDURE);
+        sProcedureProjectionMap.put(ProcedureSQLFormat.COMPILED, ProcedureSQLFormat.COMPILED);
         sProcedureProjectionMap.put(ProcedureSQLFormat.CREATED_DATE, ProcedureSQLFormat.CREATED_DATE);
         sProcedureProjectionMap.put(ProcedureSQLFormat.MODIFIED_DATE, ProcedureSQLFormat.MODIFIED_DATE);
     }
@@ -3,6 +3,8 @@ package org.moca.db;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import org.moca.db.MocaDB.AnswerJournalSQLFormat;
+import org.moca.db.MocaDB.BinaryFileSQLFormat;
 import org.moca.db.MocaDB.DatabaseHelper;
 import org.moca.db.MocaDB.ImageSQLFormat;
 import org.moca.db.MocaDB.SavedProcedureSQLFormat;
@@ -42,13 +44,21 @@ public class SavedProcedureProvider extends ContentProvider {
         return true;
     }
     
-    private void deleteRelated(String savedProcedureId) {
+    private void deleteRelated(String savedProcedureId, String savedProcedureGuid) {
 		getContext().getContentResolver().delete(ImageSQLFormat.CONTENT_URI,
 				ImageSQLFormat.SAVED_PROCEDURE_ID + " = ?",
 				new String[] { savedProcedureId });
 		getContext().getContentResolver().delete(SoundSQLFormat.CONTENT_URI,
 				SoundSQLFormat.SAVED_PROCEDURE_ID + " = ?",
 				new String[] { savedProcedureId });
+		getContext().getContentResolver().delete(AnswerJournalSQLFormat.CONTENT_URI,
+				AnswerJournalSQLFormat.SAVED_PROCEDURE_ID + " = ?",
+				new String[] { savedProcedureId });
+		if (savedProcedureGuid != null) {
+			getContext().getContentResolver().delete(BinaryFileSQLFormat.CONTENT_URI,
+					BinaryFileSQLFormat.SAVED_PROCEDURE_GUID + " = ?",
+					new String[] { savedProcedureGuid });
+		}
 		// TODO notifications too?
 	}
 
@@ -115,12 +125,14 @@ public class SavedProcedureProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
         case SAVED_PROCEDURES:
         	
-        	Cursor c = query(SavedProcedureSQLFormat.CONTENT_URI, new String[] { SavedProcedureSQLFormat._ID }, selection, selectionArgs, null);
+        	Cursor c = query(SavedProcedureSQLFormat.CONTENT_URI, new String[] { SavedProcedureSQLFormat._ID, SavedProcedureSQLFormat.GUID }, selection, selectionArgs, null);
         	ArrayList<String> idList = new ArrayList<String>(c.getCount());
+        	ArrayList<String> guidList = new ArrayList<String>(c.getCount());
         	if(c.moveToFirst()) {
         		while(!c.isAfterLast()) {
         			String id = c.getString(c.getColumnIndex(SavedProcedureSQLFormat._ID));
         			idList.add(id);
+        			guidList.add(c.getString(c.getColumnIndex(SavedProcedureSQLFormat.GUID)));
         			c.moveToNext();
         		}
         	}
@@ -129,17 +141,23 @@ public class SavedProcedureProvider extends ContentProvider {
             count = db.delete(SAVED_PROCEDURE_TABLE_NAME, selection, selectionArgs);
 
             // Do this after so that SavedProcedures remain consistent, while everything else does not. 
-            for(String id : idList) {
-            	deleteRelated(id);
+            for(int i = 0; i < idList.size(); i++) {
+            	deleteRelated(idList.get(i), guidList.get(i));
             }
             
             break;
         case SAVED_PROCEDURE_ID:
         	String procedureId = uri.getPathSegments().get(1);
+        	// The binary files are kept by guid, so look it up before the row goes.
+        	String guid = null;
+        	Cursor cursor = query(uri, new String[] { SavedProcedureSQLFormat.GUID }, selection, selectionArgs, null);
+        	if(cursor.moveToFirst())
+        		guid = cursor.getString(0);
+        	cursor.deactivate();
             count = db.delete(SAVED_PROCEDURE_TABLE_NAME, SavedProcedureSQLFormat._ID + "=" + procedureId + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
 
             // Do this after so that SavedProcedures remain consistent, while everything else does not. 
-            deleteRelated(procedureId);
+            deleteRelated(procedureId, guid);
             
             break;
         default:
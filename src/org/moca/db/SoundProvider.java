@@ -279,6 +279,7 @@ public class SoundProvider extends ContentProvider {
 //                + SoundSQLFormat.FILE_SIZE + " INTEGER,"
                 + SoundSQLFormat.UPLOAD_PROGRESS + " INTEGER,"
                 + SoundSQLFormat.UPLOADED + " INTEGER,"
+                + SoundSQLFormat.CONTENT_HASH + " TEXT,"
                 + SoundSQLFormat.CREATED_DATE + " INTEGER,"
                 + SoundSQLFormat.MODIFIED_DATE + " INTEGER"
                 + ");");
@@ -287,8 +288,10 @@ public class SoundProvider extends ContentProvider {
     public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                 + newVersion);
-        if (oldVersion == 1 && newVersion == 2) {
-        	// Do nothing
+        if (oldVersion < 5) {
+            // The content hash is added in version 5.
+            db.execSQL("ALTER TABLE " + SOUND_TABLE_NAME + " ADD COLUMN "
+                    + SoundSQLFormat.CONTENT_HASH + " TEXT;");
         }
     }
 
@@ -306,6 +309,7 @@ public class SoundProvider extends ContentProvider {
 //        sSoundProjectionMap.put(SoundSQLFormat.FILE_VALID, SoundSQLFormat.FILE_VALID);
 //        sSoundProjectionMap.put(SoundSQLFormat.FILE_SIZE, SoundSQLFormat.FILE_SIZE);
         sSoundProjectionMap.put(SoundSQLFormat.UPLOADED, SoundSQLFormat.UPLOADED);
+        sSoundProjectionMap.put(SoundSQLFormat.CONTENT_HASH, SoundSQLFormat.CONTENT_HASH);
         sSoundProjectionMap.put(SoundSQLFormat.UPLOAD_PROGRESS, SoundSQLFormat.UPLOAD_PROGRESS);
         sSoundProjectionMap.put(SoundSQLFormat.CREATED_DATE, SoundSQLFormat.CREATED_DATE);
         sSoundProjectionMap.put(SoundSQLFormat.MODIFIED_DATE, SoundSQLFormat.MODIFIED_DATE);
@@ -0,0 +1,135 @@
+package org.moca.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.util.EncodingUtil;
+
+/**
+ * A form-urlencoded request body whose last parameter is a region of a file,
+ * Base64 encoded as it is written to the connection.
+ *
+ * This produces exactly the bytes PostMethod would send if the region were
+ * encoded with Base64 and added as an ordinary parameter, without holding
+ * the region, its encoding, and the String copy of the encoding in memory.
+ * The region is read twice: once to compute the content length and once
+ * when the request is written.
+ */
+public class Base64FormRequestEntity implements RequestEntity {
+	// Must be a multiple of 3 so that each block encodes without padding.
+	private static final int BLOCK_SIZE = 3 * 1024;
+
+	private final byte[] prefix;
+	private final FileRegionPartSource source;
+	private long contentLength = -1;
+
+	/**
+	 * @param params the ordinary form parameters, sent first
+	 * @param name the name of the parameter holding the encoded region
+	 * @param source the region of the file to encode
+	 * @param charset the charset used to encode the parameters
+	 */
+	public Base64FormRequestEntity(NameValuePair[] params, String name, FileRegionPartSource source, String charset) {
+		NameValuePair[] all = new NameValuePair[params.length + 1];
+		System.arraycopy(params, 0, all, 0, params.length);
+		// The value is appended by writeRequest.
+		all[params.length] = new NameValuePair(name, "");
+		this.prefix = EncodingUtil.getAsciiBytes(EncodingUtil.formUrlEncode(all, charset));
+		this.source = source;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public String getContentType() {
+		return PostMethod.FORM_URL_ENCODED_CONTENT_TYPE;
+	}
+
+	public long getContentLength() {
+		if (contentLength < 0) {
+			try {
+				contentLength = prefix.length + encodeRegion(null);
+			} catch (IOException e) {
+				// Falls back to a chunked request.
+				return -1;
+			}
+		}
+		return contentLength;
+	}
+
+	public void writeRequest(OutputStream out) throws IOException {
+		out.write(prefix);
+		encodeRegion(out);
+	}
+
+	/**
+	 * Base64 and then url encodes the region, writing the result to out if it
+	 * is not null.
+	 *
+	 * @return the number of bytes of encoded output
+	 */
+	private long encodeRegion(OutputStream out) throws IOException {
+		byte[] block = new byte[BLOCK_SIZE];
+		byte[] encoded = new byte[3 * (BLOCK_SIZE / 3 * 4)];
+		long total = 0;
+		InputStream is = source.createInputStream();
+		try {
+			int read;
+			while ((read = fill(is, block)) > 0) {
+				byte[] data = block;
+				if (read < block.length) {
+					data = new byte[read];
+					System.arraycopy(block, 0, data, 0, read);
+				}
+				byte[] base64 = Base64.encodeBase64(data);
+				int length = 0;
+				for (int i = 0; i < base64.length; i++) {
+					length = urlEncode(base64[i], encoded, length);
+				}
+				if (out != null)
+					out.write(encoded, 0, length);
+				total += length;
+			}
+		} finally {
+			is.close();
+		}
+		return total;
+	}
+
+	private static int fill(InputStream is, byte[] block) throws IOException {
+		int total = 0;
+		while (total < block.length) {
+			int read = is.read(block, total, block.length - total);
+			if (read < 0)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Url encodes a single Base64 character the same way URLCodec does.
+	 */
+	private static int urlEncode(byte b, byte[] dest, int pos) {
+		switch (b) {
+		case '+':
+			dest[pos++] = '%'; dest[pos++] = '2'; dest[pos++] = 'B';
+			break;
+		case '/':
+			dest[pos++] = '%'; dest[pos++] = '2'; dest[pos++] = 'F';
+			break;
+		case '=':
+			dest[pos++] = '%'; dest[pos++] = '3'; dest[pos++] = 'D';
+			break;
+		default:
+			dest[pos++] = b;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,117 @@
+package org.moca.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Checks that Base64FormRequestEntity sends exactly the body PostMethod
+ * sends when the region is Base64 encoded in memory and added with
+ * addParameter, as text-chunk uploads did before it.
+ *
+ * Regions start at offsets and have lengths which are and are not multiples
+ * of 3, span several encoding blocks, and include an empty region. Needs
+ * nothing from Android, so it also runs on a desktop JVM through main().
+ */
+public class Base64FormRequestEntityCheck {
+	public static final String FAILED = "FAILED";
+
+	private static final int FILE_BYTES = 10000;
+	private static final long SEED = 42;
+	// offset and length of each region checked
+	private static final int[][] REGIONS = new int[][] {
+		{ 0, 0 }, { 5, 0 }, { 0, 1 }, { 0, 2 }, { 0, 3 }, { 1, 4 }, { 2, 5 },
+		{ 3, 3071 }, { 0, 3072 }, { 7, 3073 }, { 4, 6144 }, { 1, 6145 },
+		{ 0, FILE_BYTES }, { 1, FILE_BYTES - 1 }, { FILE_BYTES - 2, 2 } };
+
+	/** The request body as PostMethod builds it from its parameters. */
+	private static class FormPostMethod extends PostMethod {
+		RequestEntity getFormEntity() {
+			return generateRequestEntity();
+		}
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param dir a directory to write a scratch file to
+	 * @return one line per region, starting with FAILED if the bodies differ
+	 */
+	public static List<String> run(File dir) throws IOException {
+		List<String> results = new ArrayList<String>();
+		byte[] data = new byte[FILE_BYTES];
+		new Random(SEED).nextBytes(data);
+		File file = File.createTempFile("base64check", ".bin", dir);
+		FileInputStream in = null;
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			for (int[] region : REGIONS)
+				results.add(check(channel, data, region[0], region[1]));
+		} finally {
+			if (in != null)
+				in.close();
+			file.delete();
+		}
+		return results;
+	}
+
+	private static String check(FileChannel channel, byte[] data, int offset, int length) throws IOException {
+		NameValuePair[] params = {
+				new NameValuePair("procedure_guid", "SP 1+2"),
+				new NameValuePair("element_id", "photo&1"),
+				new NameValuePair("byte_start", Integer.toString(offset)),
+		};
+
+		FormPostMethod old = new FormPostMethod();
+		old.addParameters(params);
+		byte[] region = new byte[length];
+		System.arraycopy(data, offset, region, 0, length);
+		old.addParameter(new NameValuePair("byte_data", new String(new Base64().encode(region))));
+		byte[] expected = write(old.getFormEntity());
+
+		FileRegionPartSource source = new FileRegionPartSource(channel, "file", offset, length);
+		RequestEntity entity = new Base64FormRequestEntity(params, "byte_data", source, old.getRequestCharSet());
+		byte[] actual = write(entity);
+
+		String where = "offset " + offset + " length " + length;
+		if (!Arrays.equals(expected, actual))
+			return FAILED + " " + where + ": " + actual.length + " bytes sent, " + expected.length + " expected";
+		if (entity.getContentLength() != expected.length)
+			return FAILED + " " + where + ": content length " + entity.getContentLength() + ", " + expected.length + " expected";
+		return "ok " + where + ": " + actual.length + " bytes";
+	}
+
+	private static byte[] write(RequestEntity entity) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeRequest(out);
+		return out.toByteArray();
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean failed = false;
+		for (String result : run(new File(System.getProperty("java.io.tmpdir")))) {
+			System.out.println(result);
+			failed |= result.startsWith(FAILED);
+		}
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,91 @@
+package org.moca.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+
+/**
+ * A PartSource which streams a region of an open file straight into the
+ * request body rather than copying the region into memory first. Memory use
+ * per chunk stays the same no matter how large the region is.
+ *
+ * The channel is owned by the caller and is not closed by this class. Only
+ * one stream created by a FileRegionPartSource should be read from a given
+ * channel at a time since they share the channel's position.
+ */
+public class FileRegionPartSource implements PartSource {
+	private final FileChannel channel;
+	private final String filename;
+	private final long offset;
+	private final long length;
+
+	/**
+	 * @param channel an open channel onto the file
+	 * @param filename the file name reported in the multipart header
+	 * @param offset position of the first byte of the region
+	 * @param length number of bytes in the region
+	 */
+	public FileRegionPartSource(FileChannel channel, String filename, long offset, long length) {
+		this.channel = channel;
+		this.filename = filename;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public InputStream createInputStream() throws IOException {
+		channel.position(offset);
+		return new RegionInputStream();
+	}
+
+	public String getFileName() {
+		return filename;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Reads from the channel's current position until the end of the region.
+	 * Closing it leaves the channel open.
+	 */
+	private class RegionInputStream extends InputStream {
+		private long remaining = length;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			return read < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			if (len > remaining)
+				len = (int)remaining;
+			int read = channel.read(ByteBuffer.wrap(b, off, len));
+			if (read > 0)
+				remaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return (int)remaining;
+		}
+
+		@Override
+		public void close() {
+			remaining = 0;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.moca.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.util.EncodingUtil;
+
+/**
+ * A form-urlencoded request body, optionally gzip compressed. A compressed
+ * body must be sent with a "Content-Encoding: gzip" header.
+ *
+ * The body is built up front since it is only used for the text endpoints,
+ * whose bodies are small, and the length of a compressed body is not known
+ * until it has been compressed.
+ */
+public class GzipFormRequestEntity implements RequestEntity {
+	private final byte[] body;
+	private final long uncompressedLength;
+
+	/**
+	 * @param params the form parameters
+	 * @param charset the charset used to encode the parameters
+	 * @param compress whether to gzip the body
+	 * @throws IOException if the body could not be compressed
+	 */
+	public GzipFormRequestEntity(NameValuePair[] params, String charset, boolean compress) throws IOException {
+		byte[] form = EncodingUtil.getAsciiBytes(EncodingUtil.formUrlEncode(params, charset));
+		uncompressedLength = form.length;
+		if (compress) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(form.length / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			gzip.write(form);
+			gzip.close();
+			body = bytes.toByteArray();
+		} else {
+			body = form;
+		}
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public String getContentType() {
+		return PostMethod.FORM_URL_ENCODED_CONTENT_TYPE;
+	}
+
+	public long getContentLength() {
+		return body.length;
+	}
+
+	/** @return the length of the body before compression */
+	public long getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	public void writeRequest(OutputStream out) throws IOException {
+		out.write(body);
+	}
+}
@@ -0,0 +1,577 @@
+package org.moca.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.moca.Constants;
+
+import android.util.Log;
+
+/**
+ * A stand-in for the Moca Dispatch Server which runs inside the app, on the
+ * loopback interface, so that the upload path can be exercised without a
+ * live MDS. Pass getUrl() to the MDSInterface methods which take an MDS url
+ * while it runs.
+ *
+ * It answers the endpoints MDSInterface uses with MDSResult dictionaries:
+ * <ul>
+ * <li>procedure/submit: accepts the responses of an encounter</li>
+ * <li>binarychunk/submit and textchunk/submit: accept a chunk of a binary,
+ * as a multipart file or Base64 text, if it continues what has been
+ * committed so far</li>
+ * <li>binarychunk/status: the number of bytes of a binary committed</li>
+ * <li>binary/hashes: no content is ever already stored</li>
+ * <li>patient/list and patient/&lt;id&gt;: the patients given to
+ * addPatient</li>
+ * <li>eventlog/submit: accepts the events</li>
+ * <li>validate/credentials: accepts any credentials</li>
+ * </ul>
+ * Gzip compressed requests are accepted. Every response is held back by the
+ * configured latency, to emulate a slow link, and the bytes received are
+ * counted as they arrive on the wire. Chunks which repeat bytes already
+ * committed are counted separately, and setAbortAt() cuts uploads off part
+ * way, so resuming an upload can be checked.
+ *
+ * Nothing is stored beyond what is needed to answer later requests, and all
+ * of it is lost on stop().
+ */
+public class LocalMDS {
+	public static final String TAG = LocalMDS.class.toString();
+
+	private static final String PATH = "/mds";
+	private static final String SUCCESS_STRING = "SUCCESS";
+	private static final String FAILURE_STRING = "FAILURE";
+	// the separator of patient list records, see PatientListReader
+	private static final String RECORD_SEPARATOR = "##";
+	private static final int MAX_HEADER_LINE = 8192;
+
+	private ServerSocket serverSocket = null;
+	private ExecutorService connections = null;
+	private final Set<Socket> sockets = new HashSet<Socket>();
+	private volatile int latency = 0;
+	// bytes of a binary after which chunks are not answered, 0 for never
+	private volatile int abortAt = 0;
+	// The response to a request is not sent, the connection is closed.
+	private static final JSONObject DROP = new JSONObject();
+
+	// patient id to patient list record
+	private final Map<String,String> patients = new LinkedHashMap<String,String>();
+	// "procedure guid:binary guid" to the number of bytes committed
+	private final Map<String,Integer> committed = new HashMap<String,Integer>();
+	private final Set<String> encounters = new HashSet<String>();
+
+	private long bytesReceived = 0;
+	private int requests = 0;
+	private int binariesReceived = 0;
+	private int eventsReceived = 0;
+	private long chunkBytesReceived = 0;
+	private long bytesResent = 0;
+
+	/**
+	 * Starts listening on a free port of the loopback interface.
+	 *
+	 * @throws IOException if no port could be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (serverSocket != null)
+			return;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		connections = Executors.newCachedThreadPool();
+		final ServerSocket listening = serverSocket;
+		final ExecutorService handlers = connections;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = listening.accept();
+					} catch (IOException e) {
+						// closed by stop()
+						return;
+					}
+					synchronized (LocalMDS.this) {
+						sockets.add(socket);
+					}
+					handlers.execute(new Runnable() {
+						public void run() {
+							serve(socket);
+						}
+					});
+				}
+			}
+		}, "LocalMDS");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Log.i(TAG, "Listening at " + getUrl());
+	}
+
+	/**
+	 * Stops listening and closes the open connections.
+	 */
+	public synchronized void stop() {
+		if (serverSocket == null)
+			return;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			Log.w(TAG, "While closing: " + e.toString());
+		}
+		// Pooled client connections would otherwise keep their handlers
+		// waiting for another request.
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+		sockets.clear();
+		connections.shutdownNow();
+		serverSocket = null;
+		connections = null;
+		Log.i(TAG, "Stopped after " + requests + " requests, " + bytesReceived + " bytes received.");
+	}
+
+	/** @return the url to use as the MDS url, while started */
+	public synchronized String getUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + PATH;
+	}
+
+	/** @param millis the time to hold back each response for */
+	public void setLatency(int millis) {
+		latency = Math.max(0, millis);
+	}
+
+	/**
+	 * Cuts off uploads of every binary part way, as a lost connection would.
+	 * The chunk which brings a binary to the given size is committed but not
+	 * answered, and later chunks of that binary are neither committed nor
+	 * answered.
+	 *
+	 * @param bytes the size after which binaries are cut off, or 0 to answer
+	 *            every chunk again
+	 */
+	public void setAbortAt(int bytes) {
+		abortAt = Math.max(0, bytes);
+	}
+
+	/**
+	 * Adds a patient to the patient list.
+	 *
+	 * @param id the patient id
+	 * @param record the patient list record, as described in PatientListReader
+	 */
+	public synchronized void addPatient(String id, String record) {
+		patients.put(id, record);
+	}
+
+	/** @return the bytes of every request received, headers included */
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/** @return the number of requests answered */
+	public synchronized int getRequests() {
+		return requests;
+	}
+
+	/** @return the number of distinct encounters whose responses were accepted */
+	public synchronized int getEncountersReceived() {
+		return encounters.size();
+	}
+
+	/** @return the number of binaries committed in full */
+	public synchronized int getBinariesReceived() {
+		return binariesReceived;
+	}
+
+	/** @return the number of events accepted */
+	public synchronized int getEventsReceived() {
+		return eventsReceived;
+	}
+
+	/** @return the bytes of binary data received in chunks, decoded */
+	public synchronized long getChunkBytesReceived() {
+		return chunkBytesReceived;
+	}
+
+	/** @return the bytes received in chunks which had already been committed */
+	public synchronized long getBytesResent() {
+		return bytesResent;
+	}
+
+	/** @return the bytes committed of every binary */
+	public synchronized long getBytesCommitted() {
+		long bytes = 0;
+		for (int offset : committed.values())
+			bytes += offset;
+		return bytes;
+	}
+
+	/**
+	 * Answers requests on a connection until the client closes it or asks
+	 * for it to be closed.
+	 */
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			boolean keepAlive = true;
+			while (keepAlive) {
+				String requestLine = readLine(in);
+				if (requestLine == null)
+					break;
+				if (requestLine.length() == 0)
+					continue;
+				long bytes = requestLine.length() + 2;
+
+				Map<String,String> headers = new HashMap<String,String>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					bytes += line.length() + 2;
+					int colon = line.indexOf(':');
+					if (colon > 0)
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+				bytes += 2;
+
+				String[] request = requestLine.split(" ");
+				if (request.length < 3)
+					break;
+				String version = request[2];
+				String connection = headers.get("connection");
+				keepAlive = "HTTP/1.1".equals(version) ? !"close".equalsIgnoreCase(connection)
+						: "keep-alive".equalsIgnoreCase(connection);
+
+				byte[] body = readBody(in, headers);
+				bytes += body.length;
+
+				JSONObject result;
+				int status = 200;
+				try {
+					if ("gzip".equalsIgnoreCase(headers.get("content-encoding")))
+						body = gunzip(body);
+					result = handle(request[1], parseForm(headers.get("content-type"), body));
+					if (result == null) {
+						status = 404;
+						result = result(false, "No such endpoint: " + request[1]);
+					}
+				} catch (Exception e) {
+					Log.e(TAG, "Bad request to " + request[1] + ": " + e.toString());
+					result = result(false, e.toString());
+				}
+
+				synchronized (this) {
+					bytesReceived += bytes;
+					requests++;
+				}
+				if (result == DROP)
+					break;
+
+				if (latency > 0) {
+					try {
+						Thread.sleep(latency);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+
+				byte[] response = result.toString().getBytes("UTF-8");
+				String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Not Found") + "\r\n"
+					+ "Content-Type: application/json; charset=utf-8\r\n"
+					+ "Content-Length: " + response.length + "\r\n"
+					+ (keepAlive ? "" : "Connection: close\r\n")
+					+ "\r\n";
+				out.write(head.getBytes("ISO-8859-1"));
+				out.write(response);
+				out.flush();
+			}
+		} catch (SocketException e) {
+			// closed by the client or by stop()
+		} catch (IOException e) {
+			Log.w(TAG, "Connection failed: " + e.toString());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			synchronized (this) {
+				sockets.remove(socket);
+			}
+		}
+	}
+
+	/**
+	 * @param path the request path
+	 * @param params the form parameters of the request
+	 * @return the MDSResult dictionary to answer with, or null if there is
+	 *         no such endpoint
+	 */
+	private JSONObject handle(String path, Map<String,String> params) throws JSONException {
+		int endpoint = path.indexOf("/json/");
+		if (endpoint < 0)
+			return null;
+		path = path.substring(endpoint);
+
+		if (path.equals(Constants.PROCEDURE_SUBMIT_PATTERN)) {
+			String guid = params.get("savedproc_guid");
+			String responses = params.get("responses");
+			if (guid == null || responses == null)
+				return result(false, "Missing savedproc_guid or responses");
+			new JSONObject(responses);
+			synchronized (this) {
+				encounters.add(guid);
+			}
+			return result(true, "");
+		} else if (path.equals(Constants.BINARYCHUNK_SUBMIT_PATTERN)) {
+			return submitChunk(params, false);
+		} else if (path.equals(Constants.BINARYCHUNK_HACK_SUBMIT_PATTERN)) {
+			return submitChunk(params, true);
+		} else if (path.equals(Constants.BINARYCHUNK_STATUS_PATTERN)) {
+			String key = params.get("procedure_guid") + ":" + params.get("binary_guid");
+			Integer offset;
+			synchronized (this) {
+				offset = committed.get(key);
+			}
+			return result(true, Integer.toString(offset != null ? offset : 0));
+		} else if (path.equals(Constants.BINARY_HASH_PATTERN)) {
+			return result(true, new JSONArray().toString());
+		} else if (path.equals(Constants.DATABASE_DOWNLOAD_PATTERN)) {
+			StringBuilder list = new StringBuilder();
+			synchronized (this) {
+				for (String record : patients.values()) {
+					if (list.length() > 0)
+						list.append(RECORD_SEPARATOR);
+					list.append(record);
+				}
+			}
+			return result(true, list.toString());
+		} else if (path.equals(Constants.EVENTLOG_SUBMIT_PATTERN)) {
+			String events = params.get("events");
+			if (events == null)
+				return result(false, "Missing events");
+			int count = new JSONArray(events).length();
+			synchronized (this) {
+				eventsReceived += count;
+			}
+			return result(true, "Received " + count + " events");
+		} else if (path.equals(Constants.VALIDATE_CREDENTIALS_PATTERN)) {
+			return result(true, "");
+		} else if (path.startsWith(Constants.USERINFO_DOWNLOAD_PATTERN) && path.endsWith("/")) {
+			String id = path.substring(Constants.USERINFO_DOWNLOAD_PATTERN.length(), path.length() - 1);
+			String record;
+			synchronized (this) {
+				record = patients.get(id);
+			}
+			return result(true, record != null ? record : "");
+		}
+		return null;
+	}
+
+	/**
+	 * Commits a chunk of a binary if it starts at or before the end of what
+	 * has been committed so far, as the MDS does.
+	 */
+	private JSONObject submitChunk(Map<String,String> params, boolean encoded) {
+		String data = params.get("byte_data");
+		if (data == null)
+			return result(false, "Missing byte_data");
+		int start, end, size;
+		try {
+			start = Integer.parseInt(params.get("byte_start"));
+			end = Integer.parseInt(params.get("byte_end"));
+			size = Integer.parseInt(params.get("file_size"));
+		} catch (NumberFormatException e) {
+			return result(false, "Bad byte_start, byte_end or file_size");
+		}
+		int length;
+		try {
+			length = encoded ? Base64.decodeBase64(data.getBytes("ISO-8859-1")).length : data.length();
+		} catch (UnsupportedEncodingException e) {
+			return result(false, e.toString());
+		}
+		if (start < 0 || end > size || end - start != length)
+			return result(false, "Chunk " + start + "-" + end + " has " + length + " bytes");
+
+		String key = params.get("procedure_guid") + ":" + params.get("binary_guid");
+		int limit = abortAt;
+		synchronized (this) {
+			Integer offset = committed.get(key);
+			int current = offset != null ? offset : 0;
+			chunkBytesReceived += length;
+			if (start < current)
+				bytesResent += Math.min(end, current) - start;
+			if (limit > 0 && current >= limit)
+				return DROP;
+			if (start > current)
+				return result(false, "Chunk starts at " + start + ", only " + current + " bytes committed");
+			if (end > current) {
+				committed.put(key, end);
+				if (end == size)
+					binariesReceived++;
+			}
+			if (limit > 0 && end >= limit)
+				return DROP;
+		}
+		return result(true, "");
+	}
+
+	private static JSONObject result(boolean success, String data) {
+		JSONObject result = new JSONObject();
+		try {
+			result.put("status", success ? SUCCESS_STRING : FAILURE_STRING);
+			result.put("code", "");
+			result.put("data", data);
+		} catch (JSONException e) {
+			// only thrown for null keys
+		}
+		return result;
+	}
+
+	/**
+	 * Reads a line ending in CRLF or LF, without the line ending.
+	 *
+	 * @return the line, or null at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+			if (line.length() >= MAX_HEADER_LINE)
+				throw new IOException("Header line too long");
+			line.append((char)b);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+
+	private static byte[] readBody(InputStream in, Map<String,String> headers) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+			while (true) {
+				String line = readLine(in);
+				if (line == null)
+					throw new IOException("Request body ended early");
+				int extension = line.indexOf(';');
+				int length = Integer.parseInt((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+				if (length == 0) {
+					// trailers, up to the empty line
+					while ((line = readLine(in)) != null && line.length() > 0)
+						;
+					break;
+				}
+				copy(in, body, length);
+				readLine(in);
+			}
+		} else if (headers.containsKey("content-length")) {
+			copy(in, body, Integer.parseInt(headers.get("content-length")));
+		}
+		return body.toByteArray();
+	}
+
+	private static void copy(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+		byte[] buffer = new byte[4096];
+		while (length > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, length));
+			if (read < 0)
+				throw new IOException("Request body ended early");
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+
+	private static byte[] gunzip(byte[] body) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses a urlencoded or multipart form. Multipart values are returned as
+	 * ISO-8859-1 strings, so that binary parts keep one char per byte.
+	 */
+	private static Map<String,String> parseForm(String contentType, byte[] body) throws IOException {
+		Map<String,String> params = new HashMap<String,String>();
+		if (contentType == null)
+			return params;
+
+		String charset = "ISO-8859-1";
+		String boundary = null;
+		for (String parameter : contentType.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.startsWith("charset="))
+				charset = parameter.substring("charset=".length());
+			else if (parameter.startsWith("boundary="))
+				boundary = parameter.substring("boundary=".length());
+		}
+
+		String form = new String(body, "ISO-8859-1");
+		if (contentType.startsWith("multipart/form-data") && boundary != null) {
+			String delimiter = "--" + boundary;
+			int part = form.indexOf(delimiter);
+			while (part >= 0) {
+				int headersStart = part + delimiter.length();
+				if (form.startsWith("--", headersStart))
+					break;
+				int headersEnd = form.indexOf("\r\n\r\n", headersStart);
+				int next = form.indexOf("\r\n" + delimiter, headersEnd);
+				if (headersEnd < 0 || next < 0)
+					throw new IOException("Malformed multipart body");
+				String name = partName(form.substring(headersStart, headersEnd));
+				if (name != null)
+					params.put(name, form.substring(headersEnd + 4, next));
+				part = next + 2;
+			}
+		} else if (contentType.startsWith("application/x-www-form-urlencoded")) {
+			for (String pair : form.split("&")) {
+				int equals = pair.indexOf('=');
+				if (equals < 0)
+					continue;
+				params.put(URLDecoder.decode(pair.substring(0, equals), charset),
+						URLDecoder.decode(pair.substring(equals + 1), charset));
+			}
+		}
+		return params;
+	}
+
+	private static String partName(String headers) {
+		// not the filename parameter, which follows it
+		int name = headers.indexOf(" name=\"");
+		if (name < 0)
+			return null;
+		name += " name=\"".length();
+		int end = headers.indexOf('"', name);
+		return end < 0 ? null : headers.substring(name, end);
+	}
+}
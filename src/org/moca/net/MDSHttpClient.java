@@ -0,0 +1,389 @@
+package org.moca.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.moca.Constants;
+import org.moca.db.EventDAO;
+import org.moca.db.MocaDB.EventSQLFormat.EventType;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Process-wide HttpClient shared by every call in MDSInterface.
+ *
+ * Connections to the MDS are kept alive in a pool so that consecutive posts
+ * (in particular the chunks of a binary upload) do not pay for a new DNS
+ * lookup and TCP handshake each time. The proxy configuration is read from
+ * the preferences once and only rebuilt when the proxy settings change.
+ * Requests to the loopback interface, e.g. to a LocalMDS, never go through
+ * the proxy.
+ *
+ * Requests made through execute() get connect, read and overall deadlines
+ * from a running estimate of the round trip time and throughput to the MDS,
+ * so a dead link fails in seconds rather than waiting for the TCP timeout.
+ * The deadline and the round trip measurement start once the request has a
+ * pooled connection, so time spent queued behind other uploads for one does
+ * not count against the link.
+ */
+public class MDSHttpClient {
+	public static final String TAG = MDSHttpClient.class.toString();
+
+	static final int MAX_CONNECTIONS_PER_HOST = 4;
+	private static final int MAX_TOTAL_CONNECTIONS = 8;
+
+	private static HttpClient client = null;
+	private static CountingConnectionManager connectionManager = null;
+
+	// Set whenever the proxy preferences change so the host configuration is
+	// rebuilt on the next call to getClient().
+	private static boolean hostConfigurationStale = true;
+
+	private static int connectionsOpened = 0;
+	private static int connectionsReused = 0;
+	private static long bytesSent = 0;
+
+	// Set once the MDS refuses a compressed request, until the MDS changes.
+	private static boolean compressionRejected = false;
+	private static long bytesSavedByCompression = 0;
+
+	// Estimates per host, so that requests to another MDS, e.g. a LocalMDS,
+	// do not skew those to the MDS in the preferences.
+	private static final Map<String, RttEstimator> estimators = new HashMap<String, RttEstimator>();
+	// Aborts requests which run past their deadline.
+	private static final Timer deadlineTimer = new Timer(true);
+	// The request execute() is running on this thread, until it has a
+	// connection.
+	private static final ThreadLocal<PendingRequest> pendingRequest = new ThreadLocal<PendingRequest>();
+
+	// SharedPreferences only keeps a weak reference to its listeners, so we
+	// hold on to it here.
+	private static final OnSharedPreferenceChangeListener proxyListener = new OnSharedPreferenceChangeListener() {
+		public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+			if (Constants.PREFERENCE_PROXY_HOST.equals(key)
+					|| Constants.PREFERENCE_PROXY_PORT.equals(key)) {
+				synchronized (MDSHttpClient.class) {
+					hostConfigurationStale = true;
+				}
+			} else if (Constants.PREFERENCE_MDS_URL.equals(key)
+					|| Constants.PREFERENCE_UPLOAD_COMPRESSION.equals(key)) {
+				synchronized (MDSHttpClient.class) {
+					compressionRejected = false;
+				}
+			}
+		}
+	};
+
+	/**
+	 * Connection manager which records whether each connection it hands out
+	 * is already open (reused) or will have to be opened by the caller. A
+	 * connection handed to a request made through execute() gets that
+	 * request's connect timeout, and the request's deadline starts.
+	 */
+	private static class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+		@Override
+		public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+			throws ConnectionPoolTimeoutException
+		{
+			HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+			synchronized (MDSHttpClient.class) {
+				if (connection.isOpen()) {
+					connectionsReused++;
+				} else {
+					connectionsOpened++;
+				}
+			}
+			PendingRequest request = pendingRequest.get();
+			if (request != null) {
+				pendingRequest.remove();
+				// Each pooled connection has its own parameters, which
+				// default to the manager's, so this does not reach the
+				// requests on other connections.
+				connection.getParams().setConnectionTimeout((int)request.timeout);
+				request.start = System.currentTimeMillis();
+				deadlineTimer.schedule(request.task, request.deadline);
+			}
+			return connection;
+		}
+	}
+
+	/**
+	 * A request made through execute(), waiting for a pooled connection.
+	 */
+	private static class PendingRequest {
+		final long timeout;
+		final long deadline;
+		final DeadlineTask task;
+		// when the request got its connection, 0 until then
+		long start = 0;
+
+		PendingRequest(long timeout, long deadline, DeadlineTask task) {
+			this.timeout = timeout;
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * Aborts a request if it is still running when the task fires.
+	 */
+	private static class DeadlineTask extends TimerTask {
+		private final HttpMethod method;
+		private volatile boolean expired = false;
+
+		DeadlineTask(HttpMethod method) {
+			this.method = method;
+		}
+
+		@Override
+		public void run() {
+			expired = true;
+			method.abort();
+		}
+	}
+
+	/**
+	 * Returns the shared client, creating it on first use. Callers must
+	 * release their method's connection when done with it so that it is
+	 * returned to the pool.
+	 *
+	 * @param c current context
+	 * @return the shared HttpClient
+	 */
+	public static synchronized HttpClient getClient(Context c) {
+		if (client == null) {
+			connectionManager = new CountingConnectionManager();
+			HttpConnectionManagerParams params = connectionManager.getParams();
+			params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+			params.setMaxTotalConnections(MAX_TOTAL_CONNECTIONS);
+			params.setStaleCheckingEnabled(true);
+			client = new HttpClient(connectionManager);
+
+			PreferenceManager.getDefaultSharedPreferences(c)
+				.registerOnSharedPreferenceChangeListener(proxyListener);
+			hostConfigurationStale = true;
+		}
+
+		if (hostConfigurationStale) {
+			client.setHostConfiguration(buildHostConfiguration(c));
+			hostConfigurationStale = false;
+		}
+		return client;
+	}
+
+	private static HostConfiguration buildHostConfiguration(Context c) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
+		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
+		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
+		int proxyPort = 0;
+		try {
+			if (!"".equals(sProxyPort))
+				proxyPort = Integer.parseInt(sProxyPort);
+		} catch(NumberFormatException e) {
+			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
+		}
+
+		HostConfiguration hc = new HostConfiguration();
+		// If there's a proxy enabled, use it.
+		if (!"".equals(proxyHost) && proxyPort != 0) {
+			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
+			hc.setProxy(proxyHost, proxyPort);
+		} else {
+			Log.i(TAG, "Not using a proxy, " + proxyHost + ":"+ proxyPort);
+		}
+		return hc;
+	}
+
+	/**
+	 * Executes a request with the shared client, bounded by timeouts derived
+	 * from the measured round trip time and throughput to its host. The
+	 * timeouts start once the request has a pooled connection. The response
+	 * headers have been read when this returns; reading the body is bounded
+	 * by the read timeout. Timeouts are recorded as NET_REQUEST_TIMEOUT
+	 * events.
+	 *
+	 * @param c current context
+	 * @param method the request to execute
+	 * @param bytes the approximate size of the request body
+	 * @return the HTTP status code
+	 * @throws IOException if the request failed or timed out
+	 */
+	public static int execute(Context c, HttpMethod method, long bytes) throws IOException {
+		HttpClient client;
+		HostConfiguration hostConfiguration = null;
+		RttEstimator estimator;
+		long timeout;
+		long deadline;
+		synchronized (MDSHttpClient.class) {
+			client = getClient(c);
+			String host = method.getURI().getHost();
+			if (isLoopback(host))
+				hostConfiguration = new HostConfiguration();
+			estimator = getEstimator(host);
+			timeout = estimator.getTimeout();
+			deadline = estimator.getDeadline(bytes, getDefaultThroughput(c));
+		}
+		method.getParams().setSoTimeout((int)timeout);
+		Log.i(TAG, "Request to " + method.getPath() + " of " + bytes + " bytes, timeout " + timeout + "ms, deadline " + deadline + "ms");
+
+		DeadlineTask task = new DeadlineTask(method);
+		PendingRequest request = new PendingRequest(timeout, deadline, task);
+		pendingRequest.set(request);
+		try {
+			// Without a proxy for loopback requests; the host is taken from
+			// the method's url either way.
+			int status = client.executeMethod(hostConfiguration, method);
+			estimator.onExchange(bytes, System.currentTimeMillis() - request.start);
+			return status;
+		} catch (IOException e) {
+			String kind = null;
+			if (task.expired)
+				kind = "deadline";
+			else if (e instanceof ConnectTimeoutException)
+				kind = "connect";
+			else if (e instanceof SocketTimeoutException)
+				kind = "read";
+			if (kind == null)
+				throw e;
+			onTimeout(c, method, estimator, kind, bytes, task.expired ? deadline : timeout);
+			if (task.expired)
+				throw new InterruptedIOException("Request deadline of " + deadline + "ms exceeded");
+			throw e;
+		} catch (IllegalStateException e) {
+			// A method aborted after it got a connection but before it was
+			// sent refuses to execute.
+			if (!task.expired)
+				throw e;
+			onTimeout(c, method, estimator, "deadline", bytes, deadline);
+			throw new InterruptedIOException("Request deadline of " + deadline + "ms exceeded");
+		} finally {
+			pendingRequest.remove();
+			task.cancel();
+		}
+	}
+
+	/** @return true if host names the loopback interface */
+	private static boolean isLoopback(String host) {
+		return "127.0.0.1".equals(host) || "localhost".equalsIgnoreCase(host)
+			|| "::1".equals(host) || "[::1]".equals(host);
+	}
+
+	// Call while holding the class lock.
+	private static RttEstimator getEstimator(String host) {
+		RttEstimator estimator = estimators.get(host);
+		if (estimator == null) {
+			estimator = new RttEstimator();
+			estimators.put(host, estimator);
+		}
+		return estimator;
+	}
+
+	private static void onTimeout(Context c, HttpMethod method, RttEstimator estimator, String kind, long bytes, long limit) {
+		estimator.onTimeout();
+		String value = kind + " timeout after " + limit + "ms: " + method.getPath()
+			+ " " + bytes + " bytes, srtt " + (long)estimator.getRoundTripTime()
+			+ "ms, throughput " + estimator.getThroughput() + "B/ms";
+		Log.w(TAG, value);
+		try {
+			EventDAO.registerEvent(c, EventType.NET_REQUEST_TIMEOUT, value);
+		} catch (Exception e) {
+			Log.e(TAG, "Could not record timeout event: " + e.toString());
+		}
+	}
+
+	/**
+	 * Throughput in bytes/msec to assume before it has been measured, from
+	 * the estimated network bandwidth setting.
+	 */
+	private static double getDefaultThroughput(Context c) {
+		String sBandwidth = PreferenceManager.getDefaultSharedPreferences(c).getString("s_network_bandwidth", "");
+		float bandwidth = Constants.ESTIMATED_NETWORK_BANDWIDTH;
+		try {
+			bandwidth = Float.parseFloat(sBandwidth);
+		} catch (NumberFormatException e) {
+		}
+		return bandwidth / 1000.0;
+	}
+
+	/**
+	 * Closes pooled connections which have been idle for longer than the
+	 * given time.
+	 *
+	 * @param idleTimeout idle time in milliseconds
+	 */
+	public static synchronized void closeIdleConnections(long idleTimeout) {
+		if (connectionManager != null)
+			connectionManager.closeIdleConnections(idleTimeout);
+	}
+
+	/** @return the number of connections which had to be opened */
+	public static synchronized int getConnectionsOpened() {
+		return connectionsOpened;
+	}
+
+	/** @return the number of requests which reused a pooled connection */
+	public static synchronized int getConnectionsReused() {
+		return connectionsReused;
+	}
+
+	/** Records bytes of procedure data accepted by the MDS. */
+	public static synchronized void recordBytesSent(long bytes) {
+		bytesSent += bytes;
+	}
+
+	/** @return the bytes of procedure data accepted by the MDS so far */
+	public static synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @param c current context
+	 * @return true if text request bodies should be gzip compressed
+	 */
+	public static synchronized boolean isCompressionEnabled(Context c) {
+		// makes sure the listener resetting compressionRejected is registered
+		getClient(c);
+		return !compressionRejected && PreferenceManager.getDefaultSharedPreferences(c)
+			.getBoolean(Constants.PREFERENCE_UPLOAD_COMPRESSION, false);
+	}
+
+	/** Stops compressing requests after the MDS refused a compressed one. */
+	public static synchronized void onCompressionRejected() {
+		Log.w(TAG, "MDS does not accept compressed requests, no longer compressing.");
+		compressionRejected = true;
+	}
+
+	/**
+	 * Records the effect of compressing a request body.
+	 *
+	 * @param uncompressed the length of the body before compression
+	 * @param compressed the length of the body as sent
+	 */
+	public static synchronized void recordCompression(long uncompressed, long compressed) {
+		bytesSavedByCompression += uncompressed - compressed;
+		Log.i(TAG, "Compressed request from " + uncompressed + " to " + compressed
+			+ " bytes, saved " + (uncompressed - compressed) + ", " + bytesSavedByCompression + " in total");
+	}
+
+	/** @return the bytes saved by compressing requests so far */
+	public static synchronized long getBytesSavedByCompression() {
+		return bytesSavedByCompression;
+	}
+}
@@ -1,48 +1,58 @@
 package org.moca.net;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
-import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
-import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.moca.Constants;
+import org.moca.db.AnswerJournalDAO;
+import org.moca.db.BinaryFileDAO;
 import org.moca.db.Event;
+import org.moca.db.MocaDB.BinaryFileSQLFormat;
 import org.moca.db.MocaDB.ImageSQLFormat;
 import org.moca.db.MocaDB.ProcedureSQLFormat;
 import org.moca.db.MocaDB.SavedProcedureSQLFormat;
 import org.moca.db.MocaDB.SoundSQLFormat;
+import org.moca.procedure.BinaryAnswer;
 import org.moca.procedure.Procedure;
 import org.moca.procedure.ProcedureElement;
 import org.moca.procedure.ProcedureParseException;
 import org.moca.procedure.ProcedureElement.ElementType;
-import org.moca.util.MocaUtil;
+import org.moca.util.PatientCache;
 import org.moca.util.UserDatabase;
 import org.xml.sax.SAXException;
 
@@ -53,6 +63,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -116,6 +127,14 @@ public class MDSInterface {
 		return mdsURL + Constants.BINARYCHUNK_HACK_SUBMIT_PATTERN;
 	}
 
+	private static String constructBinaryChunkStatusURL(String mdsURL) {
+		return mdsURL + Constants.BINARYCHUNK_STATUS_PATTERN;
+	}
+
+	private static String constructBinaryHashURL(String mdsURL) {
+		return mdsURL + Constants.BINARY_HASH_PATTERN;
+	}
+
 	private static String constructDatabaseDownloadURL(String mdsURL) {
 		return mdsURL + Constants.DATABASE_DOWNLOAD_PATTERN;
 	}
@@ -135,6 +154,13 @@ public class MDSInterface {
 		return mdsUrl;
 	}
 
+	/** @return the url of the MDS in the preferences */
+	private static String getMDSUrl(Context c) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
+		return checkMDSUrl(preferences.getString(Constants.PREFERENCE_MDS_URL,
+				Constants.DEFAULT_DISPATCH_SERVER));
+	}
+
 
 	/**
 	 * Posts the text responses from a procedure to the Moca Dispatch Server.selection
@@ -145,66 +171,28 @@ public class MDSInterface {
 	 * 
 	 * @return true if upload succeeds, otherwise false
 	 */
-	private static boolean postResponses(Context c, String savedProcedureGuid, String jsonResponses) {
+	private static boolean postResponses(Context c, String mdsURL, String savedProcedureGuid, String jsonResponses) {
 		boolean result = false;
 
 		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		mdsURL = checkMDSUrl(mdsURL);
 		String phoneId = preferences.getString("s_phone_name", Constants.PHONE_ID);
 		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String password = preferences.getString(Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String sBandwidth = preferences.getString("s_network_bandwidth", "");
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
-
-		float bandwidth = Constants.ESTIMATED_NETWORK_BANDWIDTH;
-		try{
-			bandwidth = Float.parseFloat(sBandwidth);
-		} catch(NumberFormatException e) {
-
-		}
-
-
-		// Estimate bytes of this request.
-		int bytes = jsonResponses.length() + savedProcedureGuid.length()
-		+ "0".length() + "procedure_guid".length()
-		+ "savedproc_guid".length() + "phone".length()
-		+ "username".length() + "password".length()
-		+ "responses".length() + username.length()
-		+ password.length() + phoneId.length();
-
-		int timeout = Constants.getTimeoutForBandwidth(bandwidth, bytes);
-		Log.i(TAG, "Setting timeout to " + timeout + " for an estimated " + bytes + " byte upload.");
-
-		PostMethod post = new PostMethod(constructProcedureSubmitURL(mdsURL));
-		post.addParameter("savedproc_guid", savedProcedureGuid);
-		post.addParameter("procedure_guid", Integer.toString(0));
-		post.addParameter("phone", phoneId);
-		post.addParameter("username", username);
-		post.addParameter("password", password);
-		post.addParameter("responses", jsonResponses);
 
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
+		NameValuePair[] params = {
+				new NameValuePair("savedproc_guid", savedProcedureGuid),
+				new NameValuePair("procedure_guid", Integer.toString(0)),
+				new NameValuePair("phone", phoneId),
+				new NameValuePair("username", username),
+				new NameValuePair("password", password),
+				new NameValuePair("responses", jsonResponses),
+		};
 
+		PostMethod post = null;
 		try {
-			int status = client.executeMethod(post); 
+			post = postText(c, constructProcedureSubmitURL(mdsURL), params);
+			int status = post.getStatusCode();
+			long bytes = post.getRequestEntity().getContentLength();
 			Log.i(TAG, "postResponses got response code " +  status);
 
 			char buf[] = new char[20560];
@@ -217,6 +205,8 @@ public class MDSInterface {
 
 			result = response.succeeded();
 			Log.i(TAG, "MDS reports " + (result ? "success" : "failure") + " for procedure text for " + savedProcedureGuid);
+			if (result)
+				MDSHttpClient.recordBytesSent(bytes);
 
 		} catch (IOException e1) {
 			Log.e(TAG, e1.toString());
@@ -225,35 +215,61 @@ public class MDSInterface {
 			Log.e(TAG, "postResponses: While parsing MDS response, got JSON parse exception:" + e);
 			result = false;
 		} finally {
-			post.releaseConnection();
+			if (post != null)
+				post.releaseConnection();
 		}
 		return result;
 	}
 
-	private static boolean postBinaryAsEncodedText(Context c, String savedProcedureId, String elementId, String fileGuid, 
-			ElementType type, int fileSize, int start, int end, byte byte_data[]) {
-		boolean result = false;
+	/**
+	 * Posts form parameters to one of the text endpoints of the MDS, gzip
+	 * compressed if enabled. If the MDS answers a compressed request with
+	 * 415 Unsupported Media Type, compression is turned off and the request
+	 * is sent again uncompressed.
+	 * 
+	 * @param c current context
+	 * @param url the endpoint
+	 * @param params the form parameters
+	 * @return the executed request, which the caller must release
+	 * @throws IOException if the request failed
+	 */
+	private static PostMethod postText(Context c, String url, NameValuePair[] params) throws IOException {
+		if (MDSHttpClient.isCompressionEnabled(c)) {
+			PostMethod post = new PostMethod(url);
+			GzipFormRequestEntity entity = new GzipFormRequestEntity(params, post.getRequestCharSet(), true);
+			post.setRequestEntity(entity);
+			post.setRequestHeader("Content-Encoding", "gzip");
+			try {
+				int status = MDSHttpClient.execute(c, post, entity.getContentLength());
+				if (status != HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+					MDSHttpClient.recordCompression(entity.getUncompressedLength(), entity.getContentLength());
+					return post;
+				}
+			} catch (IOException e) {
+				post.releaseConnection();
+				throw e;
+			}
+			post.releaseConnection();
+			MDSHttpClient.onCompressionRejected();
+		}
 
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String mdsUrl = preferences.getString(Constants.PREFERENCE_MDS_URL, 
-				Constants.DEFAULT_DISPATCH_SERVER); 
-		mdsUrl = checkMDSUrl(mdsUrl);
-		String sBandwidth = preferences.getString("s_network_bandwidth", "");
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		int proxyPort = 0;
+		PostMethod post = new PostMethod(url);
+		GzipFormRequestEntity entity = new GzipFormRequestEntity(params, post.getRequestCharSet(), false);
+		post.setRequestEntity(entity);
 		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
-		
-		float bandwidth = Constants.ESTIMATED_NETWORK_BANDWIDTH;
-		try{
-			bandwidth = Float.parseFloat(sBandwidth);
-		} catch(NumberFormatException e) {
+			MDSHttpClient.execute(c, post, entity.getContentLength());
+		} catch (IOException e) {
+			post.releaseConnection();
+			throw e;
 		}
+		return post;
+	}
+
+	private static boolean postBinaryAsEncodedText(Context c, String mdsUrl, String savedProcedureId, String elementId, String fileGuid, 
+			ElementType type, int fileSize, FileRegionPartSource chunk) {
+		boolean result = false;
+		int start = (int)chunk.getOffset();
+		int end = start + (int)chunk.getLength();
 
 		// Estimate bytes of this request.
 		int bytes = "procedure_guid".length() + "element_id".length()
@@ -265,38 +281,25 @@ public class MDSInterface {
 		+ Integer.toString(fileSize).length()
 		+ Integer.toString(start).length()
 		+ Integer.toString(end).length()
-		+ type.getFilename().length() + byte_data.length;
-
-		int timeout = Constants.getTimeoutForBandwidth(bandwidth, bytes);
-
-		Log.i(TAG, "Setting timeout to " + timeout + " for an estimated " + bytes + " byte upload.");
+		+ type.getFilename().length() + (int)chunk.getLength();
 
 		PostMethod post = new PostMethod(constructBinaryChunkHackSubmitURL(mdsUrl));
 
-		post.addParameter(new NameValuePair("procedure_guid", savedProcedureId));
-		post.addParameter(new NameValuePair("element_id", elementId));
-		post.addParameter(new NameValuePair("binary_guid", fileGuid));
-		post.addParameter(new NameValuePair("element_type", type.toString()));
-		post.addParameter(new NameValuePair("file_size", Integer.toString(fileSize)));
-		post.addParameter(new NameValuePair("byte_start", Integer.toString(start)));
-		post.addParameter(new NameValuePair("byte_end", Integer.toString(end)));
+		NameValuePair[] params = {
+				new NameValuePair("procedure_guid", savedProcedureId),
+				new NameValuePair("element_id", elementId),
+				new NameValuePair("binary_guid", fileGuid),
+				new NameValuePair("element_type", type.toString()),
+				new NameValuePair("file_size", Integer.toString(fileSize)),
+				new NameValuePair("byte_start", Integer.toString(start)),
+				new NameValuePair("byte_end", Integer.toString(end)),
+		};
 
-		// Encode byte_data in Base64
-		byte[] encoded_data = new Base64().encode(byte_data);
-		post.addParameter(new NameValuePair("byte_data", new String(encoded_data)));
-
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
+		// byte_data is Base64 encoded from the file as it is sent
+		post.setRequestEntity(new Base64FormRequestEntity(params, "byte_data", chunk, post.getRequestCharSet()));
 
 		try {
-			int status = client.executeMethod(post); 
+			int status = MDSHttpClient.execute(c, post, bytes); 
 			Log.i(TAG, "postBinaryChunkHack got response code " +  status);
 
 			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
@@ -319,59 +322,16 @@ public class MDSInterface {
 			Log.e(TAG, "postBinary got exception : " + e.toString());
 			result = false;
 		} finally {
-			// TODO Maybe we could save this across uploads?
 			post.releaseConnection();
 		}
 		return result;
 	}
 
-	private static class BytePartSource implements PartSource {
-		private String filename;
-		private byte[] data;
-
-		public BytePartSource(byte[] data, String filename) {
-			this.data = data;
-			this.filename = filename;
-		}
-
-		public InputStream createInputStream() throws IOException {
-			return new ByteArrayInputStream(data);
-		}
-
-		public String getFileName() {
-			return filename;
-		}
-
-		public long getLength() {
-			return data.length;
-		}
-
-	}
-
-	private static boolean postBinaryAsFile(Context c, String savedProcedureId, String elementId, String fileGuid, 
-			ElementType type, int fileSize, int start, int end, byte byte_data[]) {
+	private static boolean postBinaryAsFile(Context c, String mdsUrl, String savedProcedureId, String elementId, String fileGuid, 
+			ElementType type, int fileSize, FileRegionPartSource chunk) {
 		boolean result = false;
-
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String mdsUrl = preferences.getString(Constants.PREFERENCE_MDS_URL, 
-				Constants.DEFAULT_DISPATCH_SERVER);
-		mdsUrl = checkMDSUrl(mdsUrl);
-		String sBandwidth = preferences.getString("s_network_bandwidth", "");
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
-		
-		float bandwidth = Constants.ESTIMATED_NETWORK_BANDWIDTH;
-		try{
-			bandwidth = Float.parseFloat(sBandwidth);
-		} catch(NumberFormatException e) {
-		}
+		int start = (int)chunk.getOffset();
+		int end = start + (int)chunk.getLength();
 
 		// Estimate bytes of this request.
 		int bytes = "procedure_guid".length() + "element_id".length()
@@ -383,11 +343,7 @@ public class MDSInterface {
 		+ Integer.toString(fileSize).length()
 		+ Integer.toString(start).length()
 		+ Integer.toString(end).length()
-		+ type.getFilename().length() + byte_data.length;
-
-		int timeout = Constants.getTimeoutForBandwidth(bandwidth, bytes);
-
-		Log.i(TAG, "Setting timeout to " + timeout + " for an estimated " + bytes + " byte upload.");
+		+ type.getFilename().length() + (int)chunk.getLength();
 
 		PostMethod post = new PostMethod(constructBinaryChunkSubmitURL(mdsUrl));
 
@@ -399,23 +355,13 @@ public class MDSInterface {
 				new StringPart("file_size", Integer.toString(fileSize)),
 				new StringPart("byte_start", Integer.toString(start)),
 				new StringPart("byte_end", Integer.toString(end)),
-				new FilePart("byte_data", new BytePartSource(byte_data, type.getFilename())),
+				new FilePart("byte_data", chunk),
 		};
 
 		post.setRequestEntity(new MultipartRequestEntity(parts, post.getParams()));
 
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
-
 		try {
-			int status = client.executeMethod(post); 
+			int status = MDSHttpClient.execute(c, post, bytes); 
 			Log.i(TAG, "postBinaryChunkHack got response code " +  status);
 
 			InputStream responseStream = post.getResponseBodyAsStream();
@@ -439,6 +385,52 @@ public class MDSInterface {
 		return result;
 	}
 
+	/**
+	 * Asks the MDS how many bytes of a binary it has committed, so that an
+	 * interrupted upload resumes exactly where the MDS left off.
+	 * 
+	 * @param c current context
+	 * @param savedProcedureId
+	 * @param elementId
+	 * @param fileGuid
+	 * @param type binary type (ie picture, sound, etc.)
+	 * @param fileSize size of the whole binary
+	 * @return the number of bytes committed, or -1 if the MDS could not tell us
+	 */
+	private static int getCommittedOffset(Context c, String mdsUrl, String savedProcedureId, String elementId, String fileGuid, 
+			ElementType type, int fileSize) {
+		PostMethod post = new PostMethod(constructBinaryChunkStatusURL(mdsUrl));
+		post.addParameter("procedure_guid", savedProcedureId);
+		post.addParameter("element_id", elementId);
+		post.addParameter("binary_guid", fileGuid);
+		post.addParameter("element_type", type.toString());
+		post.addParameter("file_size", Integer.toString(fileSize));
+
+		try {
+			int status = MDSHttpClient.execute(c, post, 0);
+			Log.i(TAG, "getCommittedOffset got response code " +  status);
+			if (status != 200)
+				return -1;
+
+			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
+			Gson gson = new Gson();
+			MDSResult response = gson.fromJson(reader, MDSResult.class);
+			if (!response.succeeded())
+				return -1;
+			int committed = Integer.parseInt(response.getData().trim());
+			if (committed < 0 || committed > fileSize) {
+				Log.w(TAG, "MDS reports an invalid offset " + committed + " for " + savedProcedureId + ":" + fileGuid);
+				return -1;
+			}
+			return committed;
+		} catch (Exception e) {
+			Log.e(TAG, "getCommittedOffset got exception : " + e.toString());
+			return -1;
+		} finally {
+			post.releaseConnection();
+		}
+	}
+
 	/**
 	 * Posts a single chunk of a binary file.
 	 * 
@@ -446,20 +438,18 @@ public class MDSInterface {
 	 * @param savedProcedureId
 	 * @param elementId
 	 * @param type binary type (ie picture, sound, etc.)
-	 * @param start first byte index in binary file (since this presumably is a chunk of a larger file)
-	 * @param end last byte index in binary file of the chunk being uploaded
-	 * @param byte_data a byte array containing the file chunk data
+	 * @param chunk the region of the binary file to upload
 	 * @return true on successful upload, otherwise false
 	 */
-	private static boolean postBinary(Context c, String savedProcedureId, String elementId, String fileGuid, 
-			ElementType type, int fileSize, int start, int end, byte byte_data[]) {
+	private static boolean postBinary(Context c, String mdsUrl, String savedProcedureId, String elementId, String fileGuid, 
+			ElementType type, int fileSize, FileRegionPartSource chunk) {
 		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
 		boolean hacksMode = preferences.getBoolean(Constants.PREFERENCE_UPLOAD_HACK, false);
 
 		if(hacksMode) {
-			return postBinaryAsEncodedText(c, savedProcedureId, elementId, fileGuid, type, fileSize, start, end, byte_data);
+			return postBinaryAsEncodedText(c, mdsUrl, savedProcedureId, elementId, fileGuid, type, fileSize, chunk);
 		} else {
-			return postBinaryAsFile(c, savedProcedureId, elementId, fileGuid, type, fileSize, start, end, byte_data);
+			return postBinaryAsFile(c, mdsUrl, savedProcedureId, elementId, fileGuid, type, fileSize, chunk);
 		}
 	}
 	
@@ -470,21 +460,15 @@ public class MDSInterface {
 		cursor.moveToFirst();
 		int procedureId = cursor.getInt(1);
 		String answersJson = cursor.getString(2);
+		String savedProcedureGUID = cursor.getString(4);
 		boolean savedProcedureUploaded = cursor.getInt(5) != 0;
 		cursor.deactivate();
 
-		Uri procedureUri = ContentUris.withAppendedId(ProcedureSQLFormat.CONTENT_URI, procedureId);
-		Log.i(TAG, "Getting procedure " + procedureUri.toString());
-		cursor = context.getContentResolver().query(procedureUri, new String[] { ProcedureSQLFormat.PROCEDURE }, null, null, null);
-		cursor.moveToFirst();
-		String procedureXml = cursor.getString(0);
-		cursor.deactivate();
-		
 		if (!savedProcedureUploaded) return false;
 
 		Map<String, Map<String,String>> elementMap = null;
 		try {
-			Procedure p = Procedure.fromXMLString(procedureXml);
+			Procedure p = Procedure.fromDatabase(context, procedureId);
 			p.setInstanceUri(uri);
 
 			JSONTokener tokener = new JSONTokener(answersJson);
@@ -495,8 +479,8 @@ public class MDSInterface {
 			while(it.hasNext()) {
 				String key = (String)it.next();
 				answersMap.put(key, answersDict.getString(key));
-				Log.i(TAG, "onCreate() : answer '" + key + "' : '" + answersDict.getString(key) +"'");
 			}
+			AnswerJournalDAO.replay(context, ContentUris.parseId(uri), answersMap);
 			Log.i(TAG, "onCreate() : restoreAnswers");
 			p.restoreAnswers(answersMap);
 			elementMap = p.toElementMap();
@@ -519,10 +503,10 @@ public class MDSInterface {
 		}
 
 		class ElementAnswer {
-			public String answer;
+			public BinaryAnswer answer;
 			public String type;
 			public ElementAnswer(String id, String answer, String type) {
-				this.answer = answer;
+				this.answer = new BinaryAnswer(answer);
 				this.type = type;
 			}
 		}
@@ -539,22 +523,18 @@ public class MDSInterface {
 			if(type.equals(ElementType.PICTURE.toString()) ||
 					type.equals(ElementType.BINARYFILE.toString()) ||
 					type.equals(ElementType.SOUND.toString())) {
-				binaries.add(new ElementAnswer(id, answer, type));
-				if(!"".equals(answer)) {
-					String[] ids = answer.split(",");
-					totalBinaries += ids.length;
-				}
+				ElementAnswer binary = new ElementAnswer(id, answer, type);
+				binaries.add(binary);
+				totalBinaries += binary.answer.size();
 			}
 		}
 		// upload each binary file
 		for(ElementAnswer e : binaries) {
 
-			if("".equals(e.answer))
+			if(e.answer.isEmpty())
 				continue;
 
-			String[] ids = e.answer.split(",");
-
-			for(String binaryId : ids) {
+			for(String binaryId : e.answer.getRefs()) {
 				Uri binUri = null;
 				ElementType type = ElementType.INVALID;
 				try {
@@ -567,10 +547,7 @@ public class MDSInterface {
 				} else if (type == ElementType.SOUND) {
 					binUri = ContentUris.withAppendedId(SoundSQLFormat.CONTENT_URI, Long.parseLong(binaryId));
 				} else if (type == ElementType.BINARYFILE) {
-					binUri = Uri.fromFile(new File(e.answer));
-					// We can't tell if a BINARYFILE has been uploaded before.
-					// Maybe if we grab the mtime/filesize on the file and store
-					// it when we upload it.
+					binUri = Uri.fromFile(new File(binaryId));
 				}
 
 				try {
@@ -594,8 +571,10 @@ public class MDSInterface {
 						cur.deactivate();
 						break;
 					case BINARYFILE:
+						alreadyUploaded = BinaryFileDAO.isUploaded(context, savedProcedureGUID, new File(binUri.getPath()));
+						if (!alreadyUploaded) return false;
+						break;
 					default:
-						// Can't do anything since its not in the DB. Sigh.
 						break;
 					}
 				} catch (Exception x) {
@@ -607,6 +586,20 @@ public class MDSInterface {
 		return true;
 	}
 
+	/**
+	 * Returns the number of binaries of a procedure which may be uploaded at
+	 * the same time, limited by the connections available to the MDS.
+	 */
+	private static int getUploadWidth(Context c) {
+		int width;
+		try {
+			width = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(c).getString(Constants.PREFERENCE_UPLOAD_WIDTH, Integer.toString(Constants.DEFAULT_UPLOAD_WIDTH)));
+		} catch (NumberFormatException e) {
+			width = Constants.DEFAULT_UPLOAD_WIDTH;
+		}
+		return Math.max(1, Math.min(width, MDSHttpClient.MAX_CONNECTIONS_PER_HOST));
+	}
+
 	/**
 	 * Send the entire completed procedure to the Moca Dispatch Server (MDS)
 	 * This procedure sends the answer/response pairs and all the binary data (sounds, 
@@ -617,6 +610,48 @@ public class MDSInterface {
 	 * @return true if upload was successful, false if not
 	 */
 	public static boolean postProcedureToDjangoServer(Uri uri, Context context) {
+		return postProcedure(uri, context, getMDSUrl(context), true, isResumeEnabled(context));
+	}
+
+	/**
+	 * Sends a completed procedure to an MDS other than the one in the
+	 * preferences, e.g. a LocalMDS. What the upload learns about the network
+	 * is not kept.
+	 * 
+	 * @param uri uri of procedure in database
+	 * @param context current context
+	 * @param mdsUrl the url of the MDS
+	 * @return true if upload was successful, false if not
+	 */
+	public static boolean postProcedureToDjangoServer(Uri uri, Context context, String mdsUrl) {
+		return postProcedure(uri, context, mdsUrl, false, isResumeEnabled(context));
+	}
+
+	/**
+	 * Sends a completed procedure to an MDS other than the one in the
+	 * preferences, resuming its binaries from what that MDS has committed or
+	 * not regardless of the resume setting. What the upload learns about the
+	 * network is not kept.
+	 * 
+	 * @param uri uri of procedure in database
+	 * @param context current context
+	 * @param mdsUrl the url of the MDS
+	 * @param resume whether to ask the MDS how much of each binary it has
+	 * @return true if upload was successful, false if not
+	 */
+	public static boolean postProcedureToDjangoServer(Uri uri, Context context, String mdsUrl, boolean resume) {
+		return postProcedure(uri, context, mdsUrl, false, resume);
+	}
+
+	private static boolean isResumeEnabled(Context c) {
+		return PreferenceManager.getDefaultSharedPreferences(c).getBoolean(Constants.PREFERENCE_UPLOAD_RESUME, false);
+	}
+
+	/**
+	 * @param useOwnMDS whether mdsUrl is the MDS in the preferences
+	 * @param resume whether to ask the MDS how much of each binary it has
+	 */
+	private static boolean postProcedure(Uri uri, Context context, String mdsUrl, boolean useOwnMDS, boolean resume) {
 		Log.i(TAG, "In Post procedure to Django server for background uploading service.");
 		Cursor cursor = context.getContentResolver().query(uri, savedProcedureProjection, null,
 				null, null);
@@ -632,10 +667,9 @@ public class MDSInterface {
 
 		Uri procedureUri = ContentUris.withAppendedId(ProcedureSQLFormat.CONTENT_URI, procedureId);
 		Log.i(TAG, "Getting procedure " + procedureUri.toString());
-		cursor = context.getContentResolver().query(procedureUri, new String[] { ProcedureSQLFormat.TITLE, ProcedureSQLFormat.PROCEDURE }, null, null, null);
+		cursor = context.getContentResolver().query(procedureUri, new String[] { ProcedureSQLFormat.TITLE }, null, null, null);
 		cursor.moveToFirst();
 		String procedureTitle = cursor.getString(cursor.getColumnIndex(ProcedureSQLFormat.TITLE));
-		String procedureXml = cursor.getString(cursor.getColumnIndex(ProcedureSQLFormat.PROCEDURE));
 		cursor.deactivate();
 
 		//Log.i(TAG, "Procedure " + procedureXml);
@@ -646,7 +680,7 @@ public class MDSInterface {
 		}
 		Map<String, Map<String,String>> elementMap = null;
 		try {
-			Procedure p = Procedure.fromXMLString(procedureXml);
+			Procedure p = Procedure.fromDatabase(context, procedureId);
 			p.setInstanceUri(uri);
 
 			JSONTokener tokener = new JSONTokener(answersJson);
@@ -657,8 +691,8 @@ public class MDSInterface {
 			while(it.hasNext()) {
 				String key = (String)it.next();
 				answersMap.put(key, answersDict.getString(key));
-				Log.i(TAG, "onCreate() : answer '" + key + "' : '" + answersDict.getString(key) +"'");
 			}
+			AnswerJournalDAO.replay(context, ContentUris.parseId(uri), answersMap);
 			Log.i(TAG, "onCreate() : restoreAnswers");
 			p.restoreAnswers(answersMap);
 			elementMap = p.toElementMap();
@@ -696,11 +730,11 @@ public class MDSInterface {
 
 		class ElementAnswer {
 			public String id;
-			public String answer;
+			public BinaryAnswer answer;
 			public String type;
 			public ElementAnswer(String id, String answer, String type) {
 				this.id = id;
-				this.answer = answer;
+				this.answer = new BinaryAnswer(answer);
 				this.type = type;
 			}
 		}
@@ -726,11 +760,9 @@ public class MDSInterface {
 			if(type.equals(ElementType.PICTURE.toString()) ||
 					type.equals(ElementType.BINARYFILE.toString()) ||
 					type.equals(ElementType.SOUND.toString())) {
-				binaries.add(new ElementAnswer(id, answer, type));
-				if(!"".equals(answer)) {
-					String[] ids = answer.split(",");
-					totalBinaries += ids.length;
-				}
+				ElementAnswer binary = new ElementAnswer(id, answer, type);
+				binaries.add(binary);
+				totalBinaries += binary.answer.size();
 			}
 		}
 
@@ -747,7 +779,7 @@ public class MDSInterface {
 			int tries = 0;
 			final int MAX_TRIES = 5;
 			while(tries < MAX_TRIES) {
-				if (postResponses(context, savedProcedureGUID, json)) {
+				if (postResponses(context, mdsUrl, savedProcedureGUID, json)) {
 					// Mark the procedure text as uploaded in the database
 					ContentValues cv = new ContentValues();
 					cv.put(SavedProcedureSQLFormat.UPLOADED, true);
@@ -769,7 +801,8 @@ public class MDSInterface {
 		Log.i(TAG, "Posted responses, now sending " + totalBinaries + " binaries.");
 
 
-		// lookup starting packet size
+		// lookup starting packet size, used if nothing has been learned about
+		// this kind of network yet
 		int newPacketSize;
 		try {
 			newPacketSize = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(context).getString("s_packet_init_size", Integer.toString(Constants.DEFAULT_INIT_PACKET_SIZE)));
@@ -779,18 +812,21 @@ public class MDSInterface {
 		// adjust from KB to bytes
 		newPacketSize *= 1000;
 
-		int totalProgress = 1+totalBinaries;
-		int thisProgress = 2;
+		// Another MDS may be reached over a network unlike the one the
+		// statistics are kept for, so its uploads start from scratch and are
+		// not saved.
+		final PacketSizeController controller = useOwnMDS
+			? PacketSizeController.load(context, newPacketSize)
+			: new PacketSizeController(newPacketSize);
 
-		// upload each binary file
+		// Collect each binary file to upload
+		List<BinaryUpload> pending = new ArrayList<BinaryUpload>(totalBinaries);
 		for(ElementAnswer e : binaries) {
 
-			if("".equals(e.answer))
+			if(e.answer.isEmpty())
 				continue;
 
-			String[] ids = e.answer.split(",");
-
-			for(String binaryId : ids) {
+			for(String binaryId : e.answer.getRefs()) {
 
 
 				Uri binUri = null;
@@ -806,38 +842,251 @@ public class MDSInterface {
 				} else if (type == ElementType.SOUND) {
 					binUri = ContentUris.withAppendedId(SoundSQLFormat.CONTENT_URI, Long.parseLong(binaryId));
 				} else if (type == ElementType.BINARYFILE) {
-					binUri = Uri.fromFile(new File(e.answer));
-					// We can't tell if a BINARYFILE has been uploaded before.
-					// Maybe if we grab the mtime/filesize on the file and store
-					// it when we upload it.
+					binUri = Uri.fromFile(new File(binaryId));
 				}
 
-				try {
-					Log.i(TAG, "Uploading " + binUri);
-					// reset the new packet size each time to the last successful transmission size
-
-					newPacketSize = transmitBinary(context, savedProcedureGUID, e.id, binaryId, type, binUri, newPacketSize);
+				pending.add(new BinaryUpload(e.id, binaryId, type, binUri, getContentHash(context, type, binUri)));
+			}
+		}
 
-					// Delete the file!
-					switch(type) {
-					case PICTURE:
-					case SOUND:
-						//This was deleting the pictures after upload - should not happen, leave commented out!
-						//context.getContentResolver().delete(binUri, null, null);
-						break;
-					default:
-					}
-				} catch (Exception x) {
-					Log.i(TAG, "Uploading " + binUri + " failed : " + x.toString());
-					return false;
-				}
-				thisProgress++;
+		// Skip binaries whose content the MDS already has. Of several
+		// binaries with the same content only the first is sent, the MDS is
+		// asked about the others once it has that one.
+		removeStoredBinaries(context, mdsUrl, savedProcedureGUID, pending);
+		List<BinaryUpload> duplicates = new ArrayList<BinaryUpload>();
+		Set<String> hashes = new HashSet<String>();
+		Iterator<BinaryUpload> pendingIt = pending.iterator();
+		while (pendingIt.hasNext()) {
+			BinaryUpload b = pendingIt.next();
+			if (b.hash != null && !hashes.add(b.hash)) {
+				duplicates.add(b);
+				pendingIt.remove();
 			}
 		}
+
+		boolean result = uploadBinaries(context, mdsUrl, uri, savedProcedureGUID, pending, controller, resume);
+		if (result && !duplicates.isEmpty()) {
+			removeStoredBinaries(context, mdsUrl, savedProcedureGUID, duplicates);
+			result = uploadBinaries(context, mdsUrl, uri, savedProcedureGUID, duplicates, controller, resume);
+		}
+		controller.save(context);
+		if (!result)
+			return false;
 		// TODO Tag entire procedure in db as done transmitting
 		return true;   
 	}
 	
+	/**
+	 * A binary answer of a procedure waiting to be uploaded.
+	 */
+	private static class BinaryUpload {
+		final String elementId;
+		final String binaryGuid;
+		final ElementType type;
+		final Uri uri;
+		// hex SHA-256 of the content, or null if unknown
+		final String hash;
+
+		BinaryUpload(String elementId, String binaryGuid, ElementType type, Uri uri, String hash) {
+			this.elementId = elementId;
+			this.binaryGuid = binaryGuid;
+			this.type = type;
+			this.uri = uri;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Returns the content hash recorded for a picture or sound which has not
+	 * been uploaded yet.
+	 * 
+	 * @return the hex SHA-256 of the binary, or null if it is unknown or the
+	 *         binary has already been uploaded
+	 */
+	private static String getContentHash(Context c, ElementType type, Uri binaryUri) {
+		String[] projection;
+		switch(type) {
+		case PICTURE:
+			projection = new String[] { ImageSQLFormat.UPLOADED, ImageSQLFormat.CONTENT_HASH };
+			break;
+		case SOUND:
+			projection = new String[] { SoundSQLFormat.UPLOADED, SoundSQLFormat.CONTENT_HASH };
+			break;
+		default:
+			return null;
+		}
+		Cursor cur = null;
+		try {
+			cur = c.getContentResolver().query(binaryUri, projection, null, null, null);
+			if (cur == null || !cur.moveToFirst() || cur.getInt(0) != 0)
+				return null;
+			return cur.getString(1);
+		} catch (Exception e) {
+			Log.e(TAG, "Could not read content hash of " + binaryUri + ": " + e.toString());
+			return null;
+		} finally {
+			if (cur != null)
+				cur.close();
+		}
+	}
+
+	/**
+	 * Asks the MDS which of the binaries it already has the content of. The
+	 * MDS attaches the content it has to this procedure, so those binaries
+	 * are marked as uploaded and removed from the list.
+	 * 
+	 * @param c current context
+	 * @param savedProcedureId
+	 * @param uploads binaries of the procedure waiting to be uploaded
+	 */
+	private static void removeStoredBinaries(Context c, String mdsUrl, String savedProcedureId, List<BinaryUpload> uploads) {
+		JSONArray query = new JSONArray();
+		try {
+			for (BinaryUpload b : uploads) {
+				if (b.hash == null)
+					continue;
+				JSONObject binary = new JSONObject();
+				binary.put("element_id", b.elementId);
+				binary.put("binary_guid", b.binaryGuid);
+				binary.put("element_type", b.type.toString());
+				binary.put("hash", b.hash);
+				query.put(binary);
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Could not build content hash query: " + e.toString());
+			return;
+		}
+		if (query.length() == 0)
+			return;
+
+		String binaries = query.toString();
+		PostMethod post = new PostMethod(constructBinaryHashURL(mdsUrl));
+		post.addParameter("procedure_guid", savedProcedureId);
+		post.addParameter("binaries", binaries);
+
+		Set<String> stored = new HashSet<String>();
+		try {
+			int status = MDSHttpClient.execute(c, post, binaries.length());
+			Log.i(TAG, "removeStoredBinaries got response code " +  status);
+			if (status != 200)
+				return;
+
+			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
+			Gson gson = new Gson();
+			MDSResult response = gson.fromJson(reader, MDSResult.class);
+			if (!response.succeeded())
+				return;
+			JSONArray guids = new JSONArray(response.getData());
+			for (int i = 0; i < guids.length(); i++)
+				stored.add(guids.getString(i));
+		} catch (Exception e) {
+			Log.e(TAG, "removeStoredBinaries got exception : " + e.toString());
+			return;
+		} finally {
+			post.releaseConnection();
+		}
+
+		ContentValues cv = new ContentValues();
+		Iterator<BinaryUpload> it = uploads.iterator();
+		while (it.hasNext()) {
+			BinaryUpload b = it.next();
+			if (b.hash == null || !stored.contains(b.binaryGuid))
+				continue;
+			Log.i(TAG, "MDS already has the content of " + b.uri + ", not sending it.");
+			cv.clear();
+			switch(b.type) {
+			case PICTURE:
+				cv.put(ImageSQLFormat.UPLOADED, true);
+				c.getContentResolver().update(b.uri, cv, null, null);
+				break;
+			case SOUND:
+				cv.put(SoundSQLFormat.UPLOADED, true);
+				c.getContentResolver().update(b.uri, cv, null, null);
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Uploads binaries of a procedure, several at a time.
+	 * 
+	 * @return true if every binary was uploaded
+	 */
+	private static boolean uploadBinaries(final Context c, final String mdsUrl, Uri uri, final String guid, List<BinaryUpload> binaries, final PacketSizeController controller, final boolean resume) {
+		List<Callable<Boolean>> uploads = new ArrayList<Callable<Boolean>>(binaries.size());
+		for (final BinaryUpload b : binaries) {
+			uploads.add(new Callable<Boolean>() {
+				public Boolean call() {
+					try {
+						Log.i(TAG, "Uploading " + b.uri);
+						// the packet size carries over from the other binaries through the shared controller
+						transmitBinary(c, mdsUrl, guid, b.elementId, b.binaryGuid, b.type, b.uri, controller, resume);
+
+						// Delete the file!
+						switch(b.type) {
+						case PICTURE:
+						case SOUND:
+							//This was deleting the pictures after upload - should not happen, leave commented out!
+							//context.getContentResolver().delete(binUri, null, null);
+							break;
+						default:
+						}
+					} catch (Exception x) {
+						Log.i(TAG, "Uploading " + b.uri + " failed : " + x.toString());
+						return false;
+					}
+					return true;
+				}
+			});
+		}
+
+		// Upload up to width binaries at once. Each binary keeps its own
+		// UPLOAD_PROGRESS so a failed upload resumes where it left off.
+		int width = Math.min(getUploadWidth(c), Math.max(uploads.size(), 1));
+		Log.i(TAG, "Uploading " + uploads.size() + " binaries, " + width + " at a time.");
+		ExecutorService executor = Executors.newFixedThreadPool(width);
+		boolean result = true;
+		try {
+			for (Future<Boolean> f : executor.invokeAll(uploads)) {
+				if (!f.get())
+					result = false;
+			}
+		} catch (InterruptedException x) {
+			Log.i(TAG, "Interrupted while uploading binaries for " + uri);
+			Thread.currentThread().interrupt();
+			result = false;
+		} catch (ExecutionException x) {
+			Log.i(TAG, "Uploading binaries for " + uri + " failed : " + x.getCause());
+			result = false;
+		} finally {
+			executor.shutdownNow();
+			// The procedure may be uploaded again as soon as this returns,
+			// so none of its binaries may still be in flight.
+			awaitTermination(executor);
+		}
+		return result;
+	}
+
+	/**
+	 * Waits until every task of a shut down executor has finished. Each is
+	 * interrupted and stops at the end of the chunk it is sending, which is
+	 * bounded by the request deadline. An interrupt while waiting is kept
+	 * for the caller.
+	 */
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
 	/**
 	 * Sends an entire binary file in a packetized fashion. This method is where the automatic 
 	 * ramping packetization takes place.
@@ -848,18 +1097,20 @@ public class MDSInterface {
 	 * @param elementId
 	 * @param type binary type (ie picture, sound, etc.)
 	 * @param binaryUri uri of the file to be transmitted
-	 * @param startPacketSize the starting packet size for each chunk; this will be throttled up or down depending on connection strength
-	 * @return the last successful chunk transmission size on success so that it can be used for future transmissions as the startPacketSize
+	 * @param controller the chunk size controller shared by every binary of this upload; it is throttled up or down depending on connection strength
+	 * @param resume whether to ask the MDS how much of the binary it has
 	 * @throws Exception on upload failure
 	 */
-	private static int transmitBinary(Context c, String savedProcedureId, String elementId, String binaryGuid, ElementType type, Uri binaryUri, int startPacketSize) throws Exception {
-		int packetSize, fileSize;
+	private static void transmitBinary(Context c, String mdsUrl, String savedProcedureId, String elementId, String binaryGuid, ElementType type, Uri binaryUri, PacketSizeController controller, boolean resume) throws Exception {
+		int fileSize;
 		ContentValues cv = new ContentValues();
 
-		packetSize = startPacketSize;
-
 		boolean alreadyUploaded = false;
 		int currPosition = 0;
+		// whether the MDS may already hold part of this binary
+		boolean resumable = true;
+		// the row the upload progress is kept in
+		Uri progressUri = binaryUri;
 		Cursor cur;
 		switch(type) {
 		case PICTURE:
@@ -877,70 +1128,74 @@ public class MDSInterface {
 			cur.deactivate();
 			break;
 		case BINARYFILE:
+			File file = new File(binaryUri.getPath());
+			// The MDS keys binaries by path, so what it has committed for a
+			// changed file belongs to the old contents.
+			resumable = !BinaryFileDAO.hasChanged(c, savedProcedureId, file);
+			progressUri = BinaryFileDAO.getUploadState(c, savedProcedureId, file);
+			cur = c.getContentResolver().query(progressUri, new String[] { BinaryFileSQLFormat.UPLOADED, BinaryFileSQLFormat.UPLOAD_PROGRESS }, null, null, null);
+			cur.moveToFirst();
+			alreadyUploaded = cur.getInt(0) != 0;
+			currPosition = cur.getInt(1);
+			cur.deactivate();
+			break;
 		default:
-			// Can't do anything since its not in the DB. Sigh.
 			break;
 
 		}
 
 		if(alreadyUploaded) {
 			Log.i(TAG, binaryUri + " was already uploaded. Skipping.");
-			return startPacketSize;
+			return;
 		}
 
 
 
-		InputStream is = c.getContentResolver().openInputStream(binaryUri);
-		fileSize = is.available();
+		// Chunks are streamed from the file into the request body, so nothing
+		// larger than the copy buffer is held in memory regardless of the
+		// packet size.
+		ParcelFileDescriptor pfd = c.getContentResolver().openFileDescriptor(binaryUri, "r");
+		FileInputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+		FileChannel channel = is.getChannel();
+		fileSize = (int)channel.size();
 
-		// Skip forward by the progress we've made previously.
-		is.skip(currPosition);
+		// The MDS knows best what it has committed, e.g. if our last progress
+		// update was lost or the MDS dropped an incomplete chunk.
+		if (resumable && resume) {
+			int committed = getCommittedOffset(c, mdsUrl, savedProcedureId, elementId, binaryGuid, type, fileSize);
+			if (committed >= 0 && committed != currPosition) {
+				Log.i(TAG, "MDS has committed " + committed + " bytes of " + binaryUri + ", local progress was " + currPosition);
+				currPosition = committed;
+			}
+		}
 
 		int progress = (int)(100.0 * currPosition / fileSize);
 
 		int bytesRemaining = fileSize - currPosition;
-		Log.i(TAG, "transmitBinary uploading " + binaryUri + " " + bytesRemaining + " total bytes remaining. Starting at " + packetSize + " packet size");
+		Log.i(TAG, "transmitBinary uploading " + binaryUri + " " + bytesRemaining + " total bytes remaining. Starting at " + controller.getPacketSize() + " packet size");
 
-		// reference packet rate byte/msec
-		double basePacketRate = 0.0;
 		while(bytesRemaining > 0) {
-			// get starting time of packet transmission
-			long transmitStartTime = new Date().getTime();
-			// if transmission rate is acceptable (comparison between currPacketRate and basePacketRate)
-			boolean efficient = false;
-
-			int bytesToRead = Math.min(packetSize, bytesRemaining);
-			byte[] chunk = new byte[bytesToRead];
-			int bytesRead = is.read(chunk, 0, bytesToRead);
+			int bytesRead = Math.min(controller.getPacketSize(), bytesRemaining);
+			FileRegionPartSource chunk = new FileRegionPartSource(channel, type.getFilename(), currPosition, bytesRead);
 
 			boolean success = false;
 			while(!success) {
-				Log.i(TAG, "Trying to upload " + bytesRead + " bytes for " + savedProcedureId + ":" + elementId + ".");
-				success = postBinary(c, savedProcedureId, elementId, binaryGuid, type, fileSize, currPosition, currPosition+bytesRead, chunk);
-
-				efficient = false;
-				// new rate is compared to 80% of previous rate
-				basePacketRate *= 0.8;
-				if(success) {
-					long transmitEndTime = new Date().getTime();
-					// get new packet rate
-					double currPacketRate = (double)packetSize/(double)(transmitEndTime-transmitStartTime);
-					Log.i(TAG, "packet rate = (current) " + currPacketRate + ", (base) " + basePacketRate);
-					if(currPacketRate > basePacketRate) {
-						basePacketRate = currPacketRate;
-						efficient = true;
-					}
+				if (Thread.currentThread().isInterrupted()) {
+					is.close();
+					throw new InterruptedIOException("Upload of " + binaryUri + " was cancelled after " + (fileSize-bytesRemaining) + " bytes.");
 				}
 
-				if(efficient) {
-					packetSize *= 2;
-					Log.i(TAG, "Shifting packet size *2 =" + packetSize);
-				} else {
-					packetSize /= 2;
-					Log.i(TAG, "Shifting packet size /2 =" + packetSize);
-				}
+				// get starting time of packet transmission
+				long transmitStartTime = new Date().getTime();
+				Log.i(TAG, "Trying to upload " + bytesRead + " bytes for " + savedProcedureId + ":" + elementId + ".");
+				success = postBinary(c, mdsUrl, savedProcedureId, elementId, binaryGuid, type, fileSize, chunk);
+				long transmitEndTime = new Date().getTime();
 
-				if(packetSize < Constants.MIN_PACKET_SIZE * 1000) {
+				controller.onChunkSent(success, bytesRead, transmitEndTime - transmitStartTime);
+				if (success)
+					MDSHttpClient.recordBytesSent(bytesRead);
+
+				if(controller.isBelowMinimum()) {
 					// TODO(rryan) : fail at some point
 					is.close();
 					throw new IOException("Could not upload " + binaryUri +". failed after " + (fileSize-bytesRemaining) + " bytes.");
@@ -963,6 +1218,10 @@ public class MDSInterface {
 				cv.put(SoundSQLFormat.UPLOAD_PROGRESS, currPosition);
 				c.getContentResolver().update(binaryUri, cv, null, null);
 				break;
+			case BINARYFILE:
+				cv.put(BinaryFileSQLFormat.UPLOAD_PROGRESS, currPosition);
+				c.getContentResolver().update(progressUri, cv, null, null);
+				break;
 			}
 
 		}
@@ -978,14 +1237,31 @@ public class MDSInterface {
 			cv.put(SoundSQLFormat.UPLOADED, true);
 			c.getContentResolver().update(binaryUri, cv, null, null);
 			break;
+		case BINARYFILE:
+			cv.put(BinaryFileSQLFormat.UPLOADED, true);
+			c.getContentResolver().update(progressUri, cv, null, null);
+			break;
 		}
 
 		is.close();
-
-		return packetSize;
+		Log.i(TAG, "Finished " + binaryUri + ", MDS connections opened: " 
+				+ MDSHttpClient.getConnectionsOpened() + ", reused: " 
+				+ MDSHttpClient.getConnectionsReused());
 	}
 
 	public static boolean validateCredentials(Context c) throws IOException {
+		return validateCredentials(c, getMDSUrl(c));
+	}
+
+	/**
+	 * Checks the credentials in the preferences with an MDS.
+	 * 
+	 * @param c current context
+	 * @param mdsURL the url of the MDS
+	 * @return true if the MDS accepts the credentials
+	 * @throws IOException if the MDS could not be asked
+	 */
+	public static boolean validateCredentials(Context c, String mdsURL) throws IOException {
 		Log.i(TAG, "validateCredentials was called");
 		SharedPreferences preferences = PreferenceManager
 				.getDefaultSharedPreferences(c);
@@ -993,19 +1269,6 @@ public class MDSInterface {
 				Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String password = preferences.getString(
 				Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
-		
-		mdsURL = checkMDSUrl(mdsURL);
 		String resultData = "";
 		boolean result = true;
 		JSONObject jsono = new JSONObject();
@@ -1021,20 +1284,8 @@ public class MDSInterface {
 		post.addParameter("password", password);
 		Log.i(TAG, "sending to MDS: username: " + username + ", password: "
 				+ password);
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		} else {
-			Log.i(TAG, "Not using a proxy, " + proxyHost + ":"+ proxyPort);
-		}
-
 		try {
-			int status = client.executeMethod(post);
+			int status = MDSHttpClient.execute(c, post, 0);
 			Log.i(TAG, "validateCredentials got response code " + status);
 
 			Reader reader = new InputStreamReader(post
@@ -1075,48 +1326,38 @@ public class MDSInterface {
 		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
 				Constants.DEFAULT_DISPATCH_SERVER);
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
 		
 		mdsURL = checkMDSUrl(mdsURL);
+		// Only patients changed since this token are sent by an MDS which
+		// supports it, others ignore it and send every patient.
+		String since = preferences.getString(Constants.PREFERENCE_PATIENT_SYNC_TOKEN, "");
 
 		PostMethod post = new PostMethod(constructDatabaseDownloadURL(mdsURL));
 		post.addParameter("username", username);
 		post.addParameter("password", password);
-		Log.i(TAG, "sending to MDS for database download: username: " + username + ", password: " + password);
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
-		
+		post.addParameter("since", since);
+		Log.i(TAG, "sending to MDS for database download: username: " + username + ", password: " + password + ", since: " + since);
+		long syncTime = System.currentTimeMillis();
 		try {
-			int status = client.executeMethod(post);
+			int status = MDSHttpClient.execute(c, post, 0);
 			Log.i(TAG, "updateDatabase got response code " +  status);
-			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
-			Gson gson = new Gson();
-			MDSResult response = gson.fromJson(reader, MDSResult.class);
-			String toparse = response.getData();
-			MocaUtil.clearPatientData(c);
-			
-			//the following line needs to be uncommented eventually
-			UserDatabase.addDataToUsers(cr, toparse);
-			Log.i(TAG, "our database looks like this: " + toparse);
+			// The list is applied as it is read, rather than read whole first.
+			Reader reader = new InputStreamReader(post.getResponseBodyAsStream(), "UTF-8");
+			String token = UserDatabase.syncPatients(cr, reader, syncTime);
+			if ("".equals(since) || token == null) {
+				// We got every patient, so any we did not see are gone.
+				int removed = UserDatabase.removePatientsNotSyncedSince(cr, syncTime);
+				Log.i(TAG, "Full patient sync removed " + removed + " patients");
+			}
+			preferences.edit().putString(Constants.PREFERENCE_PATIENT_SYNC_TOKEN, token != null ? token : "").commit();
+			// Patients unknown before the sync may be known now.
+			PatientCache.invalidate();
 		} catch (Exception e) {
 			Log.i(TAG, "Caught an exception while trying to download patient data from the MDS: " + e.toString());
 			Log.i(TAG, e.getStackTrace().toString());
 			return false; 
+		} finally {
+			post.releaseConnection();
 		}
 		return true;
 	}
@@ -1130,15 +1371,6 @@ public class MDSInterface {
 		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
 				Constants.DEFAULT_DISPATCH_SERVER);
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
 		
 		mdsURL = checkMDSUrl(mdsURL);
 		Log.i(TAG, "our url is " + constructUserInfoURL(mdsURL,userid));
@@ -1146,18 +1378,8 @@ public class MDSInterface {
 		post.addParameter("username", username);
 		post.addParameter("password", password);
 		Log.i(TAG, "sending to MDS for user info download: username: " + username + ", password: " + password);
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
-
 		try {
-			int status = client.executeMethod(post); 
+			int status = MDSHttpClient.execute(c, post, 0); 
 			Log.i(TAG, "postResponses got response code " +  status);
 			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
 			Gson gson = new Gson();
@@ -1167,6 +1389,8 @@ public class MDSInterface {
 		} catch (Exception e) {
 			Log.i(TAG, e.getMessage());
 			Log.i(TAG, e.getStackTrace().toString());
+		} finally {
+			post.releaseConnection();
 		}
 		
 		return info;
@@ -1179,16 +1403,6 @@ public class MDSInterface {
 		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
 				Constants.DEFAULT_DISPATCH_SERVER);
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
-		
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
 		
 		mdsURL = checkMDSUrl(mdsURL);
 		Log.i(TAG, "our url is " + constructUserInfoURL(mdsURL,userid));
@@ -1196,18 +1410,8 @@ public class MDSInterface {
 		post.addParameter("username", username);
 		post.addParameter("password", password);
 		Log.i(TAG, "sending to MDS for user info download: username: " + username + ", password: " + password);
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
-
 		try {
-			int status = client.executeMethod(post); 
+			int status = MDSHttpClient.execute(c, post, 0); 
 			Log.i(TAG, "isNewPatientValid got response code " +  status);
 			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
 			Gson gson = new Gson();
@@ -1223,6 +1427,8 @@ public class MDSInterface {
 		} catch (Exception e) {
 			Log.i(TAG, e.getMessage());
 			Log.i(TAG, e.getStackTrace().toString());
+		} finally {
+			post.releaseConnection();
 		}
 		return true;
 	}
@@ -1235,44 +1441,26 @@ public class MDSInterface {
 		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
 				Constants.DEFAULT_DISPATCH_SERVER);
-		String proxyHost = preferences.getString(Constants.PREFERENCE_PROXY_HOST, "");
-		String sProxyPort = preferences.getString(Constants.PREFERENCE_PROXY_PORT, "0");
 		
 		Log.i(TAG, "Submitting " + eventsList.size() + " events to the MDS");
 		
 		if (eventsList.size() == 0) {
 			return true;
 		}
-		
-		int proxyPort = 0;
-		try {
-			if (!"".equals(sProxyPort)) 
-				proxyPort = Integer.parseInt(sProxyPort);
-		} catch(NumberFormatException e) {
-			Log.w(TAG, "Invalid proxy port: " + sProxyPort);
-		}
 		mdsURL = checkMDSUrl(mdsURL);
 	
 		Gson g = new Gson();
-		PostMethod post = new PostMethod(constructEventLogUrl(mdsURL));
-		
-		post.addParameter("username", username);
-		post.addParameter("password", password);
-		post.addParameter("client_id", phoneId);
-		post.addParameter("events", g.toJson(eventsList));
-		
-		HttpClient client = new HttpClient();
-		
-		// If there's a proxy enabled, use it.
-		if (!"".equals(proxyHost) && proxyPort != 0) {
-			Log.i(TAG, "Setting proxy to " + proxyHost + ":" + proxyPort);
-			HostConfiguration hc = new HostConfiguration();
-			hc.setProxy(proxyHost, (int)proxyPort);
-			client.setHostConfiguration(hc);
-		}
+		NameValuePair[] params = {
+				new NameValuePair("username", username),
+				new NameValuePair("password", password),
+				new NameValuePair("client_id", phoneId),
+				new NameValuePair("events", g.toJson(eventsList)),
+		};
 		
+		PostMethod post = null;
 		try {
-			int status = client.executeMethod(post);
+			post = postText(c, constructEventLogUrl(mdsURL), params);
+			int status = post.getStatusCode();
 			Log.i(TAG, "submitEvents got response code " +  status);
 			Reader reader = new InputStreamReader(post.getResponseBodyAsStream());
 			
@@ -1290,7 +1478,8 @@ public class MDSInterface {
 			Log.e(TAG, "While submitting events, got exception: " + e.toString());
 			e.printStackTrace();
 		} finally {
-			post.releaseConnection();
+			if (post != null)
+				post.releaseConnection();
 		}
 		
 		return false;
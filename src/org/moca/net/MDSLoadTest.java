@@ -0,0 +1,264 @@
+package org.moca.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.moca.db.EventDAO;
+import org.moca.db.MocaDB.ImageSQLFormat;
+import org.moca.db.MocaDB.ProcedureSQLFormat;
+import org.moca.db.MocaDB.SavedProcedureSQLFormat;
+import org.moca.db.MocaDB.EventSQLFormat.EventType;
+import org.moca.procedure.Procedure;
+import org.moca.procedure.ProcedureElement.ElementType;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Measures the throughput of the upload path, from MDSInterface down to the
+ * socket, against a LocalMDS.
+ *
+ * Synthetic encounters of the procedures in the database are created, each
+ * PICTURE element answered with one picture of random bytes, and uploaded
+ * one after the other to the LocalMDS with
+ * MDSInterface.postProcedureToDjangoServer. The upload settings (chunk size,
+ * parallel uploads, compression, resume) are used as they are, so their
+ * effect can be compared. The MDS url in the preferences is left alone, so
+ * the background uploader and syncs keep using the real MDS while the test
+ * runs, and the encounters, which are never queued for upload, are deleted
+ * afterwards.
+ *
+ * The result, encounters uploaded per minute and bytes received by the MDS
+ * per second, is recorded as a PERFORMANCE_BENCHMARK event.
+ *
+ * checkResume() uses the same encounters to check that an upload cut off
+ * part way resumes from what the MDS has committed.
+ */
+public class MDSLoadTest {
+	public static final String TAG = MDSLoadTest.class.toString();
+
+	public static final int DEFAULT_ENCOUNTERS = 10;
+	public static final String FAILED = "FAILED";
+	private static final int PICTURE_BYTES = 64 * 1024;
+	private static final long SEED = 42;
+
+	/** A procedure to create encounters of, and its picture elements. */
+	private static class Template {
+		final int procedureId;
+		final List<String> pictureIds;
+
+		Template(int procedureId, List<String> pictureIds) {
+			this.procedureId = procedureId;
+			this.pictureIds = pictureIds;
+		}
+	}
+
+	/**
+	 * Runs the load test. This takes a while, so call it from a background
+	 * thread.
+	 *
+	 * @param c current context
+	 * @param encounters the number of encounters to upload
+	 * @param latency the time the LocalMDS holds back each response for, in
+	 *            milliseconds
+	 * @return the results, one line each
+	 */
+	public static List<String> run(Context c, int encounters, int latency) {
+		List<String> results = new ArrayList<String>();
+		List<Template> templates = loadTemplates(c);
+		if (templates.isEmpty()) {
+			results.add("No procedures to upload encounters of.");
+			return results;
+		}
+
+		LocalMDS server = new LocalMDS();
+		server.setLatency(latency);
+		List<Uri> created = new ArrayList<Uri>(encounters);
+		try {
+			Random random = new Random(SEED);
+			for (int i = 0; i < encounters; i++)
+				created.add(createEncounter(c, templates.get(i % templates.size()), random));
+
+			server.start();
+			String mdsUrl = server.getUrl();
+			if (!MDSInterface.validateCredentials(c, mdsUrl)) {
+				results.add("The local MDS refused the credentials.");
+				return results;
+			}
+
+			long bytesBefore = server.getBytesReceived();
+			int requestsBefore = server.getRequests();
+			int uploaded = 0;
+			long start = System.currentTimeMillis();
+			for (Uri encounter : created) {
+				if (MDSInterface.postProcedureToDjangoServer(encounter, c, mdsUrl))
+					uploaded++;
+			}
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			long bytes = server.getBytesReceived() - bytesBefore;
+
+			String result = "latency " + latency + " ms: " + uploaded + " of " + encounters
+				+ " encounters, " + server.getBinariesReceived() + " binaries, "
+				+ (server.getRequests() - requestsBefore) + " requests, " + bytes
+				+ " bytes in " + elapsed + " ms: " + (uploaded * 60000L / elapsed)
+				+ " encounters/min, " + (bytes * 1000 / elapsed) + " bytes/s";
+			Log.i(TAG, result);
+			results.add(result);
+			EventDAO.registerEvent(c, EventType.PERFORMANCE_BENCHMARK, "upload " + result);
+		} catch (IOException e) {
+			Log.e(TAG, "Load test failed: " + e.toString());
+			results.add("Load test failed: " + e.toString());
+		} finally {
+			server.stop();
+			// The pooled connections to the LocalMDS are of no further use.
+			MDSHttpClient.closeIdleConnections(0);
+			// Deletes their pictures too.
+			for (Uri encounter : created)
+				c.getContentResolver().delete(encounter, null, null);
+		}
+		return results;
+	}
+
+	/**
+	 * Uploads an encounter to a LocalMDS which cuts off each picture half
+	 * way, without answering the chunk which crosses half way, so the MDS
+	 * has committed more than the phone knows. The upload is then run again
+	 * with resume on, and must send none of the bytes the MDS has
+	 * committed. This takes a while, so call it from a background thread.
+	 *
+	 * @param c current context
+	 * @return the result, starting with FAILED if the upload did not resume
+	 *         where the MDS left off
+	 */
+	public static List<String> checkResume(Context c) {
+		List<String> results = new ArrayList<String>();
+		Template template = null;
+		for (Template t : loadTemplates(c)) {
+			if (!t.pictureIds.isEmpty()) {
+				template = t;
+				break;
+			}
+		}
+		if (template == null) {
+			results.add("No procedures with pictures to check resuming uploads with.");
+			return results;
+		}
+
+		LocalMDS server = new LocalMDS();
+		Uri encounter = null;
+		try {
+			encounter = createEncounter(c, template, new Random(SEED));
+			server.start();
+			String mdsUrl = server.getUrl();
+			if (!MDSInterface.validateCredentials(c, mdsUrl)) {
+				results.add(FAILED + " resume: the local MDS refused the credentials.");
+				return results;
+			}
+
+			server.setAbortAt(PICTURE_BYTES / 2);
+			if (MDSInterface.postProcedureToDjangoServer(encounter, c, mdsUrl, true)) {
+				results.add(FAILED + " resume: the upload was not cut off.");
+				return results;
+			}
+			server.setAbortAt(0);
+
+			long total = (long)PICTURE_BYTES * template.pictureIds.size();
+			long committed = server.getBytesCommitted();
+			long bytesBefore = server.getChunkBytesReceived();
+			long resentBefore = server.getBytesResent();
+			boolean uploaded = MDSInterface.postProcedureToDjangoServer(encounter, c, mdsUrl, true);
+			long bytes = server.getChunkBytesReceived() - bytesBefore;
+			long resent = server.getBytesResent() - resentBefore;
+
+			String result = "resume: " + committed + " of " + total + " bytes committed when cut off, "
+				+ bytes + " sent to finish, " + resent + " of them committed before";
+			if (!uploaded)
+				result = FAILED + " " + result + ", the upload did not finish";
+			else if (resent > 0)
+				result = FAILED + " " + result;
+			else
+				result = "ok " + result;
+			Log.i(TAG, result);
+			results.add(result);
+		} catch (IOException e) {
+			Log.e(TAG, "Resume check failed: " + e.toString());
+			results.add(FAILED + " resume: " + e.toString());
+		} finally {
+			server.stop();
+			MDSHttpClient.closeIdleConnections(0);
+			if (encounter != null)
+				c.getContentResolver().delete(encounter, null, null);
+		}
+		return results;
+	}
+
+	private static List<Template> loadTemplates(Context c) {
+		List<Template> templates = new ArrayList<Template>();
+		Cursor cursor = c.getContentResolver().query(ProcedureSQLFormat.CONTENT_URI,
+				new String[] { ProcedureSQLFormat._ID }, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				int procedureId = cursor.getInt(0);
+				try {
+					Procedure p = Procedure.fromDatabase(c, procedureId);
+					List<String> pictureIds = new ArrayList<String>();
+					for (Map<String,String> element : p.toElementMap().values()) {
+						if (ElementType.PICTURE.toString().equals(element.get("type")))
+							pictureIds.add(element.get("id"));
+					}
+					templates.add(new Template(procedureId, pictureIds));
+				} catch (Exception e) {
+					Log.e(TAG, "Could not load procedure " + procedureId + ": " + e.toString());
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return templates;
+	}
+
+	/**
+	 * Creates a finished encounter of a procedure, with a picture of random
+	 * bytes answering each of its picture elements.
+	 */
+	private static Uri createEncounter(Context c, Template template, Random random) throws IOException {
+		ContentValues cv = new ContentValues();
+		cv.put(SavedProcedureSQLFormat.PROCEDURE_ID, template.procedureId);
+		cv.put(SavedProcedureSQLFormat.FINISHED, true);
+		cv.put(SavedProcedureSQLFormat.UPLOADED, false);
+		Uri encounter = c.getContentResolver().insert(SavedProcedureSQLFormat.CONTENT_URI, cv);
+		String savedProcedureId = Long.toString(ContentUris.parseId(encounter));
+
+		Map<String,String> answers = new HashMap<String,String>();
+		byte[] picture = new byte[PICTURE_BYTES];
+		for (String elementId : template.pictureIds) {
+			cv.clear();
+			cv.put(ImageSQLFormat.SAVED_PROCEDURE_ID, savedProcedureId);
+			cv.put(ImageSQLFormat.ELEMENT_ID, elementId);
+			Uri image = c.getContentResolver().insert(ImageSQLFormat.CONTENT_URI, cv);
+			random.nextBytes(picture);
+			OutputStream os = c.getContentResolver().openOutputStream(image);
+			try {
+				os.write(picture);
+			} finally {
+				os.close();
+			}
+			answers.put(elementId, Long.toString(ContentUris.parseId(image)));
+		}
+
+		cv.clear();
+		cv.put(SavedProcedureSQLFormat.PROCEDURE_STATE, new JSONObject(answers).toString());
+		c.getContentResolver().update(encounter, cv, null, null);
+		return encounter;
+	}
+}
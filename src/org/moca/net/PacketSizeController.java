@@ -0,0 +1,192 @@
+package org.moca.net;
+
+import org.moca.Constants;
+import org.moca.db.MocaDB.NetworkStatsSQLFormat;
+import org.moca.util.MocaUtil;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Adaptive chunk size shared by every binary stream of an upload.
+ *
+ * The size follows an additive increase, multiplicative decrease scheme on
+ * top of a smoothed (EWMA) estimate of the upload throughput. A fresh
+ * controller starts in slow start and doubles the size after every chunk
+ * until the link pushes back. After that each good chunk adds a fixed step,
+ * while a failed chunk, or one sent far slower than the estimate, halves the
+ * size. The size is also capped so that a chunk takes no longer than
+ * TARGET_CHUNK_TIME at the estimated throughput. Since all streams report to
+ * the same controller, a failing link shrinks the chunks of every stream
+ * rather than each one discovering it separately.
+ *
+ * What the controller learns is saved per kind of network (see
+ * MocaUtil.getNetworkType) so the next upload over the same kind of network
+ * starts near the right size instead of relearning it.
+ */
+public class PacketSizeController {
+	public static final String TAG = PacketSizeController.class.toString();
+
+	// gain of the throughput average, as used for TCP's smoothed RTT
+	private static final double GAIN = 0.125;
+	// bytes added to the packet size after each good chunk
+	private static final int ADDITIVE_INCREASE = 4000;
+	// factor applied to the packet size when the link pushes back
+	private static final double MULTIPLICATIVE_DECREASE = 0.5;
+	// a chunk slower than this fraction of the estimate signals congestion
+	private static final double CONGESTION_RATIO = 0.5;
+	// longest time in msec a chunk should take at the estimated throughput
+	private static final long TARGET_CHUNK_TIME = 10000;
+
+	private static final int MIN_PACKET_BYTES = Constants.MIN_PACKET_SIZE * 1000;
+
+	private final String networkType;
+	private int packetSize;
+	// smoothed throughput byte/msec, 0 until the first chunk is sent
+	private double throughput;
+	private boolean slowStart;
+	private int samples = 0;
+
+	/**
+	 * Creates a controller which knows nothing about the network yet.
+	 *
+	 * @param startPacketSize the initial packet size in bytes
+	 */
+	public PacketSizeController(int startPacketSize) {
+		this(null, startPacketSize, 0.0, true);
+	}
+
+	/**
+	 * @param networkType the kind of network the statistics are saved under, or null to not save them
+	 * @param startPacketSize the initial packet size in bytes
+	 * @param throughput the estimated throughput in bytes/msec, or 0 if unknown
+	 * @param slowStart whether to double the packet size until the first congestion signal
+	 */
+	public PacketSizeController(String networkType, int startPacketSize, double throughput, boolean slowStart) {
+		this.networkType = networkType;
+		this.packetSize = startPacketSize;
+		this.throughput = throughput;
+		this.slowStart = slowStart;
+	}
+
+	/**
+	 * Creates a controller for the current network, starting from what
+	 * earlier uploads learned about this kind of network if anything.
+	 *
+	 * @param c current context
+	 * @param defaultPacketSize the initial packet size in bytes if nothing has been learned yet
+	 * @return a new controller
+	 */
+	public static PacketSizeController load(Context c, int defaultPacketSize) {
+		String networkType = MocaUtil.getNetworkType(c);
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(NetworkStatsSQLFormat.CONTENT_URI,
+					new String[] { NetworkStatsSQLFormat.PACKET_SIZE, NetworkStatsSQLFormat.THROUGHPUT },
+					NetworkStatsSQLFormat.NETWORK_TYPE + "=?", new String[] { networkType }, null);
+			if (cursor != null && cursor.moveToFirst()) {
+				int packetSize = Math.max(cursor.getInt(0), MIN_PACKET_BYTES);
+				double throughput = cursor.getDouble(1);
+				Log.i(TAG, "Starting " + networkType + " upload at learned packet size " + packetSize + ", throughput " + throughput);
+				return new PacketSizeController(networkType, packetSize, throughput, false);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Could not read network statistics for " + networkType + ": " + e.toString());
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		Log.i(TAG, "Nothing learned about " + networkType + " yet, starting at packet size " + defaultPacketSize);
+		return new PacketSizeController(networkType, defaultPacketSize, 0.0, true);
+	}
+
+	/**
+	 * Saves what this controller learned for the next upload over the same
+	 * kind of network. Does nothing if no chunk was sent successfully.
+	 *
+	 * @param c current context
+	 */
+	public synchronized void save(Context c) {
+		if (networkType == null || samples == 0)
+			return;
+
+		ContentValues cv = new ContentValues();
+		cv.put(NetworkStatsSQLFormat.PACKET_SIZE, Math.max(packetSize, MIN_PACKET_BYTES));
+		cv.put(NetworkStatsSQLFormat.THROUGHPUT, throughput);
+		cv.put(NetworkStatsSQLFormat.MODIFIED_DATE, Long.valueOf(System.currentTimeMillis()));
+		try {
+			int updated = c.getContentResolver().update(NetworkStatsSQLFormat.CONTENT_URI, cv,
+					NetworkStatsSQLFormat.NETWORK_TYPE + "=?", new String[] { networkType });
+			if (updated == 0) {
+				cv.put(NetworkStatsSQLFormat.NETWORK_TYPE, networkType);
+				c.getContentResolver().insert(NetworkStatsSQLFormat.CONTENT_URI, cv);
+			}
+			Log.i(TAG, "Saved " + networkType + " packet size " + packetSize + ", throughput " + throughput);
+		} catch (Exception e) {
+			Log.e(TAG, "Could not save network statistics for " + networkType + ": " + e.toString());
+		}
+	}
+
+	/** @return the packet size in bytes to use for the next chunk */
+	public synchronized int getPacketSize() {
+		return packetSize;
+	}
+
+	/** @return the smoothed throughput in bytes/msec, or 0 if unknown */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Updates the packet size after a chunk transmission attempt.
+	 *
+	 * @param success whether the chunk was accepted by the MDS
+	 * @param bytes the size of the chunk
+	 * @param elapsed the time taken to send the chunk in milliseconds
+	 * @return the new packet size
+	 */
+	public synchronized int onChunkSent(boolean success, int bytes, long elapsed) {
+		if (!success) {
+			slowStart = false;
+			packetSize = (int)(packetSize * MULTIPLICATIVE_DECREASE);
+			Log.i(TAG, "Chunk failed, packet size decreased to " + packetSize);
+			return packetSize;
+		}
+
+		double rate = (double)bytes / (double)Math.max(elapsed, 1);
+		boolean congested = throughput > 0 && rate < throughput * CONGESTION_RATIO;
+		if (throughput > 0)
+			throughput += GAIN * (rate - throughput);
+		else
+			throughput = rate;
+		samples++;
+		Log.i(TAG, "packet rate = (current) " + rate + ", (smoothed) " + throughput);
+
+		if (congested) {
+			slowStart = false;
+			packetSize = Math.max((int)(packetSize * MULTIPLICATIVE_DECREASE), MIN_PACKET_BYTES);
+			Log.i(TAG, "Chunk slow, packet size decreased to " + packetSize);
+		} else if (slowStart) {
+			packetSize *= 2;
+			Log.i(TAG, "Slow start, packet size doubled to " + packetSize);
+		} else {
+			packetSize += ADDITIVE_INCREASE;
+			Log.i(TAG, "Packet size increased to " + packetSize);
+		}
+
+		long limit = Math.min((long)(throughput * TARGET_CHUNK_TIME), Integer.MAX_VALUE);
+		if (packetSize > limit) {
+			slowStart = false;
+			packetSize = Math.max((int)limit, MIN_PACKET_BYTES);
+			Log.i(TAG, "Packet size limited to " + packetSize + " by throughput");
+		}
+		return packetSize;
+	}
+
+	/** @return true if the packet size has dropped below the point where we give up */
+	public synchronized boolean isBelowMinimum() {
+		return packetSize < MIN_PACKET_BYTES;
+	}
+}
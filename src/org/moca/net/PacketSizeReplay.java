@@ -0,0 +1,109 @@
+package org.moca.net;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.moca.Constants;
+
+/**
+ * Replays chunk traces through a PacketSizeController and reports the packet
+ * size it chooses after each chunk, so a change to the controller can be
+ * compared against the same links before it ships.
+ *
+ * A trace is a sequence of (success, bytes, elapsed msec) samples, as
+ * transmitBinary reports them to onChunkSent. The samples are fed as
+ * recorded whatever size the controller asks for. A replay stops where an
+ * upload would give up, once the size drops below the minimum.
+ *
+ * The built in traces need nothing from Android beyond Log. From a desktop
+ * JVM, main() replays them, or the trace files named on the command line
+ * with one "success bytes elapsed" sample per line and # comments.
+ */
+public class PacketSizeReplay {
+	private static final int START_PACKET_BYTES = Constants.DEFAULT_INIT_PACKET_SIZE * 1000;
+
+	// success (1 or 0), bytes, elapsed msec
+	private static final String[] TRACE_NAMES = new String[] { "steady", "lossy", "congestion", "dropout" };
+	private static final int[][][] TRACES = new int[][][] {
+		// a link which keeps up about 40 bytes/msec
+		{ { 1, 20000, 500 }, { 1, 40000, 1000 }, { 1, 80000, 2000 }, { 1, 160000, 4000 },
+		  { 1, 320000, 8000 }, { 1, 400000, 10000 }, { 1, 400000, 10100 }, { 1, 404000, 9900 } },
+		// a slow link which drops every few chunks
+		{ { 1, 20000, 2000 }, { 0, 40000, 15000 }, { 1, 20000, 2100 }, { 0, 24000, 12000 },
+		  { 1, 12000, 1300 }, { 1, 16000, 1700 }, { 0, 20000, 9000 }, { 1, 10000, 1100 } },
+		// a fast link which slows down to a quarter of its rate
+		{ { 1, 20000, 400 }, { 1, 40000, 800 }, { 1, 80000, 1600 }, { 1, 160000, 3200 },
+		  { 1, 160000, 12000 }, { 1, 80000, 7000 }, { 1, 40000, 3600 }, { 1, 44000, 3900 } },
+		// a link which goes away
+		{ { 1, 20000, 1000 }, { 0, 40000, 30000 }, { 0, 20000, 30000 }, { 0, 10000, 30000 },
+		  { 0, 5000, 30000 }, { 0, 2500, 30000 }, { 0, 1250, 30000 }, { 0, 1000, 30000 } },
+	};
+
+	/**
+	 * Replays the built in traces.
+	 *
+	 * @return one line per trace with the packet size after each chunk
+	 */
+	public static List<String> run() {
+		List<String> results = new ArrayList<String>();
+		for (int i = 0; i < TRACES.length; i++)
+			results.add(replay(TRACE_NAMES[i], TRACES[i]));
+		return results;
+	}
+
+	/**
+	 * Replays one trace through a controller which starts at the default
+	 * packet size and knows nothing about the network.
+	 *
+	 * @param name what to call the trace in the result
+	 * @param samples success (1 or 0), bytes and elapsed msec of each chunk
+	 * @return the packet size after each chunk
+	 */
+	public static String replay(String name, int[][] samples) {
+		PacketSizeController controller = new PacketSizeController(START_PACKET_BYTES);
+		StringBuilder sb = new StringBuilder("packet size replay " + name + ": " + controller.getPacketSize());
+		for (int i = 0; i < samples.length; i++) {
+			sb.append(' ').append(controller.onChunkSent(samples[i][0] != 0, samples[i][1], samples[i][2]));
+			if (controller.isBelowMinimum()) {
+				sb.append(", gave up after chunk ").append(i + 1);
+				break;
+			}
+		}
+		sb.append(String.format(", throughput %.1f bytes/msec", controller.getThroughput()));
+		return sb.toString();
+	}
+
+	private static int[][] read(String path) throws IOException {
+		List<int[]> samples = new ArrayList<int[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != 3)
+					throw new IOException(path + ": expected success, bytes and elapsed in \"" + line + "\"");
+				samples.add(new int[] { Boolean.parseBoolean(fields[0]) || "1".equals(fields[0]) ? 1 : 0,
+						Integer.parseInt(fields[1]), Integer.parseInt(fields[2]) });
+			}
+		} finally {
+			reader.close();
+		}
+		return samples.toArray(new int[samples.size()][]);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			for (String result : run())
+				System.out.println(result);
+			return;
+		}
+		for (String path : args)
+			System.out.println(replay(path, read(path)));
+	}
+}
@@ -0,0 +1,320 @@
+package org.moca.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the patient list sent by the MDS from the response body as it
+ * arrives, handing each record to a Listener.
+ *
+ * The response is an MDSResult, a JSON dictionary whose `data' string holds
+ * records separated by "##". A patient record is the first name, the birth
+ * date, the last name, the patient id and a one letter gender, run together,
+ * e.g. "john19800101smith12345m". Records starting with "!since:" or
+ * "!deleted:" are sync instructions (see UserDatabase.syncPatients).
+ *
+ * The `data' string is decoded and split in a single pass, so only the
+ * current record is held in memory however long the list is. The record
+ * buffer is reused and records are split by scanning for the digit runs,
+ * rather than with regular expressions.
+ */
+public class PatientListReader {
+	private static final String SINCE_RECORD = "!since:";
+	private static final String DELETED_RECORD = "!deleted:";
+	private static final String SUCCESS_STRING = "SUCCESS";
+
+	// longest record kept, anything longer is not a patient
+	private static final int MAX_RECORD = 1024;
+	// longest failure message kept from a `data' which is not a patient list
+	private static final int MAX_MESSAGE = 256;
+
+	/** Receives the records of a patient list. */
+	public interface Listener {
+		/**
+		 * @param firstname the first name
+		 * @param lastname the last name
+		 * @param birthdate the birth date as yyyymmdd, or 0 if missing
+		 * @param id the patient id
+		 * @param gender "m" or "f"
+		 */
+		public void onPatient(String firstname, String lastname, int birthdate, String id, String gender);
+
+		/** @param token the token to send with the next sync */
+		public void onSince(String token);
+
+		/** @param id the id of a patient removed since the last sync */
+		public void onDeleted(String id);
+
+		/** @param record a record which could not be parsed */
+		public void onMalformed(String record);
+	}
+
+	private final Reader in;
+	private final Listener listener;
+	private final StringBuilder record = new StringBuilder(64);
+	private String status = null;
+	private String message = null;
+
+	/**
+	 * @param in the response body
+	 * @param listener receives the records
+	 */
+	public PatientListReader(Reader in, Listener listener) {
+		this.in = in.markSupported() ? in : new BufferedReader(in);
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads the whole response.
+	 *
+	 * If the MDS reports failure before sending `data', the data is taken
+	 * as the failure message and no records are passed on.
+	 *
+	 * @return true if the MDS reported success
+	 * @throws IOException if the response could not be read or is not a JSON dictionary
+	 */
+	public boolean read() throws IOException {
+		int ch = skipWhitespace();
+		if (ch != '{')
+			throw new IOException("Expected a JSON dictionary but got " + describe(ch));
+
+		ch = skipWhitespace();
+		if (ch == '}')
+			return false;
+		while (true) {
+			if (ch != '"')
+				throw new IOException("Expected a key but got " + describe(ch));
+			String key = readString(MAX_MESSAGE);
+			ch = skipWhitespace();
+			if (ch != ':')
+				throw new IOException("Expected ':' but got " + describe(ch));
+
+			ch = skipWhitespace();
+			if ("data".equals(key) && ch == '"') {
+				if (status == null || SUCCESS_STRING.equals(status))
+					readRecords();
+				else
+					message = readString(MAX_MESSAGE);
+			} else if ("status".equals(key) && ch == '"') {
+				status = readString(MAX_MESSAGE);
+			} else {
+				skipValue(ch);
+			}
+
+			ch = skipWhitespace();
+			if (ch == '}')
+				break;
+			if (ch != ',')
+				throw new IOException("Expected ',' or '}' but got " + describe(ch));
+			ch = skipWhitespace();
+		}
+		return SUCCESS_STRING.equals(status);
+	}
+
+	/** @return the failure message sent by the MDS, or null if there was none */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Decodes the `data' string, splitting it into records on "##". The
+	 * opening quote has been read.
+	 */
+	private void readRecords() throws IOException {
+		record.setLength(0);
+		boolean hash = false;
+		while (true) {
+			int ch = in.read();
+			if (ch == -1)
+				throw new IOException("Unterminated patient list");
+			if (ch == '"')
+				break;
+			if (ch == '\\')
+				ch = readEscape();
+
+			if (ch == '#') {
+				if (hash) {
+					endRecord();
+					hash = false;
+				} else {
+					hash = true;
+				}
+				continue;
+			}
+			if (hash) {
+				append('#');
+				hash = false;
+			}
+			append((char) ch);
+		}
+		if (hash)
+			append('#');
+		endRecord();
+	}
+
+	private void append(char ch) {
+		// Past the limit the record is kept only to be reported as malformed.
+		if (record.length() < MAX_RECORD)
+			record.append(ch);
+	}
+
+	/** Passes the buffered record to the listener and empties the buffer. */
+	private void endRecord() {
+		int start = 0;
+		int end = record.length();
+		while (start < end && Character.isWhitespace(record.charAt(start)))
+			start++;
+		while (end > start && Character.isWhitespace(record.charAt(end - 1)))
+			end--;
+		if (start == end) {
+			record.setLength(0);
+			return;
+		}
+
+		if (startsWith(start, SINCE_RECORD)) {
+			listener.onSince(record.substring(start + SINCE_RECORD.length(), end).trim());
+		} else if (startsWith(start, DELETED_RECORD)) {
+			listener.onDeleted(record.substring(start + DELETED_RECORD.length(), end).trim());
+		} else if (end - start >= MAX_RECORD || !parsePatient(start, end)) {
+			listener.onMalformed(record.substring(start, end));
+		}
+		record.setLength(0);
+	}
+
+	private boolean startsWith(int start, String prefix) {
+		if (record.length() - start < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (record.charAt(start + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits a patient record at its digit runs: first name, birth date,
+	 * last name, patient id, then the gender as the last character.
+	 *
+	 * @return false if the record does not have that shape
+	 */
+	private boolean parsePatient(int start, int end) {
+		// the gender is the last character
+		int last = end - 1;
+		char gender = record.charAt(last);
+		if (isDigit(gender))
+			return false;
+
+		int firstEnd = skip(start, last, false);
+		int dobEnd = skip(firstEnd, last, true);
+		int lastEnd = skip(dobEnd, last, false);
+		int idEnd = skip(lastEnd, last, true);
+		if (firstEnd == start || dobEnd == firstEnd || lastEnd == dobEnd || idEnd == lastEnd || idEnd != last)
+			return false;
+
+		int birthdate = 0;
+		for (int i = firstEnd; i < dobEnd && birthdate < 100000000; i++)
+			birthdate = birthdate * 10 + (record.charAt(i) - '0');
+		if (birthdate >= 100000000)
+			birthdate = 0;
+
+		listener.onPatient(record.substring(start, firstEnd), record.substring(dobEnd, lastEnd),
+				birthdate, record.substring(lastEnd, idEnd), String.valueOf(gender));
+		return true;
+	}
+
+	/** @return the index of the first character from i which is not (or is) a digit */
+	private int skip(int i, int end, boolean digits) {
+		while (i < end && isDigit(record.charAt(i)) == digits)
+			i++;
+		return i;
+	}
+
+	private static boolean isDigit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+
+	/** Reads the rest of a JSON string escape after the backslash. */
+	private int readEscape() throws IOException {
+		int ch = in.read();
+		switch (ch) {
+		case 'b': return '\b';
+		case 'f': return '\f';
+		case 'n': return '\n';
+		case 'r': return '\r';
+		case 't': return '\t';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(in.read(), 16);
+				if (digit < 0)
+					throw new IOException("Bad unicode escape");
+				value = (value << 4) | digit;
+			}
+			return value;
+		case -1:
+			throw new IOException("Unterminated escape");
+		default:
+			// '"', '\\' and '/' stand for themselves
+			return ch;
+		}
+	}
+
+	/**
+	 * Reads a JSON string whose opening quote has been read, keeping at most
+	 * limit characters of it.
+	 */
+	private String readString(int limit) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			int ch = in.read();
+			if (ch == -1)
+				throw new IOException("Unterminated string");
+			if (ch == '"')
+				return sb.toString();
+			if (ch == '\\')
+				ch = readEscape();
+			if (sb.length() < limit)
+				sb.append((char) ch);
+		}
+	}
+
+	/** Skips a JSON value whose first character is ch. */
+	private void skipValue(int ch) throws IOException {
+		if (ch == '"') {
+			readString(0);
+		} else if (ch == '{' || ch == '[') {
+			int depth = 1;
+			while (depth > 0) {
+				ch = in.read();
+				if (ch == -1)
+					throw new IOException("Unterminated value");
+				if (ch == '"')
+					readString(0);
+				else if (ch == '{' || ch == '[')
+					depth++;
+				else if (ch == '}' || ch == ']')
+					depth--;
+			}
+		} else {
+			// a number, true, false or null, which ends at ',' or '}'
+			while (ch != -1 && ch != ',' && ch != '}' && !Character.isWhitespace(ch)) {
+				in.mark(1);
+				ch = in.read();
+			}
+			in.reset();
+		}
+	}
+
+	private int skipWhitespace() throws IOException {
+		int ch;
+		do {
+			ch = in.read();
+		} while (ch != -1 && Character.isWhitespace(ch));
+		return ch;
+	}
+
+	private static String describe(int ch) {
+		return ch == -1 ? "end of input" : "'" + (char) ch + "'";
+	}
+}
@@ -0,0 +1,111 @@
+package org.moca.net;
+
+/**
+ * Running estimate of the round trip time and throughput to the MDS, from
+ * which request timeouts are derived.
+ *
+ * The round trip time is tracked the way TCP computes its retransmission
+ * timeout (RFC 2988): a smoothed mean SRTT and mean deviation RTTVAR are
+ * updated from each sample, and the timeout is SRTT + 4 * RTTVAR, bounded by
+ * MIN_TIMEOUT and MAX_TIMEOUT. A timeout doubles the current value until the
+ * next successful exchange.
+ *
+ * Small requests are taken as pure round trips. For larger requests the
+ * round trip is subtracted from the elapsed time and the rest is used to
+ * update a smoothed throughput, so that a deadline can be given to requests
+ * in proportion to their size.
+ */
+public class RttEstimator {
+	// gains for SRTT and RTTVAR from RFC 2988
+	private static final double ALPHA = 0.125;
+	private static final double BETA = 0.25;
+	private static final int K = 4;
+
+	// timeout before anything has been measured, in msec
+	static final long INITIAL_TIMEOUT = 10000;
+	static final long MIN_TIMEOUT = 5000;
+	static final long MAX_TIMEOUT = 120000;
+
+	// requests of up to this many bytes are taken as pure round trips
+	private static final long SMALL_REQUEST = 2048;
+	// how many times longer than estimated a transfer may take
+	private static final int TRANSFER_MARGIN = 4;
+
+	private double srtt = 0.0;
+	private double rttvar = 0.0;
+	private long timeout = INITIAL_TIMEOUT;
+	// smoothed throughput in bytes/msec, 0 until measured
+	private double throughput = 0.0;
+
+	/**
+	 * Updates the estimates after a request completed.
+	 *
+	 * @param bytes the approximate size of the request
+	 * @param elapsed time from sending the request to receiving the response headers, in msec
+	 */
+	public synchronized void onExchange(long bytes, long elapsed) {
+		if (elapsed < 0)
+			return;
+		// The throughput can only be told apart from the round trip once a
+		// pure round trip has been seen.
+		if (bytes > SMALL_REQUEST && srtt == 0.0)
+			return;
+
+		if (bytes > SMALL_REQUEST) {
+			double transfer = elapsed - srtt;
+			if (transfer > 0.0) {
+				double rate = bytes / transfer;
+				if (throughput > 0.0)
+					throughput += ALPHA * (rate - throughput);
+				else
+					throughput = rate;
+			}
+		} else if (srtt == 0.0) {
+			srtt = elapsed;
+			rttvar = elapsed / 2.0;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - elapsed);
+			srtt = (1 - ALPHA) * srtt + ALPHA * elapsed;
+		}
+
+		if (srtt > 0.0)
+			timeout = bound((long)(srtt + K * rttvar));
+	}
+
+	/** Backs off the timeout after a request timed out. */
+	public synchronized void onTimeout() {
+		timeout = bound(timeout * 2);
+	}
+
+	/** @return the time allowed to connect or to wait for data, in msec */
+	public synchronized long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns the total time a request may take before it is abandoned.
+	 *
+	 * @param bytes the approximate size of the request
+	 * @param defaultThroughput throughput in bytes/msec to assume until it has been measured
+	 * @return the deadline in msec
+	 */
+	public synchronized long getDeadline(long bytes, double defaultThroughput) {
+		double rate = throughput > 0.0 ? throughput : defaultThroughput;
+		long transfer = rate > 0.0 ? (long)(TRANSFER_MARGIN * bytes / rate) : 0;
+		return timeout + transfer;
+	}
+
+	/** @return the smoothed round trip time in msec, or 0 if unknown */
+	public synchronized double getRoundTripTime() {
+		return srtt;
+	}
+
+	/** @return the smoothed throughput in bytes/msec, or 0 if unknown */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	private static long bound(long t) {
+		return Math.max(MIN_TIMEOUT, Math.min(t, MAX_TIMEOUT));
+	}
+}
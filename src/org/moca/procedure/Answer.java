@@ -0,0 +1,56 @@
+package org.moca.procedure;
+
+/**
+ * The answer to a ProcedureElement, parsed according to the element's type.
+ *
+ * Answers are saved, restored and sent to the MDS as strings, so an Answer is
+ * always built from the string form and toString() gives back exactly that
+ * string. Subclasses parse the string once, when the Answer is built, rather
+ * than every time the answer is looked at (see
+ * ProcedureElement.getTypedAnswer).
+ */
+public class Answer {
+    protected final String value;
+    private final boolean isInteger;
+    private final int intValue;
+
+    /**
+     * @param value the string form of the answer, null for no answer
+     */
+    public Answer(String value) {
+        this.value = value != null ? value : "";
+        int parsed = 0;
+        boolean integer = false;
+        if (this.value.length() > 0) {
+            try {
+                parsed = Integer.parseInt(this.value);
+                integer = true;
+            } catch (NumberFormatException e) {
+                // not a number
+            }
+        }
+        this.intValue = parsed;
+        this.isInteger = integer;
+    }
+
+    /** @return true if the element has not been answered */
+    public boolean isEmpty() {
+        return value.length() == 0;
+    }
+
+    /** @return true if the answer is a whole number */
+    public boolean isInteger() {
+        return isInteger;
+    }
+
+    /** @return the answer as a whole number, 0 unless isInteger() */
+    public int intValue() {
+        return intValue;
+    }
+
+    /** @return the string form of the answer */
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,34 @@
+package org.moca.procedure;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The answer to a PICTURE, SOUND or BINARYFILE element: the comma separated
+ * references to the captured files. Pictures and sounds are referred to by
+ * their ids in the ImageProvider and SoundProvider, binary files by path.
+ */
+public class BinaryAnswer extends Answer {
+    public static final String DELIMITER = ",";
+
+    private final List<String> refs;
+
+    public BinaryAnswer(String value) {
+        super(value);
+        if (isEmpty())
+            refs = Collections.emptyList();
+        else
+            refs = Collections.unmodifiableList(Arrays.asList(this.value.split(DELIMITER)));
+    }
+
+    /** @return the references to the files, in the order given */
+    public List<String> getRefs() {
+        return refs;
+    }
+
+    /** @return the number of files */
+    public int size() {
+        return refs.size();
+    }
+}
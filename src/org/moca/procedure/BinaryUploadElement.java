@@ -6,7 +6,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.moca.Constants;
-import org.w3c.dom.Node;
 
 import android.content.Context;
 import android.preference.PreferenceManager;
@@ -124,6 +123,11 @@ public class BinaryUploadElement extends ProcedureElement implements OnClickList
     	this.answer = answer;
     }
     
+    @Override
+    protected Answer parseAnswer(String answer) {
+    	return new BinaryAnswer(answer);
+    }
+    
     /**
      * Returns the path of the selected file for upload, or empty string if no file was selected.
      */
@@ -156,7 +160,7 @@ public class BinaryUploadElement extends ProcedureElement implements OnClickList
     /**
      * Create a BinaryUploadElement from an XML procedure definition.
      */
-    public static BinaryUploadElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
+    public static BinaryUploadElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
         return new BinaryUploadElement(id, question, answer, concept, figure, audio);
     }
 
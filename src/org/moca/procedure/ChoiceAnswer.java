@@ -0,0 +1,65 @@
+package org.moca.procedure;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The answer to an element offering a fixed set of options: a SELECT or
+ * RADIO element, which takes one option, or a MULTI_SELECT element, whose
+ * options are joined with MultiSelectElement.TOKEN_DELIMITER.
+ */
+public class ChoiceAnswer extends Answer {
+    private final List<Answer> choices;
+    private final BitSet selected;
+
+    /**
+     * @param value the string form of the answer
+     * @param options the options the element offers
+     * @param multiple whether several options may be chosen
+     */
+    public ChoiceAnswer(String value, String[] options, boolean multiple) {
+        super(value);
+        if (isEmpty()) {
+            choices = Collections.emptyList();
+        } else if (multiple) {
+            String[] values = this.value.split(MultiSelectElement.TOKEN_DELIMITER);
+            List<Answer> list = new ArrayList<Answer>(values.length);
+            for (String v : values)
+                list.add(new Answer(v));
+            choices = Collections.unmodifiableList(list);
+        } else {
+            choices = Collections.singletonList(new Answer(this.value));
+        }
+
+        Set<String> chosen = new HashSet<String>();
+        for (Answer choice : choices)
+            chosen.add(choice.toString());
+        selected = new BitSet(options.length);
+        for (int i = 0; i < options.length; i++) {
+            if (chosen.contains(options[i]))
+                selected.set(i);
+        }
+    }
+
+    /**
+     * @return each chosen value, in the order given, including any which are
+     *         not among the options
+     */
+    public List<Answer> getChoices() {
+        return choices;
+    }
+
+    /** @return the indices of the chosen options */
+    public BitSet getSelected() {
+        return (BitSet) selected.clone();
+    }
+
+    /** @return true if the option at the given index was chosen */
+    public boolean isSelected(int option) {
+        return selected.get(option);
+    }
+}
@@ -0,0 +1,160 @@
+package org.moca.procedure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xml.sax.InputSource;
+
+import android.util.Log;
+
+/**
+ * A binary form of a parsed procedure definition, stored in the database
+ * alongside the XML (see ProcedureSQLFormat.COMPILED) so that a procedure can
+ * be loaded without parsing XML.
+ *
+ * The form is a header, a table of every distinct string in the definition,
+ * then the ProcedureNode tree depth first, with names and attribute values
+ * given as indices into the table:
+ *
+ * <pre>
+ * int MAGIC, int FORMAT_VERSION
+ * unsigned short string count, UTF strings
+ * node: unsigned short name, unsigned short attribute count,
+ *       (unsigned short key, unsigned short value) per attribute,
+ *       unsigned short child count, child nodes
+ * </pre>
+ *
+ * Compiled definitions with another FORMAT_VERSION are not loaded, and the
+ * XML is parsed instead. FORMAT_VERSION must be changed whenever the layout
+ * is, along with a database upgrade which compiles the stored procedures
+ * again (see ProcedureProvider.onUpgradeDatabase).
+ */
+public class CompiledProcedure {
+    public static final String TAG = CompiledProcedure.class.toString();
+
+    private static final int MAGIC = 0x4d50524f; // "MPRO"
+    public static final int FORMAT_VERSION = 1;
+
+    // indices and counts are written as unsigned shorts
+    private static final int MAX_INDEX = 0xffff;
+
+    /**
+     * Parses a procedure definition and compiles it.
+     *
+     * @return the compiled definition, or null if it could not be parsed or
+     *         is too large to compile
+     */
+    public static byte[] compile(String xml) {
+        try {
+            return compile(Procedure.parse(new InputSource(new StringReader(xml))));
+        } catch (Exception e) {
+            Log.e(TAG, "Could not compile procedure: " + e.toString());
+            return null;
+        }
+    }
+
+    static byte[] compile(ProcedureNode root) throws IOException {
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        collectStrings(root, indices, strings);
+        if (strings.size() > MAX_INDEX)
+            throw new IOException("Too many strings to compile: " + strings.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeShort(strings.size());
+        for (String s : strings)
+            out.writeUTF(s);
+        writeNode(out, root, indices);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Loads a compiled definition.
+     *
+     * @return the Procedure element of the definition, or null if it was
+     *         compiled with another FORMAT_VERSION
+     * @throws IOException if the compiled definition is damaged
+     */
+    static ProcedureNode load(byte[] compiled) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(compiled));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a compiled procedure");
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            Log.w(TAG, "Procedure compiled with format " + version + ", expected " + FORMAT_VERSION);
+            return null;
+        }
+        String[] strings = new String[in.readUnsignedShort()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+        return readNode(in, strings);
+    }
+
+    private static void collectStrings(ProcedureNode node, Map<String, Integer> indices, List<String> strings) {
+        addString(node.getName(), indices, strings);
+        for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+            addString(attribute.getKey(), indices, strings);
+            addString(attribute.getValue(), indices, strings);
+        }
+        for (ProcedureNode child : node.getChildren())
+            collectStrings(child, indices, strings);
+    }
+
+    private static void addString(String s, Map<String, Integer> indices, List<String> strings) {
+        if (!indices.containsKey(s)) {
+            indices.put(s, Integer.valueOf(strings.size()));
+            strings.add(s);
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, ProcedureNode node, Map<String, Integer> indices) throws IOException {
+        Map<String, String> attributes = node.getAttributes();
+        List<ProcedureNode> children = node.getChildren();
+        if (attributes.size() > MAX_INDEX || children.size() > MAX_INDEX)
+            throw new IOException("Element " + node.getName() + " is too large to compile");
+
+        out.writeShort(indices.get(node.getName()).intValue());
+        out.writeShort(attributes.size());
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            out.writeShort(indices.get(attribute.getKey()).intValue());
+            out.writeShort(indices.get(attribute.getValue()).intValue());
+        }
+        out.writeShort(children.size());
+        for (ProcedureNode child : children)
+            writeNode(out, child, indices);
+    }
+
+    private static ProcedureNode readNode(DataInputStream in, String[] strings) throws IOException {
+        String name = readString(in, strings);
+        int attributeCount = in.readUnsignedShort();
+        Map<String, String> attributes = new HashMap<String, String>(attributeCount * 2);
+        for (int i = 0; i < attributeCount; i++) {
+            String key = readString(in, strings);
+            attributes.put(key, readString(in, strings));
+        }
+        int childCount = in.readUnsignedShort();
+        List<ProcedureNode> children = new ArrayList<ProcedureNode>(childCount);
+        for (int i = 0; i < childCount; i++)
+            children.add(readNode(in, strings));
+        return new ProcedureNode(name, attributes, children);
+    }
+
+    private static String readString(DataInputStream in, String[] strings) throws IOException {
+        int index = in.readUnsignedShort();
+        if (index >= strings.length)
+            throw new IOException("Bad string index " + index);
+        return strings[index];
+    }
+}
@@ -0,0 +1,34 @@
+package org.moca.procedure;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The answer to a DATE element, written as yyyy/MM/dd.
+ */
+public class DateAnswer extends Answer {
+    public static final String FORMAT = "yyyy/MM/dd";
+
+    private final Date date;
+
+    public DateAnswer(String value) {
+        super(value);
+        Date parsed = null;
+        if (!isEmpty()) {
+            SimpleDateFormat sdf = new SimpleDateFormat(FORMAT);
+            sdf.setLenient(false);
+            try {
+                parsed = sdf.parse(this.value);
+            } catch (ParseException e) {
+                // not a date
+            }
+        }
+        date = parsed;
+    }
+
+    /** @return the date, or null if the answer is not a date */
+    public Date getDate() {
+        return date != null ? (Date) date.clone() : null;
+    }
+}
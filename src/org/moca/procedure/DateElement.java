@@ -3,8 +3,6 @@ package org.moca.procedure;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.view.View;
 import android.widget.DatePicker;
@@ -43,6 +41,11 @@ public class DateElement extends ProcedureElement {
 		 }
 	}
 
+	@Override
+	protected Answer parseAnswer(String answer) {
+		return new DateAnswer(answer);
+	}
+
 	@Override
 	public ElementType getType() {
 		return ElementType.DATE;
@@ -61,7 +64,7 @@ public class DateElement extends ProcedureElement {
     }
     
 	
-	public static DateElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node n) throws ProcedureParseException {
+	public static DateElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode n) throws ProcedureParseException {
 		return new DateElement(id, question, answer, concept, figure, audio);
     }
 
@@ -0,0 +1,49 @@
+package org.moca.procedure;
+
+/**
+ * The answer to a GPS element, written as
+ * "Latitude: &lt;degrees&gt; Longitude: &lt;degrees&gt;" once a location has been
+ * acquired.
+ */
+public class GeoAnswer extends Answer {
+    private static final String LATITUDE = "Latitude: ";
+    private static final String LONGITUDE = " Longitude: ";
+
+    private final boolean hasLocation;
+    private final double latitude;
+    private final double longitude;
+
+    public GeoAnswer(String value) {
+        super(value);
+        double lat = 0, lon = 0;
+        boolean parsed = false;
+        int split = this.value.indexOf(LONGITUDE);
+        if (this.value.startsWith(LATITUDE) && split > 0) {
+            try {
+                lat = Double.parseDouble(this.value.substring(LATITUDE.length(), split));
+                lon = Double.parseDouble(this.value.substring(split + LONGITUDE.length()));
+                parsed = true;
+            } catch (NumberFormatException e) {
+                // not a location
+            }
+        }
+        hasLocation = parsed;
+        latitude = lat;
+        longitude = lon;
+    }
+
+    /** @return true if the answer holds acquired coordinates */
+    public boolean hasLocation() {
+        return hasLocation;
+    }
+
+    /** @return the latitude in degrees, 0 unless hasLocation() */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /** @return the longitude in degrees, 0 unless hasLocation() */
+    public double getLongitude() {
+        return longitude;
+    }
+}
@@ -1,7 +1,5 @@
 package org.moca.procedure;
 
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.location.Location;
 import android.location.LocationListener;
@@ -100,6 +98,11 @@ public class GpsElement extends ProcedureElement implements OnClickListener {
       this.answer = answer;
     }
     
+    @Override
+    protected Answer parseAnswer(String answer) {
+    	return new GeoAnswer(answer);
+    }
+    
     /**
      * Get the acquired GPS coordinates.
      */
@@ -125,7 +128,7 @@ public class GpsElement extends ProcedureElement implements OnClickListener {
     /**
      * Create a GpsElement from an XML procedure definition.
      */
-    public static GpsElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
+    public static GpsElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
         return new GpsElement(id, question, answer, concept, figure, audio);
     }
     
@@ -1,15 +1,11 @@
 package org.moca.procedure;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.List;
 
-import org.moca.util.MocaUtil;
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CheckBox;
@@ -35,24 +31,20 @@ public class MultiSelectElement extends ProcedureElement {
     protected View createView(Context c) {
         ScrollView sv = new ScrollView(c);
         LinearLayout ll = new LinearLayout(c);
-        HashSet<String> selectedSet = new HashSet<String>();
 
         if(answer == null)
         	answer = "";
         // we've got a problem if there are TOKEN_DELIMITERs in the value!
         // since getAnswer separates responses using TOKEN_DELIMITER
-        String[] values = answer.split(TOKEN_DELIMITER);
-        for(String val : values) {
-            selectedSet.add(val);
-        }
+        BitSet selected = ((ChoiceAnswer) getTypedAnswer()).getSelected();
         
         ll.setOrientation(LinearLayout.VERTICAL);
         choicelist = java.util.Arrays.asList(choices);
         cblist = new ArrayList<CheckBox>();
-        for(Object choice : choicelist) {
+        for(int i = 0; i < choices.length; i++) {
             CheckBox cb = new CheckBox(c);
-            cb.setText((String)choice);
-            cb.setChecked(selectedSet.contains(choice));
+            cb.setText(choices[i]);
+            cb.setChecked(selected.get(i));
             cblist.add(cb);
             ll.addView(cb);
         }
@@ -64,23 +56,19 @@ public class MultiSelectElement extends ProcedureElement {
     	this.answer = answer;
     	    		
     	if(isViewActive()) {
-    		String[] answers = answer.split(TOKEN_DELIMITER);
-    		HashSet<String> answerSet = new HashSet<String>();
-    		for(String a : answers) {
-    			answerSet.add(a);
-    			Log.i(TAG, "SetAnswer a:" + a + ":");
-    		}
-    		for (CheckBox c : cblist) {
-    			Log.i(TAG, "SetAnswer - :" + c.getText().toString() + ":");
-    			if(answerSet.contains(c.getText().toString())) {
-    				c.setChecked(true);
-    			} else{
-    				c.setChecked(false);
-    			}
+    		// The checkboxes were made from choices, in order.
+    		ChoiceAnswer parsed = (ChoiceAnswer) parseAnswer(answer);
+    		for (int i = 0; i < cblist.size(); i++) {
+    			cblist.get(i).setChecked(parsed.isSelected(i));
     		}
     	}
     }
     
+    @Override
+    protected Answer parseAnswer(String answer) {
+    	return new ChoiceAnswer(answer, choices, true);
+    }
+    
     /**
      * Generate a string representing all of the user-selected elements delimited by
      * TOKEN_DELIMITER.
@@ -121,8 +109,8 @@ public class MultiSelectElement extends ProcedureElement {
     /**
      * Create a MultiSelectElement from an XML procedure definition.
      */
-    public static MultiSelectElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
-        String choicesStr = MocaUtil.getNodeAttributeOrDefault(node, "choices", "");
+    public static MultiSelectElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
+        String choicesStr = node.getAttribute("choices", "");
         return new MultiSelectElement(id, question, answer, concept, figure, audio, choicesStr.split(","));
     }
 
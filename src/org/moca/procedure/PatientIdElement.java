@@ -1,12 +1,17 @@
 package org.moca.procedure;
 
+import java.util.List;
+
 import org.moca.R;
-import org.w3c.dom.Node;
+import org.moca.db.PatientInfo;
+import org.moca.util.UserDatabase;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.text.method.DialerKeyListener;
 import android.util.Log;
 import android.view.Gravity;
@@ -24,8 +29,11 @@ import android.widget.TextView;
 public class PatientIdElement extends ProcedureElement implements OnClickListener {
     private EditText et;
     private Button barcodeButton;
+    private Button searchButton;
 
     private static final int BARCODE_INTENT_REQUEST_CODE = 2;
+    // the most patients a name search lists
+    private static final int SEARCH_LIMIT = 20;
     
     @Override
     public ElementType getType() {
@@ -57,6 +65,12 @@ public class PatientIdElement extends ProcedureElement implements OnClickListene
 	        barcodeButton.setGravity(Gravity.CENTER_HORIZONTAL);
 	    	ll.addView(barcodeButton, new LinearLayout.LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT));
     	}
+    	
+    	searchButton = new Button(c);
+    	searchButton.setText("Find by Name");
+    	searchButton.setOnClickListener(this);
+    	searchButton.setGravity(Gravity.CENTER_HORIZONTAL);
+    	ll.addView(searchButton, new LinearLayout.LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT));
 
         return encapsulateQuestion(c, ll);
     }
@@ -107,7 +121,7 @@ public class PatientIdElement extends ProcedureElement implements OnClickListene
     /**
      * Create a PatientIdElement from an XML procedure definition.
      */
-    public static PatientIdElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node n) {
+    public static PatientIdElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode n) {
         return new PatientIdElement(id, question, answer, concept, figure, audio);
     }
     
@@ -128,6 +142,57 @@ public class PatientIdElement extends ProcedureElement implements OnClickListene
 	    	      .show();
 	    	 }
 	  
+		 } else if (v == searchButton) {
+			 final EditText query = new EditText(getContext());
+			 new AlertDialog.Builder(getContext())
+			  .setTitle("Find Patient")
+			  .setMessage("Enter the patient's first name, last name or both.")
+			  .setView(query)
+			  .setPositiveButton("Search", new DialogInterface.OnClickListener() {
+				  public void onClick(DialogInterface dialog, int which) {
+					  if (query.getText().toString().trim().length() > 0)
+						  new PatientSearchTask().execute(query.getText().toString());
+				  }
+			  })
+			  .setNegativeButton("Cancel", null)
+			  .show();
+		 }
+	 }
+	 
+	 /**
+	  * Searches the patient cache by name off the UI thread, and answers
+	  * with the patient picked from the matches.
+	  */
+	 private class PatientSearchTask extends AsyncTask<String, Void, List<PatientInfo>> {
+		 @Override
+		 protected List<PatientInfo> doInBackground(String... params) {
+			 return UserDatabase.searchPatients(getContext(), params[0], SEARCH_LIMIT);
+		 }
+		 
+		 @Override
+		 protected void onPostExecute(final List<PatientInfo> patients) {
+			 if (patients.isEmpty()) {
+				 new AlertDialog.Builder(getContext())
+				  .setTitle("Find Patient")
+				  .setMessage("No patients with that name.")
+				  .setPositiveButton("Ok", null)
+				  .show();
+				 return;
+			 }
+			 String[] items = new String[patients.size()];
+			 for (int i = 0; i < items.length; i++) {
+				 PatientInfo pi = patients.get(i);
+				 items[i] = pi.getPatientFirstName() + " " + pi.getPatientLastName() 
+				 	+ " (" + pi.getPatientIdentifier() + ")";
+			 }
+			 new AlertDialog.Builder(getContext())
+			  .setTitle("Find Patient")
+			  .setItems(items, new DialogInterface.OnClickListener() {
+				  public void onClick(DialogInterface dialog, int which) {
+					  setAndRefreshAnswer(patients.get(which).getPatientIdentifier());
+				  }
+			  })
+			  .show();
 		 }
 	 }
     
@@ -8,7 +8,6 @@ import org.moca.ScalingImageAdapter;
 import org.moca.activity.ProcedureRunner;
 import org.moca.db.MocaDB;
 import org.moca.db.MocaDB.ImageSQLFormat;
-import org.w3c.dom.Node;
 
 import android.app.Activity;
 import android.content.ContentUris;
@@ -45,6 +44,9 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
     private GridView imageGrid;
     private ImagePreviewDialog imageReview;
     private Intent imageCaptureIntent;
+    // the images shown by imageGrid, and the activity managing it if any
+    private Cursor imageCursor;
+    private Activity imageCursorOwner;
 
     @Override
     public ElementType getType() {
@@ -56,6 +58,8 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
      */
     @Override
     protected View createView(Context c) {
+        // the view may be rebuilt for a new context without being dropped
+        releaseImageCursor();
         imageGrid = new GridView(c);
         
         String procedureId = getProcedure().getInstanceUri().getPathSegments().get(1);
@@ -71,7 +75,9 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
 		// HAXMODE -- if we don't do this we leak the Cursor 
 		if (c instanceof Activity) {
 			((Activity)c).startManagingCursor(cursor);
+			imageCursorOwner = (Activity)c;
 		}
+		imageCursor = cursor;
 		
 		
         imageAdapter = new ScalingImageAdapter(c, cursor, THUMBNAIL_SCALE_FACTOR);
@@ -115,6 +121,26 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
         return picContainer;
     }
     
+    /**
+     * Closes the cursor of the dropped view as well; a view built later
+     * queries its own.
+     */
+    @Override
+    void clearCachedView() {
+    	super.clearCachedView();
+    	releaseImageCursor();
+    }
+    
+    private void releaseImageCursor() {
+    	if (imageCursor != null) {
+    		if (imageCursorOwner != null)
+    			imageCursorOwner.stopManagingCursor(imageCursor);
+    		imageCursor.close();
+    		imageCursor = null;
+    		imageCursorOwner = null;
+    	}
+    }
+    
     // Sends an intent to ProcedureRunner with the image 
     // parameters. The native camera app is then called from 
     // ProcedureRunner.
@@ -177,12 +203,16 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
 		} else {
 			// TODO : Fix this so that it works! We have the id # of the picture, and we need to reset 'selected' to match this such that
 			// iadapter.getItemId(selected) == the answer we have here.
-			String[] ids = answer.split(",");
-			for(String id : ids) {
+			for(String id : new BinaryAnswer(answer).getRefs()) {
 				imageAdapter.setSelected(Long.parseLong(id), true);
 			}
 		}
 	}
+	
+	@Override
+	protected Answer parseAnswer(String answer) {
+		return new BinaryAnswer(answer);
+	}
     
     public String getAnswer() {
 //    	old stuff from single selection
@@ -243,7 +273,7 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
     /**
      * Create a PictureElement from an XML procedure definition.
      */
-    public static PictureElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
+    public static PictureElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
         return new PictureElement(id, question, answer, concept, figure, audio);
     }
 
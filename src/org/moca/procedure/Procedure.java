@@ -4,29 +4,31 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
 import org.moca.R;
 import org.moca.db.PatientInfo;
 import org.moca.db.PatientValidator;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.moca.db.MocaDB.ProcedureSQLFormat;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import android.content.ContentUris;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 import android.view.View;
+import android.widget.FrameLayout;
 import android.widget.ViewAnimator;
 
 /**
@@ -47,11 +49,33 @@ public class Procedure {
     private List<ProcedurePage> pages;
     public ListIterator<ProcedurePage> pagesIterator;
     private ProcedurePage currentPage;
+    private int currentIndex = -1;
     private ViewAnimator viewAnimator;
+    // Each page has a placeholder in viewAnimator. Only the pages around the
+    // displayed one have views built inside their placeholders; see
+    // updateViewWindow.
+    private FrameLayout[] pageFrames;
     private PatientInfo patientInfo = null;
+    
+    // Page visibility is kept rather than evaluating every ShowIf whenever
+    // the visible pages are counted. A page is evaluated again only when
+    // the answer to an element its ShowIf refers to has changed.
+    
+    // element id -> indices of the pages whose ShowIf refers to the element
+    private Map<String, List<Integer>> dependentPages;
+    // page index -> the elements on the page which a ShowIf refers to
+    private List<List<ProcedureElement>> watchedElements;
+    // element id -> the answer when the dependent pages were last evaluated
+    private Map<String, String> watchedAnswers;
+    // indices of pages whose answers were set other than on the current page
+    private Set<Integer> changedPages;
+    private boolean[] visible;
+    // visibleBefore[i] is the number of visible pages before page i
+    private int[] visibleBefore;
+    private boolean visibleBeforeStale;
 
     public Procedure(String title, String author, List<ProcedurePage> pages, HashMap<String, ProcedureElement> elements) {
-        this.pages = new LinkedList<ProcedurePage>();
+        this.pages = new ArrayList<ProcedurePage>(pages.size());
         //this.pages.addAll(pages);
         for(ProcedurePage pp : pages) {
             pp.setProcedure(this);
@@ -59,10 +83,99 @@ public class Procedure {
         }
         this.title = title;
         this.author = author;
-        pagesIterator = pages.listIterator();
+        buildDependencies();
+        pagesIterator = this.pages.listIterator();
         
         next();
     }
+    
+    /**
+     * Finds the elements each page's ShowIf refers to and evaluates every
+     * page.
+     */
+    private void buildDependencies() {
+        int n = pages.size();
+        dependentPages = new HashMap<String, List<Integer>>();
+        watchedAnswers = new HashMap<String, String>();
+        changedPages = new HashSet<Integer>();
+        visible = new boolean[n];
+        visibleBefore = new int[n + 1];
+        
+        Map<ProcedureElement, Integer> elementPages = new HashMap<ProcedureElement, Integer>();
+        watchedElements = new ArrayList<List<ProcedureElement>>(n);
+        for (int i = 0; i < n; i++) {
+            for (ProcedureElement e : pages.get(i).elements)
+                elementPages.put(e, Integer.valueOf(i));
+            watchedElements.add(new ArrayList<ProcedureElement>(0));
+        }
+        
+        for (int i = 0; i < n; i++) {
+            Set<ProcedureElement> referenced = new LinkedHashSet<ProcedureElement>();
+            pages.get(i).criteria.collectElements(referenced);
+            for (ProcedureElement e : referenced) {
+                List<Integer> dependents = dependentPages.get(e.getId());
+                if (dependents == null) {
+                    dependents = new ArrayList<Integer>(1);
+                    dependentPages.put(e.getId(), dependents);
+                    Integer page = elementPages.get(e);
+                    if (page != null)
+                        watchedElements.get(page.intValue()).add(e);
+                    watchedAnswers.put(e.getId(), e.getAnswer());
+                }
+                dependents.add(Integer.valueOf(i));
+            }
+            visible[i] = pages.get(i).shouldDisplay();
+        }
+        visibleBeforeStale = true;
+    }
+    
+    /**
+     * Notes that answers on a page were set other than by the user on the
+     * current page, so that pages depending on them are evaluated again.
+     */
+    void answersChanged(ProcedurePage page) {
+        int index = pages.indexOf(page);
+        if (index >= 0)
+            changedPages.add(Integer.valueOf(index));
+    }
+    
+    /**
+     * Evaluates again the pages depending on an answer which has changed.
+     * Only the current page, on which the user may have changed answers, and
+     * the pages passed to answersChanged are checked.
+     */
+    private void updateVisibility() {
+        if (currentIndex >= 0)
+            checkAnswers(currentIndex);
+        if (!changedPages.isEmpty()) {
+            for (Integer page : changedPages)
+                checkAnswers(page.intValue());
+            changedPages.clear();
+        }
+        if (visibleBeforeStale) {
+            for (int i = 0; i < visible.length; i++)
+                visibleBefore[i + 1] = visibleBefore[i] + (visible[i] ? 1 : 0);
+            visibleBeforeStale = false;
+        }
+    }
+    
+    private void checkAnswers(int pageIndex) {
+        for (ProcedureElement e : watchedElements.get(pageIndex)) {
+            String answer = e.getAnswer();
+            String previous = watchedAnswers.get(e.getId());
+            if (answer == null ? previous == null : answer.equals(previous))
+                continue;
+            watchedAnswers.put(e.getId(), answer);
+            for (Integer dependent : dependentPages.get(e.getId())) {
+                int i = dependent.intValue();
+                boolean display = pages.get(i).shouldDisplay();
+                if (display != visible[i]) {
+                    visible[i] = display;
+                    visibleBeforeStale = true;
+                }
+            }
+        }
+    }
 
     public void init() {
     }
@@ -124,11 +237,15 @@ public class Procedure {
      */
     public void next() {
         if (hasNext()) {
+            updateVisibility();
             currentPage = pagesIterator.next();
+            currentIndex = pagesIterator.previousIndex();
             if(viewAnimator != null && cachedContext != null) {
+                int leaving = viewAnimator.getDisplayedChild();
                 viewAnimator.setInAnimation(cachedContext,R.anim.slide_from_right);
                 viewAnimator.setOutAnimation(cachedContext,R.anim.slide_to_left);
                 viewAnimator.showNext();
+                updateViewWindow(leaving);
             }
         }
     }
@@ -139,11 +256,15 @@ public class Procedure {
      */
     public void prev() {
         if (hasPrev()) {
+            updateVisibility();
             currentPage = pagesIterator.previous();
+            currentIndex = pagesIterator.nextIndex();
             if(viewAnimator != null && cachedContext != null) {
+                int leaving = viewAnimator.getDisplayedChild();
                 viewAnimator.setInAnimation(cachedContext,R.anim.slide_from_left);
                 viewAnimator.setOutAnimation(cachedContext,R.anim.slide_to_right);
                 viewAnimator.showPrevious();
+                updateViewWindow(leaving);
             }
         }
     }
@@ -157,11 +278,8 @@ public class Procedure {
             return false;
         if (!pagesIterator.hasNext())
             return false;
-        for (int i = pagesIterator.nextIndex(); i < pages.size(); i++) {
-            if (pages.get(i).shouldDisplay())
-                return true;
-        }
-        return false;
+        updateVisibility();
+        return visibleBefore[pages.size()] > visibleBefore[pagesIterator.nextIndex()];
     }
     
     /**
@@ -175,11 +293,8 @@ public class Procedure {
             return false;
         if (pagesIterator.previousIndex() == 0)
         	return false;
-        for (int i = pagesIterator.previousIndex(); i >= 0; i--) {
-            if (pages.get(i).shouldDisplay())
-                return true;
-        }
-        return false;
+        updateVisibility();
+        return visibleBefore[pagesIterator.previousIndex() + 1] > 0;
     }
             
     /**
@@ -190,13 +305,16 @@ public class Procedure {
     public void advance() {
         if (!hasNextShowable())
             return;
+        int leaving = viewAnimator.getDisplayedChild();
         ProcedurePage pp = pagesIterator.next();
         viewAnimator.showNext();
-        while (hasNext() && !pp.shouldDisplay()) {
+        while (hasNext() && !visible[pagesIterator.previousIndex()]) {
             pp = pagesIterator.next();
             viewAnimator.showNext();
         }
+        updateViewWindow(leaving);
         currentPage = pp;
+        currentIndex = pagesIterator.previousIndex();
         
         // Fill in default values for data from patient in the database
 		PatientValidator.populateSpecialElements(this, patientInfo);
@@ -211,77 +329,69 @@ public class Procedure {
         if (!hasPrevShowable())
             return;
         ProcedurePage pp;
+        int leaving = viewAnimator.getDisplayedChild();
         // this will refer to the current page
         pagesIterator.previous();
         pp = pages.get(pagesIterator.previousIndex());
         viewAnimator.showPrevious();
-        while (hasPrev() && !pp.shouldDisplay()) {
+        while (hasPrev() && !visible[pagesIterator.previousIndex()]) {
             pagesIterator.previous();
             pp = pages.get(pagesIterator.previousIndex());
             viewAnimator.showPrevious();
         }
+        updateViewWindow(leaving);
         currentPage = pp;
+        currentIndex = pagesIterator.previousIndex();
     }
     
     public void jumpToPage(int pageIndex) {
         if (pageIndex < 0 || pageIndex >= pages.size()) {
         	return;
         }
-        pagesIterator = pages.listIterator();
+        updateVisibility();
         Log.i(TAG, "pageIndex value: " + pageIndex);
-        while(pagesIterator.nextIndex() != pageIndex) {
-            pagesIterator.next();
-        }
-        Log.i(TAG, "current index of page: " + getCurrentIndex());
+        pagesIterator = pages.listIterator(pageIndex);
         currentPage = pagesIterator.next();
-        Log.i(TAG, "current index of page: " + getCurrentIndex());
+        currentIndex = pageIndex;
         viewAnimator.setInAnimation(null);
         viewAnimator.setOutAnimation(null);
         viewAnimator.setDisplayedChild(pageIndex);
+        updateViewWindow(-1);
     }
     
     public void jumpToVisiblePage(int pageIndex) {
     	if (pageIndex < 0 || pageIndex >= pages.size())
     		return;
     	
-    	pagesIterator = pages.listIterator();
-    	int visibleIndex = 0;
+    	updateVisibility();
+    	// the first page with pageIndex visible pages before it
     	int actualIndex = 0;
-    	while (pagesIterator.hasNext()) {
-    		ProcedurePage page = pagesIterator.next();
-    		
-    		if (visibleIndex == pageIndex) {
-    			currentPage = page;
-    	        viewAnimator.setInAnimation(null);
-    	        viewAnimator.setOutAnimation(null);
-    	        viewAnimator.setDisplayedChild(actualIndex);
-    	        break;
-    		}
-    		
-    		if (page.shouldDisplay()) {
-    			visibleIndex++;
-    		}
+    	while (actualIndex < pages.size() && visibleBefore[actualIndex] != pageIndex) {
     		actualIndex++;
     	}
+    	if (actualIndex == pages.size()) {
+    		pagesIterator = pages.listIterator(actualIndex);
+    		return;
+    	}
+    	
+    	pagesIterator = pages.listIterator(actualIndex);
+    	currentPage = pagesIterator.next();
+    	currentIndex = actualIndex;
+    	viewAnimator.setInAnimation(null);
+    	viewAnimator.setOutAnimation(null);
+    	viewAnimator.setDisplayedChild(actualIndex);
+    	updateViewWindow(-1);
     }
     
     public int getCurrentIndex() {
-        return pages.indexOf(currentPage);
+        return currentIndex;
     }
     
     public int getCurrentVisibleIndex() {
-    	Iterator<ProcedurePage> pageIterator = pages.iterator();
-    	int visibleIndex = 0;
-    	while (pageIterator.hasNext()) {
-    		ProcedurePage page = pageIterator.next();
-    		if (page == currentPage) {
-    			return visibleIndex;
-    		}
-    		if (page.shouldDisplay()) {
-    			visibleIndex++;
-    		}
-    	}
-    	return 0;
+    	if (currentIndex < 0)
+    		return 0;
+    	updateVisibility();
+    	return visibleBefore[currentIndex];
     }
 
     public int getTotalPageCount() {
@@ -289,15 +399,8 @@ public class Procedure {
     }
     
     public int getVisiblePageCount() {
-    	Iterator<ProcedurePage> pageIterator = pages.iterator();
-    	int visibleCount = 0;
-    	while (pageIterator.hasNext()) {
-    		ProcedurePage page = pageIterator.next();
-    		if (page.shouldDisplay()) {
-    			visibleCount++;
-    		}
-    	}
-    	return visibleCount;
+    	updateVisibility();
+    	return visibleBefore[pages.size()];
     }
     
     public String getTitle() {
@@ -354,41 +457,30 @@ public class Procedure {
         return answers;
     }
           
-    private static Procedure fromXML(Node node) throws ProcedureParseException {
+    /**
+     * Creates a procedure from a parsed procedure definition, without
+     * answers. Every call creates new pages and elements.
+     */
+    static Procedure fromNode(ProcedureNode node) throws ProcedureParseException {
         
-        if(!node.getNodeName().equals("Procedure")) {
-            throw new ProcedureParseException("Procedure got NodeName" + node.getNodeName());
+        if(!node.getName().equals("Procedure")) {
+            throw new ProcedureParseException("Procedure got NodeName" + node.getName());
         }        
         
         List<ProcedurePage> pages = new ArrayList<ProcedurePage>();
         
-        NodeList nl = node.getChildNodes();
         ProcedurePage page;
         HashMap<String, ProcedureElement> elts = new HashMap<String, ProcedureElement>();
-        for(int i=0; i<nl.getLength(); i++) {
-            Node child = nl.item(i);
-            if(child.getNodeName().equals("Page")) {
+        for(ProcedureNode child : node.getChildren()) {
+            if(child.getName().equals("Page")) {
                 page = ProcedurePage.fromXML(child, elts);
                 elts.putAll(page.getElementMap());
                 pages.add(page);
             }
         }
-        String title = "Untitled Procedure";
-        Node titleNode = node.getAttributes().getNamedItem("title");
+        String title = node.getAttribute("title", "Untitled Procedure");
         
-        if(titleNode != null) {
-        	title = titleNode.getNodeValue();
-            Log.i(TAG, "Loading Procedure from XML: " + title);
-            
-        }
-        
-        String author = "";
-        Node authorNode = node.getAttributes().getNamedItem("author");
-        if(authorNode != null) {
-        	author = authorNode.getNodeValue();
-            Log.i(TAG, "Author of this procedure: " + author);
-            
-        }
+        String author = node.getAttribute("author", "");
         
         Procedure procedure = new Procedure(title, author, pages, elts);
         return procedure;
@@ -403,53 +495,117 @@ public class Procedure {
     	return fromXML(new InputSource(new StringReader(xml)));
     }
     
+    /**
+     * Creates a procedure from the definition of a procedure in the database.
+     * The definition is loaded once and kept (see ProcedureTemplate), so
+     * later calls for the same procedure do not load it again. It is loaded
+     * from its compiled form when the database has one.
+     * 
+     * @param c current context
+     * @param procedureId the id of the procedure in the database
+     */
+    public static Procedure fromDatabase(Context c, int procedureId) throws IOException, ParserConfigurationException, SAXException, ProcedureParseException {
+    	Uri procedureUri = ContentUris.withAppendedId(ProcedureSQLFormat.CONTENT_URI, procedureId);
+    	String xml;
+    	byte[] compiled;
+    	Cursor cursor = c.getContentResolver().query(procedureUri, 
+    			new String[] { ProcedureSQLFormat.PROCEDURE, ProcedureSQLFormat.COMPILED }, null, null, null);
+    	try {
+    		if (!cursor.moveToFirst())
+    			throw new ProcedureParseException("No procedure " + procedureUri);
+    		xml = cursor.getString(0);
+    		compiled = cursor.isNull(1) ? null : cursor.getBlob(1);
+    	} finally {
+    		cursor.close();
+    	}
+    	return ProcedureTemplate.get(procedureId, xml, compiled).newInstance();
+    }
+    
     public static Procedure fromXML(InputSource xml) throws IOException, ParserConfigurationException, SAXException, ProcedureParseException {
-    	
-    	long processingTime = System.currentTimeMillis();
-    	
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setValidating(false);
-        dbf.setIgnoringComments(true);
-        dbf.setIgnoringElementContentWhitespace(true);
-        dbf.setNamespaceAware(false);
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        Document d = db.parse(xml);
+    	return fromNode(parse(xml));
+    }
+    
+    /**
+     * Parses a procedure definition. The definition is read with a SAX
+     * parser straight into ProcedureNodes, since a DOM of one of the larger
+     * procedures is slow to build and mostly whitespace.
+     * 
+     * @return the Procedure element of the definition
+     */
+    static ProcedureNode parse(InputSource xml) throws IOException, ParserConfigurationException, SAXException, ProcedureParseException {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setValidating(false);
+        spf.setNamespaceAware(false);
+        SAXParser sp = spf.newSAXParser();
+        ProcedureNode.Builder builder = new ProcedureNode.Builder();
+        sp.parse(xml, builder);
         
-        NodeList children = d.getChildNodes();
-        Node procedureNode = null;
-        for(int i=0; i<children.getLength(); i++) {
-            Node child = d.getChildNodes().item(i);
-            if(child.getNodeName().equals("Procedure")) {
-                procedureNode = child;
-                break;
-            }
-        }
-        if(procedureNode == null) {
+        ProcedureNode result = builder.getRoot("Procedure");
+        if(result == null) {
             throw new ProcedureParseException("Can't get procedure");
         }
-        Procedure result = fromXML(procedureNode);
-        
-        processingTime = System.currentTimeMillis() - processingTime;
-        Log.i(TAG, "Parsing procedure XML took " + processingTime + " milliseconds.");
-        
         return result;
     }
     
     private View createView(Context c) {
+        // keep what the views from any earlier context were showing
+        for(ProcedurePage page : pages) {
+            page.clearCachedView();
+        }
+        
         viewAnimator = new ViewAnimator(c);
         //viewAnimator.setInAnimation(AnimationUtils.loadAnimation(c,R.anim.slide_from_right));
         //viewAnimator.setOutAnimation(AnimationUtils.loadAnimation(c,R.anim.slide_to_left));
 
-        for(ProcedurePage page : pages) {
-            viewAnimator.addView(page.toView(c));
+        pageFrames = new FrameLayout[pages.size()];
+        for(int i = 0; i < pageFrames.length; i++) {
+            pageFrames[i] = new FrameLayout(c);
+            viewAnimator.addView(pageFrames[i]);
         }
+        updateViewWindow(-1);
 
         return viewAnimator;
     }
     
+    /**
+     * Builds the views of the displayed page and of the visible pages either
+     * side of it, and drops the views of every other page so that a long
+     * procedure does not hold the widgets and figures of all its pages at
+     * once. The page being left is kept until the next move, since it may
+     * still be animating out. A dropped page keeps its answers in its
+     * elements and is built again if it comes back into the window.
+     * 
+     * @param leaving the page displayed before the move, or -1
+     */
+    private void updateViewWindow(int leaving) {
+        if (pageFrames == null)
+            return;
+        updateVisibility();
+        int shown = viewAnimator.getDisplayedChild();
+        int before = shown - 1;
+        while (before >= 0 && !visible[before])
+            before--;
+        int after = shown + 1;
+        while (after < pages.size() && !visible[after])
+            after++;
+        
+        Context c = viewAnimator.getContext();
+        for (int i = 0; i < pageFrames.length; i++) {
+            boolean inWindow = i == shown || i == before || i == after || i == leaving;
+            boolean built = pageFrames[i].getChildCount() > 0;
+            if (inWindow && !built) {
+                pageFrames[i].addView(pages.get(i).toView(c));
+            } else if (!inWindow && built) {
+                pageFrames[i].removeAllViews();
+                pages.get(i).clearCachedView();
+            }
+        }
+    }
+    
     public void clearCachedViews() {
     	cachedView = null;
     	cachedContext = null;
+    	pageFrames = null;
     	
     	for (ProcedurePage pp : pages) {
     		pp.clearCachedView();
@@ -0,0 +1,270 @@
+package org.moca.procedure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.moca.R;
+import org.moca.db.EventDAO;
+import org.moca.db.MocaDB.EventSQLFormat.EventType;
+import org.moca.db.MocaDB.ProcedureSQLFormat;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Times the handling of every procedure in the database, on the phone it
+ * runs on:
+ * <ul>
+ * <li>parse: reading the XML definition</li>
+ * <li>load: reading the compiled definition</li>
+ * <li>build: making a Procedure from the definition</li>
+ * <li>showif: restoring a randomized set of answers to the elements which
+ * ShowIf criteria test, and counting the visible pages, which evaluates the
+ * criteria affected</li>
+ * <li>roundtrip: toAnswers followed by restoreAnswers</li>
+ * <li>elementmap: toElementMap</li>
+ * </ul>
+ * The protocols in res/raw are also parsed both with the SAX parser
+ * Procedure.parse uses and with the DOM parser it replaced, timing each:
+ * <ul>
+ * <li>sax and dom: reading the XML definition with each parser</li>
+ * </ul>
+ * A protocol whose procedures from the two parsers differ in toXML is
+ * reported as such rather than timed.
+ * Each timing is the mean over a number of runs, after one untimed run. The
+ * answer sets come from a fixed seed, so runs on the same procedures are
+ * comparable. Results are recorded as PERFORMANCE_BENCHMARK events, which
+ * are sent to the MDS with the rest of the event log, so a slowdown shows up
+ * against earlier releases and other phones.
+ */
+public class ProcedureBenchmark {
+    public static final String TAG = ProcedureBenchmark.class.toString();
+
+    private static final int DEFINITION_RUNS = 20;
+    private static final int ANSWER_RUNS = 200;
+    private static final long SEED = 42;
+
+    private final Context context;
+    private final List<String> results = new ArrayList<String>();
+
+    private ProcedureBenchmark(Context c) {
+        this.context = c;
+    }
+
+    /**
+     * Runs the benchmark over every procedure in the database. This takes a
+     * while, so call it from a background thread.
+     *
+     * @param c current context
+     * @return the results, one line per timing
+     */
+    public static List<String> run(Context c) {
+        ProcedureBenchmark benchmark = new ProcedureBenchmark(c);
+        Cursor cursor = c.getContentResolver().query(ProcedureSQLFormat.CONTENT_URI,
+                new String[] { ProcedureSQLFormat.TITLE, ProcedureSQLFormat.PROCEDURE,
+                ProcedureSQLFormat.COMPILED }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String title = cursor.getString(0);
+                try {
+                    benchmark.measure(title, cursor.getString(1),
+                            cursor.isNull(2) ? null : cursor.getBlob(2));
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not benchmark " + title + ": " + e.toString());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Field field : R.raw.class.getFields()) {
+            String name = field.getName();
+            try {
+                benchmark.compareParsers(name, readRawResource(c, field.getInt(null)));
+            } catch (Exception e) {
+                Log.e(TAG, "Could not compare parsers on " + name + ": " + e.toString());
+            }
+        }
+        return benchmark.results;
+    }
+
+    private void measure(String title, String xml, byte[] compiled) throws Exception {
+        parse(xml);
+        long start = System.nanoTime();
+        for (int i = 0; i < DEFINITION_RUNS; i++)
+            parse(xml);
+        record(title, "parse", start, DEFINITION_RUNS);
+
+        ProcedureNode definition;
+        if (compiled != null && (definition = CompiledProcedure.load(compiled)) != null) {
+            start = System.nanoTime();
+            for (int i = 0; i < DEFINITION_RUNS; i++)
+                CompiledProcedure.load(compiled);
+            record(title, "load", start, DEFINITION_RUNS);
+        } else {
+            definition = parse(xml);
+        }
+
+        Procedure p = Procedure.fromNode(definition);
+        start = System.nanoTime();
+        for (int i = 0; i < DEFINITION_RUNS; i++)
+            Procedure.fromNode(definition);
+        record(title, "build", start, DEFINITION_RUNS);
+
+        // The elements the ShowIf criteria test, given the answers they test
+        // for and some which they don't
+        Set<String> elementIds = new HashSet<String>();
+        List<String> values = new ArrayList<String>();
+        collectCriteria(definition, elementIds, values);
+        values.add("");
+        values.add("0");
+        values.add("1000");
+        List<Map<String,String>> answerSets = randomAnswers(elementIds, values);
+
+        p.restoreAnswers(answerSets.get(0));
+        p.getVisiblePageCount();
+        start = System.nanoTime();
+        for (Map<String,String> answers : answerSets) {
+            p.restoreAnswers(answers);
+            p.getVisiblePageCount();
+        }
+        record(title, "showif", start, answerSets.size());
+
+        start = System.nanoTime();
+        for (int i = 0; i < ANSWER_RUNS; i++)
+            p.restoreAnswers(p.toAnswers());
+        record(title, "roundtrip", start, ANSWER_RUNS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ANSWER_RUNS; i++)
+            p.toElementMap();
+        record(title, "elementmap", start, ANSWER_RUNS);
+    }
+
+    private static ProcedureNode parse(String xml) throws Exception {
+        return Procedure.parse(new InputSource(new StringReader(xml)));
+    }
+
+    private void compareParsers(String name, byte[] xml) throws Exception {
+        String sax = Procedure.fromNode(parseSAX(xml)).toXML();
+        String dom = Procedure.fromNode(parseDOM(xml)).toXML();
+        if (!sax.equals(dom)) {
+            String result = name + " sax and dom differ in toXML";
+            Log.e(TAG, result);
+            results.add(result);
+            return;
+        }
+
+        parseSAX(xml);
+        long start = System.nanoTime();
+        for (int i = 0; i < DEFINITION_RUNS; i++)
+            parseSAX(xml);
+        record(name, "sax", start, DEFINITION_RUNS);
+
+        parseDOM(xml);
+        start = System.nanoTime();
+        for (int i = 0; i < DEFINITION_RUNS; i++)
+            parseDOM(xml);
+        record(name, "dom", start, DEFINITION_RUNS);
+    }
+
+    private static ProcedureNode parseSAX(byte[] xml) throws Exception {
+        return Procedure.parse(new InputSource(new ByteArrayInputStream(xml)));
+    }
+
+    /** Parses a definition the way Procedure.parse did before it used SAX. */
+    private static ProcedureNode parseDOM(byte[] xml) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setValidating(false);
+        dbf.setIgnoringComments(true);
+        dbf.setIgnoringElementContentWhitespace(true);
+        dbf.setNamespaceAware(false);
+        Document d = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        NodeList children = d.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeName().equals("Procedure"))
+                return fromDOM(children.item(i));
+        }
+        throw new ProcedureParseException("Can't get procedure");
+    }
+
+    private static ProcedureNode fromDOM(Node node) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        NamedNodeMap nodeAttributes = node.getAttributes();
+        if (nodeAttributes != null) {
+            for (int i = 0; i < nodeAttributes.getLength(); i++) {
+                Node attribute = nodeAttributes.item(i);
+                attributes.put(attribute.getNodeName(), attribute.getNodeValue());
+            }
+        }
+        List<ProcedureNode> children = new ArrayList<ProcedureNode>();
+        NodeList nl = node.getChildNodes();
+        for (int i = 0; i < nl.getLength(); i++) {
+            Node child = nl.item(i);
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                children.add(fromDOM(child));
+        }
+        return new ProcedureNode(node.getNodeName(), attributes, children);
+    }
+
+    private static byte[] readRawResource(Context c, int id) throws IOException {
+        InputStream in = c.getResources().openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void collectCriteria(ProcedureNode node, Set<String> elementIds, List<String> values) {
+        if ("Criteria".equals(node.getName())) {
+            elementIds.add(node.getAttribute("id", ""));
+            values.add(node.getAttribute("value", ""));
+        }
+        for (ProcedureNode child : node.getChildren())
+            collectCriteria(child, elementIds, values);
+    }
+
+    private static List<Map<String,String>> randomAnswers(Set<String> elementIds, List<String> values) {
+        Random random = new Random(SEED);
+        List<Map<String,String>> answerSets = new ArrayList<Map<String,String>>(ANSWER_RUNS);
+        for (int i = 0; i < ANSWER_RUNS; i++) {
+            Map<String,String> answers = new HashMap<String,String>();
+            for (String id : elementIds)
+                answers.put(id, values.get(random.nextInt(values.size())));
+            answerSets.add(answers);
+        }
+        return answerSets;
+    }
+
+    private void record(String title, String measure, long start, int runs) {
+        long micros = (System.nanoTime() - start) / 1000 / runs;
+        String result = title + " " + measure + " " + micros + " us";
+        Log.i(TAG, result);
+        results.add(result);
+        EventDAO.registerEvent(context, EventType.PERFORMANCE_BENCHMARK, result);
+    }
+}
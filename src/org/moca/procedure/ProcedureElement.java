@@ -1,8 +1,6 @@
 package org.moca.procedure;
 
 import org.moca.media.AudioPlayer;
-import org.moca.util.MocaUtil;
-import org.w3c.dom.Node;
 
 import android.content.Context;
 import android.util.Log;
@@ -74,10 +72,17 @@ public abstract class ProcedureElement {
     private AudioPlayer mAudioPlayer;
     private boolean bRequired = false;
     private String helpText;
+    private Answer typedAnswer;
     
     protected abstract View createView(Context c);
     
+    /**
+     * Drops this element's view. Whatever the view was showing is kept as the
+     * answer, so a view built later starts from it.
+     */
     void clearCachedView() {
+    	if (cachedView != null)
+    		answer = getAnswer();
     	cachedView = null;
     }
     
@@ -131,6 +136,27 @@ public abstract class ProcedureElement {
      */
     public abstract void setAnswer(String answer);
     
+    /**
+     * Returns the answer parsed according to this element's type. The answer is
+     * parsed again only when its string form has changed since the last call,
+     * so callers may look at it as often as they like.
+     */
+    public Answer getTypedAnswer() {
+    	String a = getAnswer();
+    	if (typedAnswer == null || !typedAnswer.toString().equals(a != null ? a : "")) {
+    		typedAnswer = parseAnswer(a);
+    	}
+    	return typedAnswer;
+    }
+    
+    /**
+     * Parses the string form of an answer to this element. Elements whose
+     * answers have more structure than a plain value override this.
+     */
+    protected Answer parseAnswer(String answer) {
+    	return new Answer(answer);
+    }
+    
     
     public boolean isRequired() {
     	return bRequired;
@@ -179,20 +205,20 @@ public abstract class ProcedureElement {
     /**
      * Create an element from an XML element node of a procedure definition.
      */
-    public static ProcedureElement createElementfromXML(Node node) throws ProcedureParseException {
-        //Log.i(TAG, "fromXML(" + node.getNodeName() + ")");
+    public static ProcedureElement createElementfromXML(ProcedureNode node) throws ProcedureParseException {
+        //Log.i(TAG, "fromXML(" + node.getName() + ")");
         
-        if(!node.getNodeName().equals("Element")) {
-            throw new ProcedureParseException("Element got NodeName " + node.getNodeName());
+        if(!node.getName().equals("Element")) {
+            throw new ProcedureParseException("Element got NodeName " + node.getName());
         }
 
-        String questionStr = MocaUtil.getNodeAttributeOrDefault(node, "question", "");
-        String answerStr = MocaUtil.getNodeAttributeOrDefault(node, "answer", null);
-        String typeStr = MocaUtil.getNodeAttributeOrDefault(node, "type", "INVALID");
-        String conceptStr = MocaUtil.getNodeAttributeOrDefault(node, "concept", "");
-        String idStr = MocaUtil.getNodeAttributeOrFail(node, "id", new ProcedureParseException("Element doesn't have id number"));
-        String figureStr = MocaUtil.getNodeAttributeOrDefault(node, "figure", "");
-        String audioStr = MocaUtil.getNodeAttributeOrDefault(node, "audio", "");
+        String questionStr = node.getAttribute("question", "");
+        String answerStr = node.getAttribute("answer", null);
+        String typeStr = node.getAttribute("type", "INVALID");
+        String conceptStr = node.getAttribute("concept", "");
+        String idStr = node.getAttributeOrFail("id", new ProcedureParseException("Element doesn't have id number"));
+        String figureStr = node.getAttribute("figure", "");
+        String audioStr = node.getAttribute("audio", "");
         
         ElementType etype = ElementType.valueOf(typeStr);
 
@@ -240,10 +266,10 @@ public abstract class ProcedureElement {
         	throw new ProcedureParseException("Failed to parse node with id " + idStr);
         }
         
-        String helpStr = MocaUtil.getNodeAttributeOrDefault(node, "helpText", "");
+        String helpStr = node.getAttribute("helpText", "");
         el.setHelpText(helpStr);
         
-        String requiredStr = MocaUtil.getNodeAttributeOrDefault(node, "required", "false");
+        String requiredStr = node.getAttribute("required", "false");
         if ("true".equals(requiredStr)) {
         	el.setRequired(true);
         } else if ("false".equals(requiredStr)) {
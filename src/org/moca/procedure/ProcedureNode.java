@@ -0,0 +1,105 @@
+package org.moca.procedure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * An element of a parsed procedure definition: its name, its attributes and
+ * its child elements. Procedure definitions carry everything in attributes,
+ * so text and comments are dropped.
+ *
+ * Nodes never change once built, so one parsed definition can be shared by
+ * every Procedure created from it, on any thread (see ProcedureTemplate).
+ */
+public class ProcedureNode {
+    private final String name;
+    private final Map<String, String> attributes;
+    private final List<ProcedureNode> children;
+
+    public ProcedureNode(String name, Map<String, String> attributes, List<ProcedureNode> children) {
+        this.name = name;
+        this.attributes = attributes;
+        this.children = Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Builds the nodes of a document as a SAX parser reads it, without
+     * building a DOM. Besides the finished nodes, only the names,
+     * attributes and children of the elements still open are kept.
+     */
+    static class Builder extends DefaultHandler {
+        // the elements still open, innermost last
+        private final List<String> names = new ArrayList<String>();
+        private final List<Map<String, String>> attributes = new ArrayList<Map<String, String>>();
+        private final List<List<ProcedureNode>> children = new ArrayList<List<ProcedureNode>>();
+        private final List<ProcedureNode> roots = new ArrayList<ProcedureNode>(1);
+
+        /** @return the top-level element with the given name, or null if there is none */
+        public ProcedureNode getRoot(String name) {
+            for (ProcedureNode root : roots) {
+                if (root.getName().equals(name))
+                    return root;
+            }
+            return null;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            Map<String, String> map = new HashMap<String, String>(atts.getLength() * 2);
+            for (int i = 0; i < atts.getLength(); i++)
+                map.put(atts.getQName(i), atts.getValue(i));
+            names.add(qName);
+            attributes.add(map);
+            children.add(new ArrayList<ProcedureNode>(0));
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            int last = names.size() - 1;
+            ProcedureNode node = new ProcedureNode(names.remove(last), attributes.remove(last), children.remove(last));
+            if (last == 0)
+                roots.add(node);
+            else
+                children.get(last - 1).add(node);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value of the attribute, or defaultValue if the node does not have it
+     */
+    public String getAttribute(String attribute, String defaultValue) {
+        String value = attributes.get(attribute);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return the value of the attribute
+     * @throws ExceptionType e, if the node does not have the attribute
+     */
+    public <ExceptionType extends Exception> String getAttributeOrFail(String attribute, ExceptionType e) throws ExceptionType {
+        String value = attributes.get(attribute);
+        if (value == null)
+            throw e;
+        return value;
+    }
+
+    /** @return the names and values of the attributes, which must not be modified */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    /** @return the child elements */
+    public List<ProcedureNode> getChildren() {
+        return children;
+    }
+}
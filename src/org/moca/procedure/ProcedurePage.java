@@ -8,8 +8,6 @@ import java.util.Map;
 import org.moca.db.PatientValidator;
 import org.moca.procedure.ProcedureElement.ElementType;
 import org.moca.procedure.branching.Criteria;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import android.content.Context;
 import android.util.Log;
@@ -56,6 +54,8 @@ public class ProcedurePage {
 	}
 	
 	void clearCachedView() {
+		cachedView = null;
+		cachedContext = null;
 		for (ProcedureElement pe : elements) {
 			pe.clearCachedView();
 		}
@@ -147,6 +147,8 @@ public class ProcedurePage {
 				e.setAnswer(value);
 			}
 		}
+		if (procedure != null)
+			procedure.answersChanged(this);
 	}
 
 	public boolean isSpecialElement(ProcedureElement e) {
@@ -266,10 +268,11 @@ public class ProcedurePage {
 	public void restoreAnswers(Map<String,String> answersMap) {
 		for(ProcedureElement s : elements) {
 			if(answersMap.containsKey(s.getId())) {
-				Log.i(TAG, "restoreAnswers : " + s.getId() + " " + answersMap.get(s.getId()));
 				s.setAnswer(answersMap.get(s.getId()));
 			}
 		}
+		if (procedure != null)
+			procedure.answersChanged(this);
 	}
 
 	public Map<String,String> toAnswers() {
@@ -304,22 +307,20 @@ public class ProcedurePage {
 	/**
 	 * Create a ProcedurePage from a node in an XML procedure description.
 	 */
-	public static ProcedurePage fromXML(Node node,
+	public static ProcedurePage fromXML(ProcedureNode node,
 			HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
 		//Log.i(TAG, "ProcedurePage.fromXML(" + node.toString() + ")");
-		if (!node.getNodeName().equals("Page")) {
+		if (!node.getName().equals("Page")) {
 			throw new ProcedureParseException("ProcedurePage got NodeName "
-					+ node.getNodeName());
+					+ node.getName());
 		}
 		List<ProcedureElement> elements = new ArrayList<ProcedureElement>();
 		Criteria criteria = new Criteria();
-		NodeList children = node.getChildNodes();
 		boolean showIfAlreadyExists = false;
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
-			if (child.getNodeName().equals("Element")) {
+		for (ProcedureNode child : node.getChildren()) {
+			if (child.getName().equals("Element")) {
 				elements.add(ProcedureElement.createElementfromXML(child));
-			} else if (child.getNodeName().equals("ShowIf")) {
+			} else if (child.getName().equals("ShowIf")) {
 				//Log.i(TAG, "Page has ShowIf - creating Criteria");
 				if (showIfAlreadyExists)
 					throw new ProcedureParseException(
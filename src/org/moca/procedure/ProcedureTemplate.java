@@ -0,0 +1,121 @@
+package org.moca.procedure;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.moca.util.MocaUtil;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import android.util.Log;
+
+/**
+ * A parsed procedure definition from which any number of Procedures can be
+ * created without parsing the XML again.
+ *
+ * Loading a procedure in ProcedureRunner, and uploading and checking a saved
+ * procedure in MDSInterface, each need a fresh Procedure to restore answers
+ * into, and used to parse the whole definition every time. Parsed
+ * definitions are instead kept per procedure id along with a hash of the
+ * XML, so that a procedure updated from the MDS is parsed again.
+ *
+ * When the database holds a compiled definition (see CompiledProcedure), the
+ * first load of a procedure reads that instead of parsing the XML.
+ */
+public class ProcedureTemplate {
+    public static final String TAG = ProcedureTemplate.class.toString();
+
+    private static final Map<Integer, ProcedureTemplate> templates = new HashMap<Integer, ProcedureTemplate>();
+    private static int hits = 0;
+    private static int misses = 0;
+
+    private final String contentHash;
+    private final ProcedureNode root;
+
+    private ProcedureTemplate(String contentHash, ProcedureNode root) {
+        this.contentHash = contentHash;
+        this.root = root;
+    }
+
+    /**
+     * Returns the parsed definition of a procedure, parsing it unless the
+     * same definition was parsed before.
+     *
+     * @param procedureId the id of the procedure in the database
+     * @param xml the procedure definition
+     * @param compiled the compiled definition, or null if there is none
+     */
+    public static ProcedureTemplate get(int procedureId, String xml, byte[] compiled) throws IOException, ParserConfigurationException, SAXException, ProcedureParseException {
+        String hash = getContentHash(xml);
+        Integer key = Integer.valueOf(procedureId);
+        synchronized (templates) {
+            ProcedureTemplate template = templates.get(key);
+            if (template != null && hash != null && hash.equals(template.contentHash)) {
+                hits++;
+                return template;
+            }
+            misses++;
+        }
+
+        // Loaded outside the lock, two threads may both load a procedure
+        // the first time, which is harmless.
+        long processingTime = System.currentTimeMillis();
+        ProcedureNode root = null;
+        if (compiled != null) {
+            try {
+                root = CompiledProcedure.load(compiled);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not load compiled procedure " + procedureId + ": " + e.toString());
+            }
+        }
+        if (root == null)
+            root = Procedure.parse(new InputSource(new StringReader(xml)));
+
+        ProcedureTemplate template = new ProcedureTemplate(hash, root);
+        if (hash != null) {
+            synchronized (templates) {
+                templates.put(key, template);
+            }
+        }
+        processingTime = System.currentTimeMillis() - processingTime;
+        Log.i(TAG, "Loaded procedure " + procedureId + " in " + processingTime + " milliseconds, templates " + getStats());
+        return template;
+    }
+
+    /** Forgets every parsed definition. */
+    public static void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    /** @return the number of procedures created with and without parsing */
+    public static String getStats() {
+        synchronized (templates) {
+            return hits + " hits, " + misses + " misses";
+        }
+    }
+
+    /**
+     * Creates a new Procedure, without answers, from this definition.
+     */
+    public Procedure newInstance() throws ProcedureParseException {
+        return Procedure.fromNode(root);
+    }
+
+    private static String getContentHash(String xml) {
+        MessageDigest digest = MocaUtil.getContentDigest();
+        if (digest == null)
+            return null;
+        try {
+            return MocaUtil.toHexString(digest.digest(xml.getBytes("UTF-8")));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -3,9 +3,6 @@ package org.moca.procedure;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.moca.util.MocaUtil;
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.text.TextUtils;
 import android.view.View;
@@ -72,6 +69,11 @@ public class RadioElement extends ProcedureElement {
     	}
     }
     
+    @Override
+    protected Answer parseAnswer(String answer) {
+    	return new ChoiceAnswer(answer, choices, false);
+    }
+    
     /**
      * Generate a string contained the user selection (the answer to the question).
      */
@@ -106,8 +108,8 @@ public class RadioElement extends ProcedureElement {
     /**
      * Create a RadioElement from an XML procedure definition.
      */
-    public static RadioElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
-        String choicesStr = MocaUtil.getNodeAttributeOrDefault(node, "choices", "");
+    public static RadioElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
+        String choicesStr = node.getAttribute("choices", "");
         return new RadioElement(id, question, answer, concept, figure, audio, choicesStr.split(","));
     }
     
@@ -3,9 +3,6 @@ package org.moca.procedure;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.moca.util.MocaUtil;
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.text.TextUtils;
 import android.view.View;
@@ -64,6 +61,11 @@ public class SelectElement extends ProcedureElement {
     	}
     }
 
+    @Override
+    protected Answer parseAnswer(String answer) {
+    	return new ChoiceAnswer(answer, choices, false);
+    }
+    
     /**
      * Return the selected answer as a string.
      */
@@ -93,8 +95,8 @@ public class SelectElement extends ProcedureElement {
     /**
      * Create a SelectElement from an XML procedure definition.
      */
-    public static SelectElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
-        String choicesStr = MocaUtil.getNodeAttributeOrDefault(node, "choices", "");
+    public static SelectElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
+        String choicesStr = node.getAttribute("choices", "");
         return new SelectElement(id, question, answer, concept, figure, audio, choicesStr.split(","));
     }
 
@@ -6,10 +6,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 
 import org.moca.Constants;
 import org.moca.db.MocaDB.SoundSQLFormat;
-import org.w3c.dom.Node;
+import org.moca.util.MocaUtil;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -183,16 +184,27 @@ public class SoundElement extends ProcedureElement implements OnClickListener {
 							InputStream is = new FileInputStream(path);
 		                	os = getContext().getContentResolver().openOutputStream(recording);
 		
+		                    MessageDigest digest = MocaUtil.getContentDigest();
 		                    int bytesRemaining = is.available();
 		                    while(bytesRemaining > 0) {
 		                    	int read = is.read(buffer);
 		                    	os.write(buffer, 0, read);
+		                    	if (digest != null)
+		                    		digest.update(buffer, 0, read);
 		                    	bytesRemaining -= read;
 		                    }
 		
 		                    is.close();
 							os.flush();
 							os.close();
+							
+							// Record the content hash so the uploader can skip
+							// content the MDS already has.
+							if (digest != null) {
+								ContentValues hashValues = new ContentValues();
+								hashValues.put(SoundSQLFormat.CONTENT_HASH, MocaUtil.toHexString(digest.digest()));
+								getContext().getContentResolver().update(recording, hashValues, null, null);
+							}
 							Log.i(TAG, "Successfully saved audio");
 							
 						} catch (FileNotFoundException e) {
@@ -269,6 +281,11 @@ public class SoundElement extends ProcedureElement implements OnClickListener {
     	this.answer = answer;
     }
     
+    @Override
+    protected Answer parseAnswer(String answer) {
+    	return new BinaryAnswer(answer);
+    }
+    
     /**
      * Returns a string indicating whether a sound was recorded or not. If sound was 
      * recorded, getAnswer returns "sound."
@@ -297,7 +314,7 @@ public class SoundElement extends ProcedureElement implements OnClickListener {
     /**
      * Create a SoundElement from an XML procedure definition.
      */
-    public static SoundElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
+    public static SoundElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
         return new SoundElement(id, question, answer, concept, figure, audio);
     }
 
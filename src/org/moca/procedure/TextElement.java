@@ -1,7 +1,5 @@
 package org.moca.procedure;
 
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.view.Gravity;
 import android.view.View;
@@ -53,7 +51,7 @@ public class TextElement extends ProcedureElement {
     /**
      * Create a TextElement from an XML procedure definition.
      */
-    public static TextElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node node) {
+    public static TextElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode node) {
         return new TextElement(id, question, answer, concept, figure, audio);
     }
 }
@@ -1,8 +1,5 @@
 package org.moca.procedure;
 
-import org.moca.util.MocaUtil;
-import org.w3c.dom.Node;
-
 import android.content.Context;
 import android.text.InputType;
 import android.text.method.DialerKeyListener;
@@ -108,8 +105,8 @@ public class TextEntryElement extends ProcedureElement {
     /**
      * Create a TextEntryElement from an XML procedure definition.
      */
-    public static TextEntryElement fromXML(String id, String question, String answer, String concept, String figure, String audio, Node n) throws ProcedureParseException {
-    	String numericStr = MocaUtil.getNodeAttributeOrDefault(n, "numeric", "NONE");
+    public static TextEntryElement fromXML(String id, String question, String answer, String concept, String figure, String audio, ProcedureNode n) throws ProcedureParseException {
+    	String numericStr = n.getAttribute("numeric", "NONE");
     	
     	NumericType numericType = NumericType.NONE;
     	try {
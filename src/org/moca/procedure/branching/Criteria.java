@@ -1,11 +1,12 @@
 package org.moca.procedure.branching;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 import org.moca.procedure.ProcedureElement;
+import org.moca.procedure.ProcedureNode;
 import org.moca.procedure.ProcedureParseException;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * Criteria is the concrete base class for representing arbitrary logic that is
@@ -34,42 +35,49 @@ public class Criteria {
         return true;
     }
 
+    /**
+     * Adds the elements whose answers criteriaMet() depends on. Child classes
+     * override this method along with criteriaMet().
+     */
+    public void collectElements(Collection<ProcedureElement> elements) {
+    }
+
     /**
      * A call to fromXML on a base Criteria type should only be used as a parse
      * entry- point on a ShowIf node. Child classes override this fromXML
      * method, and can be used on inner nodes. The fromXML method will recursively 
      * create a logic tree from the given XML description.
      */
-    public static Criteria fromXML(Node node,
+    public static Criteria fromXML(ProcedureNode node,
             HashMap<String, ProcedureElement> elts)
             throws ProcedureParseException {
         //Log.i(TAG, "Criteria.fromXML(" + node.toString() + ")");
-        if (!node.getNodeName().equals("ShowIf")) {
+        if (!node.getName().equals("ShowIf")) {
             throw new ProcedureParseException("Criteria got NodeName "
-                    + node.getNodeName());
+                    + node.getName());
         }
 
-        NodeList children = node.getChildNodes();
-        if (children.getLength() != 3) {
+        List<ProcedureNode> children = node.getChildren();
+        if (children.size() != 1) {
             throw new ProcedureParseException(
                     "Too many child nodes for a ShowIf: "
-                            + children.getLength());
+                            + children.size());
         }
-        Node child = children.item(1);
+        ProcedureNode child = children.get(0);
         return Criteria.switchOnCriteria(child, elts);
     }
 
-    public static Criteria switchOnCriteria(Node child,
+    public static Criteria switchOnCriteria(ProcedureNode child,
             HashMap<String, ProcedureElement> elts)
             throws ProcedureParseException {
         Criteria c = new Criteria();
-        if (child.getNodeName().equals("Criteria")) {
+        if (child.getName().equals("Criteria")) {
             c = LogicBase.fromXML(child, elts);
-        } else if (child.getNodeName().equals("and")) {
+        } else if (child.getName().equals("and")) {
             c = LogicAnd.fromXML(child, elts);
-        } else if (child.getNodeName().equals("or")) {
+        } else if (child.getName().equals("or")) {
             c = LogicOr.fromXML(child, elts);
-        } else if (child.getNodeName().equals("not")) {
+        } else if (child.getName().equals("not")) {
             c = LogicNot.fromXML(child, elts);
         }
         return c;
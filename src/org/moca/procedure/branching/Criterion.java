@@ -1,11 +1,9 @@
 package org.moca.procedure.branching;
 
-import org.moca.procedure.MultiSelectElement;
+import org.moca.procedure.Answer;
+import org.moca.procedure.ChoiceAnswer;
 import org.moca.procedure.ProcedureElement;
 import org.moca.procedure.ProcedureParseException;
-import org.moca.procedure.ProcedureElement.ElementType;
-
-import android.util.Log;
 
 /**
  * The Criterion class is a data representation of the XML 
@@ -23,6 +21,11 @@ public class Criterion {
     private CriterionType criterionType;
     private ProcedureElement element;
     private String value;
+    // value parsed once, for GREATER and LESS
+    private int intValue;
+    // the answer criterionMet last saw, and what it decided
+    private Answer lastAnswer = null;
+    private boolean lastMet;
     
     public Criterion(CriterionType critType, ProcedureElement elmt, String val) throws ProcedureParseException {
         this.criterionType = critType;
@@ -32,7 +35,7 @@ public class Criterion {
             throw new ProcedureParseException("Null element");
         if ((critType == CriterionType.GREATER) || (critType == CriterionType.LESS)) {
             try {
-                Integer.parseInt(val);
+                intValue = Integer.parseInt(val);
             } catch (NumberFormatException e) {
                 throw new ProcedureParseException("Cannot compare non-integer value. " +
                         "Cannot create criterion for element " + elmt.getId());
@@ -40,6 +43,11 @@ public class Criterion {
         }
     }
     
+    /** @return the element whose answer this Criterion tests */
+    public ProcedureElement getElement() {
+        return element;
+    }
+    
     /**
      * Checks if the given Criterion is met, given user responses.
      * 
@@ -47,29 +55,40 @@ public class Criterion {
      * evaluates as true, then the Criterion is met.
      * 
      * For blank (unanswered, blank default) elements, criterionMet evaluates as true.
+     * 
+     * The element parses its answer once per change (see
+     * ProcedureElement.getTypedAnswer), and the result is only evaluated
+     * again when the element hands back a different answer.
      */
     public boolean criterionMet() {
         // lookup what the user selected
-        String userVal = "";
+        Answer userVal;
         try {
-            userVal = element.getAnswer();
+            userVal = element.getTypedAnswer();
         } catch (NullPointerException e) {
             // play it safe and show the page
             return true;
         }           
         // check if it is empty
-        if ((userVal == "") || (userVal== null)) {
+        if (userVal.isEmpty()) {
             // empty user response, lets play it safe and show the page
             return true;
         }
-        // special case MULTI-SELECT
-        if (element.getType() == ElementType.MULTI_SELECT) {
+        if (userVal == lastAnswer)
+            return lastMet;
+        lastMet = answerMet(userVal);
+        lastAnswer = userVal;
+        return lastMet;
+    }
+    
+    private boolean answerMet(Answer userVal) {
+        // special case choices, which MULTI-SELECT may have several of
+        if (userVal instanceof ChoiceAnswer) {
             // We (arbitrarily) handle MultiSelect by seeing if 
             // ANY selection in the "answer" matches "val" 
             // if so, then it evaluates as true
-            String[] vals = userVal.split(MultiSelectElement.TOKEN_DELIMITER);
-            for (String s : vals) {
-                if (criterionMetHelper(s))
+            for (Answer a : ((ChoiceAnswer) userVal).getChoices()) {
+                if (criterionMetHelper(a))
                     return true;
             }
             return false;
@@ -79,26 +98,22 @@ public class Criterion {
         }
     }
     
-    private boolean criterionMetHelper(String userVal) {
+    private boolean criterionMetHelper(Answer userVal) {
         switch(criterionType) {
         case EQUALS:
-            if (value.equals(userVal)) {
+            if (value.equals(userVal.toString())) {
                 return true;
             }
             break;
         case GREATER:
-            try {
-                if (Integer.parseInt(userVal) > Integer.parseInt(value))
-                    return true;
             // show the page if we can't parse
-            } catch (NumberFormatException e) {return true;}
+            if (!userVal.isInteger() || userVal.intValue() > intValue)
+                return true;
             break;
         case LESS:
-            try {
-                if (Integer.parseInt(userVal) < Integer.parseInt(value))
-                    return true;
             // show the page if we can't parse
-            } catch (NumberFormatException e) {return true;}
+            if (!userVal.isInteger() || userVal.intValue() < intValue)
+                return true;
             break;
         }
         return false;
@@ -1,12 +1,12 @@
 package org.moca.procedure.branching;
 
+import java.util.Collection;
 import java.util.HashMap;
 
 import org.moca.procedure.ProcedureElement;
+import org.moca.procedure.ProcedureNode;
 import org.moca.procedure.ProcedureParseException;
 import org.moca.procedure.branching.Criterion.CriterionType;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
 
 /**
  * LogicBase is a Criteria subclass that serves as a container for a single
@@ -23,20 +23,21 @@ public  class LogicBase extends Criteria {
         return criterion.criterionMet();
     }
     
-    public static LogicBase fromXML(Node node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
-        if(!node.getNodeName().equals("Criteria")) {
-            throw new ProcedureParseException("LogicBase got NodeName " + node.getNodeName());
+    public void collectElements(Collection<ProcedureElement> elements) {
+        elements.add(criterion.getElement());
+    }
+    
+    public static LogicBase fromXML(ProcedureNode node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
+        if(!node.getName().equals("Criteria")) {
+            throw new ProcedureParseException("LogicBase got NodeName " + node.getName());
         }
-        if(node.getChildNodes().getLength() != 0) {
+        if(node.getChildren().size() != 0) {
             throw new ProcedureParseException("A single criteria has children.");
         }
         
-        NamedNodeMap attributes = node.getAttributes();
-        Node typeNode = attributes.getNamedItem("type");
-        String type = "";
+        String type = node.getAttribute("type", null);
         CriterionType critType;
-        if(typeNode != null) {                
-            type = typeNode.getNodeValue();
+        if(type != null) {
             if (type.equals("EQUALS"))
                 critType = CriterionType.EQUALS;
             else if (type.equals("GREATER"))
@@ -44,24 +45,14 @@ public  class LogicBase extends Criteria {
             else if (type.equals("LESS"))
                 critType = CriterionType.LESS;
             else
-                throw new ProcedureParseException("LogicBase bad type for NodeName " + node.getNodeName());
-        } else {
-            throw new ProcedureParseException("LogicBase no type for NodeName " + node.getNodeName());
-        }
-        Node elementIdNode = attributes.getNamedItem("id");
-        String elementId = "";
-        if(elementIdNode != null) {                
-            elementId = elementIdNode.getNodeValue();
-        } else {
-            throw new ProcedureParseException("LogicBase no id for NodeName " + node.getNodeName());
-        }            
-        Node valueNode = attributes.getNamedItem("value");
-        String value = "";
-        if(valueNode != null) {                
-            value = valueNode.getNodeValue();
+                throw new ProcedureParseException("LogicBase bad type for NodeName " + node.getName());
         } else {
-            throw new ProcedureParseException("LogicBase no value for NodeName " + node.getNodeName());
+            throw new ProcedureParseException("LogicBase no type for NodeName " + node.getName());
         }
+        String elementId = node.getAttributeOrFail("id", 
+                new ProcedureParseException("LogicBase no id for NodeName " + node.getName()));
+        String value = node.getAttributeOrFail("value", 
+                new ProcedureParseException("LogicBase no value for NodeName " + node.getName()));
         ProcedureElement elt = elts.get(elementId);
         if (elt == null)
             throw new ProcedureParseException("LogicBase cannot resolve element #" + elementId);
@@ -1,11 +1,12 @@
 package org.moca.procedure.branching;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 import org.moca.procedure.ProcedureElement;
+import org.moca.procedure.ProcedureNode;
 import org.moca.procedure.ProcedureParseException;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * LogicNot is a Criteria subclass that serves as a container to hold a single
@@ -23,13 +24,17 @@ public class LogicNot extends Criteria {
         return !criteria.criteriaMet();
     }
     
-    public static LogicNot fromXML(Node node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
-        if(!node.getNodeName().equals("not"))
-            throw new ProcedureParseException("LogicNot got NodeName " + node.getNodeName());
-        NodeList children = node.getChildNodes();
-        if (children.getLength() != 3)
+    public void collectElements(Collection<ProcedureElement> elements) {
+        criteria.collectElements(elements);
+    }
+    
+    public static LogicNot fromXML(ProcedureNode node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
+        if(!node.getName().equals("not"))
+            throw new ProcedureParseException("LogicNot got NodeName " + node.getName());
+        List<ProcedureNode> children = node.getChildren();
+        if (children.size() != 1)
             throw new ProcedureParseException("LogicNot wrong number of elements: expects 1");
-        Node child = children.item(1);
+        ProcedureNode child = children.get(0);
         return new LogicNot(Criteria.switchOnCriteria(child, elts));
     }
 }
\ No newline at end of file
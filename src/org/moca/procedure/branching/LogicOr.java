@@ -1,13 +1,13 @@
 package org.moca.procedure.branching;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
 import org.moca.procedure.ProcedureElement;
+import org.moca.procedure.ProcedureNode;
 import org.moca.procedure.ProcedureParseException;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * LogicOr is a Criteria subclass that serves as a container to hold multiple
@@ -30,17 +30,20 @@ public class LogicOr extends Criteria {
         return false;
     }
     
-    public static LogicOr fromXML(Node node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
-        if(!node.getNodeName().equals("or"))
-            throw new ProcedureParseException("LogicOr got NodeName " + node.getNodeName());
-        NodeList children = node.getChildNodes();
+    public void collectElements(Collection<ProcedureElement> elements) {
+        for(Criteria c : criteria)
+            c.collectElements(elements);
+    }
+    
+    public static LogicOr fromXML(ProcedureNode node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
+        if(!node.getName().equals("or"))
+            throw new ProcedureParseException("LogicOr got NodeName " + node.getName());
         List<Criteria> crits = new ArrayList<Criteria>();
-        for(int i=0; i<children.getLength();i++) {
-            Node child = children.item(i);
-            if(child.getNodeName().equals("Criteria") || 
-                    child.getNodeName().equals("and") || 
-                    child.getNodeName().equals("or") || 
-                    child.getNodeName().equals("not")) {
+        for(ProcedureNode child : node.getChildren()) {
+            if(child.getName().equals("Criteria") || 
+                    child.getName().equals("and") || 
+                    child.getName().equals("or") || 
+                    child.getName().equals("not")) {
                 crits.add(Criteria.switchOnCriteria(child, elts));
             }
         }
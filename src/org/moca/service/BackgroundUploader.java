@@ -1,9 +1,21 @@
 package org.moca.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.moca.Constants;
+import org.moca.db.MocaDB.ImageSQLFormat;
 import org.moca.db.MocaDB.ProcedureSQLFormat;
 import org.moca.db.MocaDB.SavedProcedureSQLFormat;
+import org.moca.db.MocaDB.SoundSQLFormat;
+import org.moca.net.MDSHttpClient;
 import org.moca.net.MDSInterface;
 import org.moca.task.CheckCredentialsTask;
 import org.moca.task.ValidationListener;
@@ -15,8 +27,8 @@ import android.content.ContentUris;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
@@ -27,6 +39,12 @@ import android.widget.Toast;
 /**
  * Background service to upload pending cases when data service is available.
  * This class will try to upload pending cases when a connection is available.
+ * 
+ * Several cases are uploaded at once by a pool of workers. A case is only
+ * ever uploaded by one worker at a time, and one worker is kept for cases
+ * without pictures or sounds whenever any are waiting so they are not stuck
+ * behind a large upload. Uploads in progress are cancelled when the data
+ * connection is lost and stay in the queue until it returns.
  */
 public class BackgroundUploader extends Service {
 	
@@ -39,6 +57,28 @@ public class BackgroundUploader extends Service {
 	}
 	
 	private PriorityQueue<Uri> queue = null;
+	
+	private static final int UPLOAD_WORKERS = Constants.DEFAULT_UPLOAD_WORKERS;
+	private ExecutorService uploadWorkers = null;
+	
+	// The following are guarded by the queue.
+	private final HashMap<Uri, UploadWorker> activeUploads = new HashMap<Uri, UploadWorker>();
+	private final HashSet<Uri> largeUploads = new HashSet<Uri>();
+	private final HashMap<Uri, Integer> pendingBinaries = new HashMap<Uri, Integer>();
+	private int completedUploads = 0;
+	private int failedUploads = 0;
+	private long busySince = 0;
+	private long busyUntil = 0;
+	private long bytesSentAtBusyStart = 0;
+	// The queue is written to the database after its lock is released, so
+	// each change gets a version and an older snapshot which loses the race
+	// to be written is dropped.
+	private int queueVersion = 0;
+	private int writtenQueueVersion = 0;
+	private final Object queueWriteLock = new Object();
+	
+	private final Handler handler = new Handler();
+	private final List<ServiceListener<BackgroundUploader>> listeners = new ArrayList<ServiceListener<BackgroundUploader>>();
 
 	private CredentialStatus credentialStatus = CredentialStatus.UNKNOWN;
 	private CheckCredentialsTask checkCredentialsTask = null;
@@ -96,6 +136,9 @@ public class BackgroundUploader extends Service {
 		Log.v(TAG, "onCreate()");
 		try {
 			queue = QueueManager.initQueue(this);
+			for (Uri procedure : queue) {
+				pendingBinaries.put(procedure, countPendingBinaries(procedure));
+			}
 			
 			// Try to process the upload queue. Will check credentials if necessary.
 			processUploadQueue();
@@ -120,6 +163,9 @@ public class BackgroundUploader extends Service {
 	public void onDestroy() {
 		super.onDestroy();
 		Log.v(TAG, "onDestroy()");
+		if (uploadWorkers != null) {
+			uploadWorkers.shutdownNow();
+		}
 	}
 
 	@Override
@@ -153,7 +199,7 @@ public class BackgroundUploader extends Service {
 				try {
 					Log.i(TAG, "Credential status: " + credentialStatus);
 					int status = getUploadStatusForCredentialStatus(credentialStatus);
-					QueueManager.setProceduresUploadStatus(this, queue, status);
+					QueueManager.setProceduresUploadStatus(this, getWaitingProcedures(), status);
 				} catch (Exception e) {
 					Log.e(TAG, "Exception updating upload status in database: "
 							+ e.toString());
@@ -162,7 +208,7 @@ public class BackgroundUploader extends Service {
 			} else {
 				try {
 					// Signify procedures waiting for connectivity to upload
-					QueueManager.setProceduresUploadStatus(this, queue, QueueManager.UPLOAD_NO_CONNECTIVITY);
+					QueueManager.setProceduresUploadStatus(this, getWaitingProcedures(), QueueManager.UPLOAD_NO_CONNECTIVITY);
 				} catch (Exception e) {
 					Log.e(TAG, "Exception updating upload status in database: "
 							+ e.toString());
@@ -175,16 +221,39 @@ public class BackgroundUploader extends Service {
 		}
 	}
 	
+	/**
+	 * @return the procedures in the queue which are not being uploaded
+	 */
+	private List<Uri> getWaitingProcedures() {
+		synchronized (queue) {
+			List<Uri> waiting = new ArrayList<Uri>(queue.size());
+			for (Uri procedure : queue) {
+				if (!activeUploads.containsKey(procedure))
+					waiting.add(procedure);
+			}
+			return waiting;
+		}
+	}
+	
 	public void addProcedureToQueue(Uri procedureUri) {
+		// Counted before taking the lock, the workers need it only briefly.
+		int binaries = countPendingBinaries(procedureUri);
 		
-		if (QueueManager.isInQueue(queue, procedureUri)) {
-			Log.i(TAG, "Procedure " + procedureUri + " is already in the queue. Skipping add request.");
-			return;
+		PriorityQueue<Uri> snapshot;
+		int version;
+		synchronized (queue) {
+			if (QueueManager.isInQueue(queue, procedureUri)) {
+				Log.i(TAG, "Procedure " + procedureUri + " is already in the queue. Skipping add request.");
+				return;
+			}
+			
+			Log.i(TAG, "Adding " + procedureUri + " to the upload queue.");
+			pendingBinaries.put(procedureUri, binaries);
+			queue.add(procedureUri);
+			snapshot = new PriorityQueue<Uri>(queue);
+			version = ++queueVersion;
 		}
-		
-		Log.i(TAG, "Adding " + procedureUri + " to the upload queue.");
-		QueueManager.addToQueue(this, queue, procedureUri);
-		Log.i(TAG, "Queue is now: " + queue.toString());
+		writeQueue(snapshot, version);
 		
 		int status = getUploadStatusForCredentialStatus(credentialStatus);
 		QueueManager.setProcedureUploadStatus(this, procedureUri, status);
@@ -207,6 +276,36 @@ public class BackgroundUploader extends Service {
 		processUploadQueue();
 	}
 	
+	public void addServiceListener(ServiceListener<BackgroundUploader> listener) {
+		if (!listeners.contains(listener))
+			listeners.add(listener);
+	}
+	
+	public void removeServiceListener(ServiceListener<BackgroundUploader> listener) {
+		listeners.remove(listener);
+	}
+	
+	private void notifyStatusChanged() {
+		for (ServiceListener<BackgroundUploader> listener : listeners) {
+			listener.onStatusChanged(this);
+		}
+	}
+	
+	/**
+	 * @return the current queue depth, active workers and upload throughput
+	 */
+	public UploadStats getUploadStats() {
+		synchronized (queue) {
+			long end = activeUploads.isEmpty() ? busyUntil : System.currentTimeMillis();
+			float throughput = 0;
+			if (end > busySince) {
+				throughput = 1000.0f * (MDSHttpClient.getBytesSent() - bytesSentAtBusyStart) / (end - busySince);
+			}
+			return new UploadStats(queue.size(), activeUploads.size(), completedUploads, failedUploads, throughput,
+					MDSHttpClient.getBytesSavedByCompression());
+		}
+	}
+	
 	class UploadResult {
 		public UploadResult(Uri procedure, boolean uploaded, String message) {
 			this.procedure = procedure;
@@ -218,16 +317,269 @@ public class BackgroundUploader extends Service {
 		String message;
 	}
 	
-	AsyncTask<Void, UploadResult, Void> uploadTask = null; 
+	/**
+	 * Uploads a single procedure and reports the result back on the main
+	 * thread.
+	 */
+	private class UploadWorker implements Runnable {
+		private final Uri procedure;
+		private Thread thread = null;
+		private boolean cancelled = false;
+		
+		public UploadWorker(Uri procedure) {
+			this.procedure = procedure;
+		}
+		
+		/**
+		 * Stops the upload at the next chunk boundary. Progress on the
+		 * binaries sent so far is kept.
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+			if (thread != null)
+				thread.interrupt();
+		}
+		
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+		
+		public void run() {
+			boolean cancelledBeforeStart;
+			synchronized (this) {
+				cancelledBeforeStart = cancelled;
+				if (!cancelled)
+					thread = Thread.currentThread();
+			}
+			if (cancelledBeforeStart) {
+				finishUpload(new UploadResult(procedure, false, ""), true);
+				return;
+			}
+			
+			Log.i(TAG,"Uploading procedure " + procedure);
+			boolean uploadResult = false;
+			String message = "";
+			try {
+				// Signify procedure upload in progress
+				QueueManager.setProcedureUploadStatus(BackgroundUploader.this, procedure, QueueManager.UPLOAD_STATUS_IN_PROGRESS);
+				
+				uploadResult = MDSInterface.postProcedureToDjangoServer(procedure, BackgroundUploader.this);
+			} catch (OutOfMemoryError e) {
+				Log.e(TAG, "While uploading procedure, got Out of Memory error.");
+				e.printStackTrace();
+				message = "Out of Memory";
+			} catch (Exception e) {
+				Log.e(TAG, "While uploading procedure + " + procedure + " got exception: " + e.toString());
+				e.printStackTrace();
+			}
+			
+			synchronized (this) {
+				thread = null;
+				// Don't leave the pooled thread interrupted.
+				Thread.interrupted();
+			}
+			finishUpload(new UploadResult(procedure, uploadResult, message), isCancelled());
+		}
+	}
+	
+	private void finishUpload(final UploadResult result, boolean wasCancelled) {
+		final boolean cancelled = wasCancelled && !result.uploaded;
+		boolean drained;
+		// Only the in-memory state changes under the lock, which the main
+		// thread takes too. What changed is written out afterwards.
+		PriorityQueue<Uri> snapshot = null;
+		int version = 0;
+		int status;
+		synchronized (queue) {
+			activeUploads.remove(result.procedure);
+			largeUploads.remove(result.procedure);
+			
+			if (cancelled) {
+				// Keep it in the queue, it is picked up again once there is a
+				// connection. Progress on its binaries has been saved.
+				Log.i(TAG, "Upload of " + result.procedure + " was cancelled.");
+				status = QueueManager.UPLOAD_NO_CONNECTIVITY;
+			} else {
+				// Remove the procedure from the queue once uploaded, or so it
+				// does not keep trying to upload
+				if (result.uploaded) {
+					status = QueueManager.UPLOAD_STATUS_SUCCESS;
+					completedUploads++;
+				} else {
+					status = QueueManager.UPLOAD_STATUS_FAILURE;
+					failedUploads++;
+				}
+				if (queue.remove(result.procedure)) {
+					snapshot = new PriorityQueue<Uri>(queue);
+					version = ++queueVersion;
+				}
+				pendingBinaries.remove(result.procedure);
+			}
+			if (activeUploads.isEmpty())
+				busyUntil = System.currentTimeMillis();
+			drained = activeUploads.isEmpty() && queue.isEmpty();
+		}
+		if (snapshot != null)
+			writeQueue(snapshot, version);
+		// A procedure no longer queued keeps the status it was given.
+		if (cancelled || snapshot != null)
+			QueueManager.setProcedureUploadStatus(this, result.procedure, status);
+		if (drained) {
+			// Nothing left to send, so don't hold connections to the MDS open.
+			MDSHttpClient.closeIdleConnections(0);
+		}
+		
+		handler.post(new Runnable() {
+			public void run() {
+				if (!cancelled) {
+					if (result.uploaded) {
+						onUploadSuccess(result.procedure); 
+					} else {
+						onUploadFailure(result.procedure, result.message);
+					}
+				}
+				// A worker is free, so start on the next procedure.
+				processUploadQueue();
+				notifyStatusChanged();
+			}
+		});
+	}
+	
+	/**
+	 * Writes a snapshot of the queue to the database, unless a newer one has
+	 * been written already. Call it without holding the queue lock.
+	 * 
+	 * @param snapshot a copy of the queue
+	 * @param version the queueVersion the copy was taken at
+	 */
+	private void writeQueue(PriorityQueue<Uri> snapshot, int version) {
+		synchronized (queueWriteLock) {
+			if (version <= writtenQueueVersion)
+				return;
+			QueueManager.updateQueueInDB(this, snapshot);
+			writtenQueueVersion = version;
+		}
+	}
+	
+	/**
+	 * @return the number of pictures and sounds of a queued procedure which
+	 *         were waiting to be uploaded when it was queued
+	 */
+	private int getPendingBinaries(Uri procedure) {
+		Integer count = pendingBinaries.get(procedure);
+		return count != null ? count : 0;
+	}
+	
+	/**
+	 * Counts the pictures and sounds of a procedure which still need to be
+	 * uploaded. Queries the database, so call it without holding the queue.
+	 */
+	private int countPendingBinaries(Uri procedure) {
+		int total = 0;
+		String savedProcedureId = procedure.getPathSegments().get(1);
+		Cursor cursor = null;
+		try {
+			cursor = getContentResolver().query(ImageSQLFormat.CONTENT_URI, 
+					new String[] { ImageSQLFormat._ID }, 
+					ImageSQLFormat.SAVED_PROCEDURE_ID + " = ? AND " + ImageSQLFormat.UPLOADED + " = 0", 
+					new String[] { savedProcedureId }, null);
+			total += cursor.getCount();
+			cursor.deactivate();
+			cursor = getContentResolver().query(SoundSQLFormat.CONTENT_URI, 
+					new String[] { SoundSQLFormat._ID }, 
+					SoundSQLFormat.SAVED_PROCEDURE_ID + " = ? AND " + SoundSQLFormat.UPLOADED + " = 0", 
+					new String[] { savedProcedureId }, null);
+			total += cursor.getCount();
+		} catch (Exception e) {
+			Log.e(TAG, "Failed to count binaries for " + procedure + ": " + e.toString());
+		} finally {
+			if (cursor != null)
+				cursor.deactivate();
+		}
+		return total;
+	}
+	
+	/**
+	 * Picks the next procedure to upload. Procedures are taken in queue order,
+	 * except that procedures with binaries are not given the last free worker
+	 * while a procedure without binaries is waiting.
+	 * 
+	 * @return the procedure to upload, or null if there is none
+	 */
+	private Uri nextUpload() {
+		Uri[] waiting = queue.toArray(new Uri[queue.size()]);
+		Arrays.sort(waiting);
+		boolean largeAllowed = largeUploads.size() < UPLOAD_WORKERS - 1;
+		Uri firstLarge = null;
+		for (Uri procedure : waiting) {
+			if (activeUploads.containsKey(procedure))
+				continue;
+			if (getPendingBinaries(procedure) == 0 || largeAllowed)
+				return procedure;
+			if (firstLarge == null)
+				firstLarge = procedure;
+		}
+		return firstLarge;
+	}
+	
+	/**
+	 * Hands waiting procedures to free workers.
+	 */
+	private void scheduleUploads() {
+		synchronized (queue) {
+			if (uploadWorkers == null) {
+				uploadWorkers = Executors.newFixedThreadPool(UPLOAD_WORKERS);
+			}
+			while (activeUploads.size() < UPLOAD_WORKERS) {
+				Uri procedure = nextUpload();
+				if (procedure == null)
+					break;
+				
+				if (activeUploads.isEmpty()) {
+					busySince = System.currentTimeMillis();
+					bytesSentAtBusyStart = MDSHttpClient.getBytesSent();
+				}
+				Log.i(TAG, "Spawning upload worker for " + procedure);
+				if (getPendingBinaries(procedure) > 0)
+					largeUploads.add(procedure);
+				UploadWorker worker = new UploadWorker(procedure);
+				activeUploads.put(procedure, worker);
+				uploadWorkers.execute(worker);
+			}
+			Log.i(TAG, activeUploads.size() + " uploads in progress, " + queue.size() + " procedures in the queue.");
+		}
+		notifyStatusChanged();
+	}
+	
+	/**
+	 * Cancels every upload in progress. The cancelled procedures stay in the
+	 * queue.
+	 */
+	private void cancelUploads() {
+		synchronized (queue) {
+			for (Entry<Uri, UploadWorker> e : activeUploads.entrySet()) {
+				if (!e.getValue().isCancelled()) {
+					Log.i(TAG, "Cancelling upload of " + e.getKey());
+					e.getValue().cancel();
+				}
+			}
+		}
+	}
 
 	private void processUploadQueue() {
 		Log.i(TAG, "processUploadQueue()");
 		
 		// check if there are pending transfers in the database
-		// if so, then spawn a thread to upload the first one
+		// if so, then hand them to the upload workers
 		boolean credentialsValid = CredentialStatus.VALID.equals(credentialStatus);
 		boolean connectionAvailable = updateQueueStatusAndCheckConnection();
 		
+		if (!connectionAvailable) {
+			cancelUploads();
+			// Pooled connections will not survive the change of network.
+			MDSHttpClient.closeIdleConnections(0);
+		}
+		
 		if (!credentialsValid) {
 			if (CredentialStatus.UNKNOWN.equals(credentialStatus)) {
 				if (checkCredentialsTask == null) {
@@ -242,63 +594,10 @@ public class BackgroundUploader extends Service {
 			return;
 		} 
 		
-		if (!queue.isEmpty() && connectionAvailable) {
-			Log.i(TAG, "Queue not empty and connection is available, so spawning upload worker.");
-			new AsyncTask<Void, UploadResult, Void>() {
-
-				@Override 
-				protected void onProgressUpdate(UploadResult... results) {
-					for (UploadResult result : results) {
-						if (result.uploaded) {
-							onUploadSuccess(result.procedure); 
-						} else {
-							onUploadFailure(result.procedure, result.message);
-						}
-					}
-				}
-				
-				@Override
-				protected Void doInBackground(Void... params) {
-					while (!queue.isEmpty() && updateQueueStatusAndCheckConnection()) {
-						Uri procedure = queue.element();
-						Log.i(TAG,"Uploading procedure " + procedure);
-						
-						try {
-							// Signify procedure upload in progress
-							QueueManager.setProcedureUploadStatus(BackgroundUploader.this, procedure, QueueManager.UPLOAD_STATUS_IN_PROGRESS);
-							
-							boolean uploadResult = MDSInterface.postProcedureToDjangoServer(procedure, BackgroundUploader.this);	
-							
-							if (uploadResult) {
-								// Remove the procedure from the queue after it has been successfully uploaded
-								QueueManager.removeFromQueue(BackgroundUploader.this, queue, procedure, QueueManager.UPLOAD_STATUS_SUCCESS); 
-							} else {
-								// Remove the procedure from the queue so it does not keep trying to upload
-								QueueManager.removeFromQueue(BackgroundUploader.this, queue, procedure, QueueManager.UPLOAD_STATUS_FAILURE); 
-							}
-							
-							UploadResult result = new UploadResult(procedure, uploadResult, "");
-							publishProgress(result);
-						} catch (OutOfMemoryError e) {
-							Log.e(TAG, "While uploading procedure, got Out of Memory error.");
-							e.printStackTrace();
-							UploadResult result = new UploadResult(procedure, false, "Out of Memory");
-							publishProgress(result);
-						} catch (Exception e) {
-							Log.e(TAG, "While uploading procedure + " + procedure + " got exception: " + e.toString());
-							e.printStackTrace();
-							
-							UploadResult result = new UploadResult(procedure, false, "");
-							publishProgress(result);
-						}
-					}
-					
-					return null;
-				}
-				
-			}.execute();
+		if (connectionAvailable) {
+			scheduleUploads();
 		} else {
-			Log.i(TAG, "Either queue is empty or connection is not available, so not spawning upload worker.");
+			Log.i(TAG, "Connection is not available, so not spawning upload workers.");
 		}
 	}
 	
@@ -338,7 +637,10 @@ public class BackgroundUploader extends Service {
 		//String msg = "Successfully sent " + procedureTitle + " procedure\nwith ID = " + savedProcedureId;
 		//String msg = "Successfully sent procedure\nwith ID = " + savedProcedureId;
 		
-		int sizeOfQueue = queue.size();
+		int sizeOfQueue;
+		synchronized (queue) {
+			sizeOfQueue = queue.size();
+		}
 		if (sizeOfQueue != 0) {
 			msg += "\nThere are still " + sizeOfQueue + "\ncases to be uploaded.";
 		}
@@ -362,7 +664,10 @@ public class BackgroundUploader extends Service {
 		//String msg = "Successfully sent " + procedureTitle + " procedure\nwith ID = " + savedProcedureId;
 		//String msg = "Successfully sent procedure\nwith ID = " + savedProcedureId;
 		
-		int sizeOfQueue = queue.size();
+		int sizeOfQueue;
+		synchronized (queue) {
+			sizeOfQueue = queue.size();
+		}
 		if (sizeOfQueue != 0) {
 			msg += "\nThere are still " + sizeOfQueue + "\ncases to be uploaded.";
 		}
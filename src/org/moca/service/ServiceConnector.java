@@ -19,14 +19,18 @@ public class ServiceConnector {
 				IBinder service) {
 			Log.i(TAG, "onServiceConnected");
 			mUploadService = ((BackgroundUploader.LocalBinder)service).getService();
-			if (mListener != null)
+			if (mListener != null) {
+				mUploadService.addServiceListener(mListener);
 				mListener.onConnect(mUploadService);
+			}
 		}
 
 		public void onServiceDisconnected(ComponentName name) {
 			Log.i(TAG, "onServiceDisconnected");
-			if (mListener != null)
+			if (mListener != null) {
+				mUploadService.removeServiceListener(mListener);
 				mListener.onDisconnect(mUploadService);
+			}
 			mUploadService = null;
 		}
 		
@@ -41,6 +45,8 @@ public class ServiceConnector {
 	
 	public void disconnect(Context c) {
 		if (mUploadService != null) {
+			if (mListener != null)
+				mUploadService.removeServiceListener(mListener);
 			c.unbindService(serviceConnection);
 		}
 	}
@@ -5,4 +5,5 @@ import android.app.Service;
 public interface ServiceListener<T extends Service> {
 	void onConnect(T service);
 	void onDisconnect(T service);
+	void onStatusChanged(T service);
 }
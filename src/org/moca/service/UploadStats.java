@@ -0,0 +1,38 @@
+package org.moca.service;
+
+/**
+ * Snapshot of the state of the BackgroundUploader, passed to ServiceListeners
+ * whenever the upload queue or its workers change.
+ */
+public class UploadStats {
+	/** number of procedures in the upload queue, including those uploading */
+	public final int queueDepth;
+	/** number of procedures currently being uploaded */
+	public final int activeWorkers;
+	/** procedures uploaded successfully since the service started */
+	public final int completed;
+	/** procedures which failed to upload since the service started */
+	public final int failed;
+	/** bytes per second sent to the MDS while the workers have been busy */
+	public final float throughput;
+	/** bytes compressing request bodies has saved sending, since the app started */
+	public final long bytesSavedByCompression;
+
+	UploadStats(int queueDepth, int activeWorkers, int completed, int failed, float throughput,
+			long bytesSavedByCompression) {
+		this.queueDepth = queueDepth;
+		this.activeWorkers = activeWorkers;
+		this.completed = completed;
+		this.failed = failed;
+		this.throughput = throughput;
+		this.bytesSavedByCompression = bytesSavedByCompression;
+	}
+
+	@Override
+	public String toString() {
+		return "queue=" + queueDepth + " active=" + activeWorkers
+			+ " completed=" + completed + " failed=" + failed
+			+ " throughput=" + throughput + "B/s"
+			+ " compressionSaved=" + bytesSavedByCompression + "B";
+	}
+}
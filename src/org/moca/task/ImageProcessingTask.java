@@ -6,10 +6,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 
 import org.moca.db.EventDAO;
 import org.moca.db.ImageProvider;
 import org.moca.db.MocaDB.ImageSQLFormat;
+import org.moca.util.MocaUtil;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -137,11 +139,16 @@ public class ImageProcessingTask extends AsyncTask<ImageProcessingTaskRequest, V
 			OutputStream os = c.getContentResolver().openOutputStream(imageUri);
 			is = getImageInputStreamWithWorkaround(request);
 			
+			// Hash the image as it is stored so the uploader can skip
+			// content the MDS already has.
+			MessageDigest digest = MocaUtil.getContentDigest();
 			final int bufSize = 4096;
 			byte[] buffer = new byte[bufSize];
 			int bytesRead = 0;
 			while (bytesRead != -1) {
 				os.write(buffer, 0, bytesRead);
+				if (digest != null)
+					digest.update(buffer, 0, bytesRead);
 				bytesRead = is.read(buffer, 0, bufSize);
 			} 
 			is.close();
@@ -171,6 +178,8 @@ public class ImageProcessingTask extends AsyncTask<ImageProcessingTaskRequest, V
 			// Flag the file as saved - does not record image size
 			values = new ContentValues();
 			values.put(ImageSQLFormat.FILE_VALID, true);
+			if (digest != null)
+				values.put(ImageSQLFormat.CONTENT_HASH, MocaUtil.toHexString(digest.digest()));
 			c.getContentResolver().update(imageUri, values, null, null);
 			
 			if (tempImageFile.exists()) {
@@ -1,9 +1,7 @@
 package org.moca.task;
 
 import org.moca.db.PatientInfo;
-import org.moca.net.MDSInterface;
-import org.moca.util.MocaUtil;
-import org.moca.util.UserDatabase;
+import org.moca.util.PatientCache;
 
 import android.content.Context;
 import android.os.AsyncTask;
@@ -29,27 +27,10 @@ public class PatientLookupTask extends AsyncTask<String, Void, PatientInfo> {
 		
 		Log.i(TAG, "Looking up patient record for " + patientId);
 		
-		PatientInfo pi = null;
-		try {
-			if (MocaUtil.checkConnection(mContext)) {
-				String mdsPatientInfo = MDSInterface.getUserInfo(mContext, patientId);
-				pi = UserDatabase.getPatientFromMDSRecord(patientId, mdsPatientInfo);
-				Log.i(TAG, "Acquired patient record from MDS");
-			}
-		} catch (Exception e) {
-			Log.e(TAG, "Could not get patient record from MDS: " + e.toString());
-			e.printStackTrace();
-		}
-		
-		try {
-			if (pi == null) {
-				pi = UserDatabase.getPatientFromLocalDatabase(mContext, patientId);
-				Log.i(TAG, "Acquired patient record from local Patient cache.");
-			}
-		} catch (Exception e) {
-			Log.e(TAG, "Could not get patient record from local database: " + e.toString());
-			e.printStackTrace();
-		}
+		// Answered locally when possible, the MDS is only asked for patients
+		// we do not have.
+		PatientInfo pi = PatientCache.lookup(mContext, patientId);
+		Log.i(TAG, "Patient lookups: " + PatientCache.getStats());
 		
 		if (pi == null) {
 			pi = new PatientInfo();
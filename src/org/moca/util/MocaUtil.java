@@ -1,10 +1,13 @@
 package org.moca.util;
 
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
+import org.moca.Constants;
 import org.moca.R;
 import org.moca.db.MocaDB.ImageSQLFormat;
 import org.moca.db.MocaDB.NotificationSQLFormat;
@@ -13,6 +16,7 @@ import org.moca.db.MocaDB.ProcedureSQLFormat;
 import org.moca.db.MocaDB.SavedProcedureSQLFormat;
 import org.moca.db.MocaDB.SoundSQLFormat;
 import org.moca.procedure.Procedure;
+import org.moca.procedure.ProcedureTemplate;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
@@ -22,7 +26,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.net.Uri;
+import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiManager;
+import android.preference.PreferenceManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
@@ -98,10 +104,15 @@ public class MocaUtil {
     	deleteContentUri(ctx, ImageSQLFormat.CONTENT_URI, ImageSQLFormat._ID);
     	deleteContentUri(ctx, SoundSQLFormat.CONTENT_URI, SoundSQLFormat._ID);
     	deleteContentUri(ctx, NotificationSQLFormat.CONTENT_URI, NotificationSQLFormat._ID);
+    	ProcedureTemplate.clear();
     }
     
     public static void clearPatientData(Context ctx) {
     	deleteContentUri(ctx, PatientSQLFormat.CONTENT_URI, PatientSQLFormat._ID);
+    	PatientCache.invalidate();
+    	// The next sync has to fetch every patient again.
+    	PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+    		.remove(Constants.PREFERENCE_PATIENT_SYNC_TOKEN).commit();
     }
     
     
@@ -216,6 +227,61 @@ public class MocaUtil {
 		}
 	}
 	
+	/**
+	 * Returns a new digest for the content hash of a binary, or null if
+	 * SHA-256 is not available.
+	 */
+	public static MessageDigest getContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(TAG, "SHA-256 is not available: " + e.toString());
+			return null;
+		}
+	}
+	
+	/**
+	 * Formats bytes as a lower case hex string.
+	 */
+	public static String toHexString(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Returns the kind of connection data is currently sent over, one of
+	 * WIFI, GPRS, EDGE, UMTS or MOBILE if the radio technology is unknown.
+	 */
+	public static String getNetworkType(Context c) {
+		try {
+			WifiManager wifiMan = (WifiManager) c.getSystemService(Context.WIFI_SERVICE);
+			if (wifiMan != null && wifiMan.isWifiEnabled()
+					&& wifiMan.getConnectionInfo() != null
+					&& wifiMan.getConnectionInfo().getSupplicantState() == SupplicantState.COMPLETED)
+				return "WIFI";
+
+			TelephonyManager telMan = (TelephonyManager) c.getSystemService(Context.TELEPHONY_SERVICE);
+			if (telMan != null) {
+				switch (telMan.getNetworkType()) {
+				case TelephonyManager.NETWORK_TYPE_GPRS:
+					return "GPRS";
+				case TelephonyManager.NETWORK_TYPE_EDGE:
+					return "EDGE";
+				case TelephonyManager.NETWORK_TYPE_UMTS:
+					return "UMTS";
+				}
+			}
+		}
+		catch (Exception e) {
+			Log.e(TAG, "Exception in getNetworkType(): " + e.toString());
+		}
+		return "MOBILE";
+	}
+	
 	public static AlertDialog createAlertMessage(Context c, String alertMessage) {
 		return createAlertMessage(c, alertMessage, null);
 	}
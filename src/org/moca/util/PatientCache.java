@@ -0,0 +1,230 @@
+package org.moca.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.moca.db.PatientInfo;
+import org.moca.net.MDSInterface;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Answers patient lookups locally first.
+ *
+ * A lookup is answered from an in-memory LRU of recent patients, then from
+ * the patient cache synced from the MDS, and only asks the MDS when neither
+ * knows the patient. Patients answered locally which have not been confirmed
+ * by the MDS within FRESH_TIME are fetched again in the background, so the
+ * next lookup sees any change without the health worker waiting on the
+ * network for this one.
+ *
+ * IDs neither the patient cache nor the MDS knew are remembered for
+ * NEGATIVE_TIME, so retyping an unknown ID does not go back to the network. Lookups of the same ID made
+ * while a request for it is outstanding wait for that request rather than
+ * making their own.
+ */
+public class PatientCache {
+	public static final String TAG = PatientCache.class.toString();
+
+	// patients kept in memory
+	private static final int CAPACITY = 64;
+	// how long an answer from the MDS is used without asking again, in msec
+	static final long FRESH_TIME = 10 * 60 * 1000;
+	// how long an ID unknown to the MDS is remembered, in msec
+	static final long NEGATIVE_TIME = 60 * 1000;
+
+	private static class Entry {
+		final PatientInfo patient;
+		// when the MDS last confirmed the patient, 0 if it has not
+		final long confirmed;
+
+		Entry(PatientInfo patient, long confirmed) {
+			this.patient = patient;
+			this.confirmed = confirmed;
+		}
+	}
+
+	private static final Map<String, Entry> patients = new LinkedHashMap<String, Entry>(CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+	// IDs unknown to the MDS, mapped to when it said so
+	private static final Map<String, Long> unknown = new HashMap<String, Long>();
+	private static final Map<String, FutureTask<PatientInfo>> inFlight = new HashMap<String, FutureTask<PatientInfo>>();
+
+	private static final ExecutorService revalidator = Executors.newSingleThreadExecutor();
+
+	private static int memoryHits = 0;
+	private static int localHits = 0;
+	private static int negativeHits = 0;
+	private static int remoteLookups = 0;
+
+	/**
+	 * Looks up a patient. Blocks while the MDS is asked, so call it from a
+	 * background thread.
+	 *
+	 * @param c current context
+	 * @param patientId the patient id
+	 * @return the patient, or null if neither the cache nor the MDS knows it
+	 */
+	public static PatientInfo lookup(Context c, String patientId) {
+		long now = System.currentTimeMillis();
+		synchronized (PatientCache.class) {
+			Entry entry = patients.get(patientId);
+			if (entry != null) {
+				memoryHits++;
+				if (now - entry.confirmed > FRESH_TIME)
+					revalidate(c, patientId);
+				return entry.patient;
+			}
+		}
+
+		PatientInfo pi = null;
+		try {
+			pi = UserDatabase.getPatientFromLocalDatabase(c, patientId);
+		} catch (Exception e) {
+			Log.e(TAG, "Could not get patient record from local database: " + e.toString());
+		}
+		if (pi != null) {
+			Log.i(TAG, "Acquired patient record from local Patient cache.");
+			synchronized (PatientCache.class) {
+				localHits++;
+				// Not yet confirmed by the MDS.
+				patients.put(patientId, new Entry(pi, 0));
+				revalidate(c, patientId);
+			}
+			return pi;
+		}
+
+		// Checked only now, since a sync may have brought the patient into
+		// the local database since the MDS said it did not know it.
+		synchronized (PatientCache.class) {
+			Long missed = unknown.get(patientId);
+			if (missed != null) {
+				if (now - missed.longValue() < NEGATIVE_TIME) {
+					negativeHits++;
+					return null;
+				}
+				unknown.remove(patientId);
+			}
+		}
+
+		return await(fetch(c, patientId, false));
+	}
+
+	/**
+	 * Forgets the IDs the MDS did not know, and the patients in memory, so
+	 * that lookups see a freshly synced patient cache.
+	 */
+	public static synchronized void invalidate() {
+		patients.clear();
+		unknown.clear();
+	}
+
+	/** @return a summary of where lookups were answered */
+	public static synchronized String getStats() {
+		return "memory " + memoryHits + ", local " + localHits + ", negative "
+			+ negativeHits + ", remote " + remoteLookups;
+	}
+
+	/**
+	 * Asks the MDS for a patient in the background. The answer replaces the
+	 * cached one, unless the MDS is unreachable, in which case the cached
+	 * one is kept.
+	 */
+	private static void revalidate(Context c, String patientId) {
+		// The request may outlive the activity which asked.
+		fetch(c.getApplicationContext(), patientId, true);
+	}
+
+	/**
+	 * Returns the outstanding request for a patient, starting one if there
+	 * is none.
+	 *
+	 * @param background whether a new request runs on the revalidation
+	 * 		thread rather than the calling one
+	 */
+	private static FutureTask<PatientInfo> fetch(final Context c, final String patientId, final boolean background) {
+		FutureTask<PatientInfo> task;
+		synchronized (PatientCache.class) {
+			task = inFlight.get(patientId);
+			if (task != null)
+				return task;
+			task = new FutureTask<PatientInfo>(new Callable<PatientInfo>() {
+				public PatientInfo call() {
+					try {
+						return fetchFromMDS(c, patientId, background);
+					} finally {
+						synchronized (PatientCache.class) {
+							inFlight.remove(patientId);
+						}
+					}
+				}
+			});
+			inFlight.put(patientId, task);
+			remoteLookups++;
+		}
+		if (background)
+			revalidator.execute(task);
+		else
+			task.run();
+		return task;
+	}
+
+	private static PatientInfo await(FutureTask<PatientInfo> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Patient lookup failed: " + e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * @param revalidating whether the patient was answered from the local
+	 * 		database, in which case an MDS which does not know it only drops
+	 * 		it from memory, and lookups keep finding it locally
+	 */
+	private static PatientInfo fetchFromMDS(Context c, String patientId, boolean revalidating) {
+		if (!MocaUtil.checkConnection(c))
+			return null;
+		try {
+			String mdsPatientInfo = MDSInterface.getUserInfo(c, patientId);
+			if (mdsPatientInfo == null) {
+				// The MDS could not be reached, which says nothing about the patient.
+				return null;
+			}
+			if ("".equals(mdsPatientInfo.trim())) {
+				Log.i(TAG, "MDS does not know patient " + patientId);
+				synchronized (PatientCache.class) {
+					patients.remove(patientId);
+					if (!revalidating)
+						unknown.put(patientId, Long.valueOf(System.currentTimeMillis()));
+				}
+				return null;
+			}
+			PatientInfo pi = UserDatabase.getPatientFromMDSRecord(patientId, mdsPatientInfo);
+			Log.i(TAG, "Acquired patient record from MDS");
+			synchronized (PatientCache.class) {
+				patients.put(patientId, new Entry(pi, System.currentTimeMillis()));
+			}
+			return pi;
+		} catch (Exception e) {
+			Log.e(TAG, "Could not get patient record from MDS: " + e.toString());
+		}
+		return null;
+	}
+}
@@ -0,0 +1,78 @@
+package org.moca.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.moca.db.EventDAO;
+import org.moca.db.MocaDB.EventSQLFormat.EventType;
+import org.moca.db.MocaDB.PatientSQLFormat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Times writing a patient list the size of a large clinic's to the patient
+ * cache on the phone it runs on:
+ * <ul>
+ * <li>insert: one PatientProvider.insert per patient, each in its own
+ * transaction, as the sync did before bulkInsert</li>
+ * <li>bulkInsert: PatientProvider.bulkInsert in batches of
+ * UserDatabase.SYNC_BATCH_SIZE, as the sync does now</li>
+ * </ul>
+ * The patients are those of PatientSearchBenchmark, from a fixed seed, and
+ * are deleted after each measure. Results are recorded as
+ * PERFORMANCE_BENCHMARK events in patients written per second.
+ */
+public class PatientInsertBenchmark {
+	public static final String TAG = PatientInsertBenchmark.class.toString();
+
+	private static final int PATIENTS = 50000;
+	private static final long SEED = 42;
+
+	/**
+	 * Runs the benchmark. This takes minutes, so call it from a background
+	 * thread.
+	 *
+	 * @param c current context
+	 * @return the results, one line per timing
+	 */
+	public static List<String> run(Context c) {
+		List<String> results = new ArrayList<String>();
+		ContentResolver cr = c.getContentResolver();
+		ContentValues[] patients = PatientSearchBenchmark.createPatients(new Random(SEED), PATIENTS);
+		try {
+			PatientSearchBenchmark.deletePatients(c);
+			long start = System.nanoTime();
+			for (ContentValues patient : patients)
+				cr.insert(PatientSQLFormat.CONTENT_URI, patient);
+			record(c, results, "insert", start);
+			PatientSearchBenchmark.deletePatients(c);
+
+			start = System.nanoTime();
+			for (int i = 0; i < PATIENTS; i += UserDatabase.SYNC_BATCH_SIZE) {
+				ContentValues[] batch = new ContentValues[Math.min(UserDatabase.SYNC_BATCH_SIZE, PATIENTS - i)];
+				System.arraycopy(patients, i, batch, 0, batch.length);
+				cr.bulkInsert(PatientSQLFormat.CONTENT_URI, batch);
+			}
+			record(c, results, "bulkInsert", start);
+		} catch (Exception e) {
+			Log.e(TAG, "Patient insert benchmark failed: " + e.toString());
+			results.add("Patient insert benchmark failed: " + e.toString());
+		} finally {
+			PatientSearchBenchmark.deletePatients(c);
+		}
+		return results;
+	}
+
+	private static void record(Context c, List<String> results, String measure, long start) {
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		String result = "patients " + measure + " " + PATIENTS + " in " + millis + " ms, "
+			+ (PATIENTS * 1000L / millis) + " patients/s";
+		Log.i(TAG, result);
+		results.add(result);
+		EventDAO.registerEvent(c, EventType.PERFORMANCE_BENCHMARK, result);
+	}
+}
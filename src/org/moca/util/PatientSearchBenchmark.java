@@ -0,0 +1,148 @@
+package org.moca.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.moca.db.EventDAO;
+import org.moca.db.MocaDB.EventSQLFormat.EventType;
+import org.moca.db.MocaDB.PatientSQLFormat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Times the patient cache on the phone it runs on:
+ * <ul>
+ * <li>insert: writing a synthetic patient list the way a sync does</li>
+ * <li>prefix: UserDatabase.searchPatients with the start of a name</li>
+ * <li>phonetic: searchPatients with a misspelling which sounds like a
+ * name</li>
+ * <li>fullname: searchPatients with a first and last name</li>
+ * </ul>
+ * The patients and queries come from a fixed seed, so runs are comparable.
+ * The synthetic patients have ids starting with ID_PREFIX, which no real
+ * patient id does, and are deleted afterwards. Results are recorded as
+ * PERFORMANCE_BENCHMARK events.
+ */
+public class PatientSearchBenchmark {
+	public static final String TAG = PatientSearchBenchmark.class.toString();
+
+	private static final String ID_PREFIX = "BENCH";
+	private static final int PATIENTS = 50000;
+	private static final int SEARCH_RUNS = 100;
+	private static final int LIMIT = 20;
+	private static final long SEED = 42;
+
+	private static final String[] SYLLABLES = new String[] { "ka", "mo", "ba", "ne",
+		"shi", "lu", "to", "ri", "da", "fe", "nda", "wa", "ze", "pi", "tha", "mu" };
+	private static final String VOWELS = "aeiou";
+
+	/**
+	 * Runs the benchmark. This takes a while, so call it from a background
+	 * thread.
+	 *
+	 * @param c current context
+	 * @return the results, one line per timing
+	 */
+	public static List<String> run(Context c) {
+		List<String> results = new ArrayList<String>();
+		Random random = new Random(SEED);
+		ContentValues[] patients = createPatients(random, PATIENTS);
+
+		try {
+			long start = System.nanoTime();
+			c.getContentResolver().bulkInsert(PatientSQLFormat.CONTENT_URI, patients);
+			record(c, results, "insert " + PATIENTS, start, 1);
+
+			String[] prefixes = new String[SEARCH_RUNS];
+			String[] soundalikes = new String[SEARCH_RUNS];
+			String[] fullnames = new String[SEARCH_RUNS];
+			for (int i = 0; i < SEARCH_RUNS; i++) {
+				ContentValues p = patients[random.nextInt(PATIENTS)];
+				String firstname = p.getAsString(PatientSQLFormat.PATIENT_FIRSTNAME);
+				String lastname = p.getAsString(PatientSQLFormat.PATIENT_LASTNAME);
+				prefixes[i] = lastname.substring(0, 3);
+				soundalikes[i] = changeLastVowel(lastname, random);
+				fullnames[i] = firstname + " " + lastname;
+			}
+			search(c, results, "prefix", prefixes);
+			search(c, results, "phonetic", soundalikes);
+			search(c, results, "fullname", fullnames);
+		} catch (Exception e) {
+			Log.e(TAG, "Patient search benchmark failed: " + e.toString());
+			results.add("Patient search benchmark failed: " + e.toString());
+		} finally {
+			deletePatients(c);
+		}
+		return results;
+	}
+
+	/**
+	 * Creates synthetic patients with ids starting with ID_PREFIX.
+	 *
+	 * @param random the source of the names, dates of birth and genders
+	 * @param count the number of patients
+	 * @return the patients, as the patient sync writes them
+	 */
+	static ContentValues[] createPatients(Random random, int count) {
+		ContentValues[] patients = new ContentValues[count];
+		for (int i = 0; i < count; i++) {
+			ContentValues cv = new ContentValues();
+			cv.put(PatientSQLFormat.PATIENT_ID, ID_PREFIX + i);
+			cv.put(PatientSQLFormat.PATIENT_FIRSTNAME, randomName(random));
+			cv.put(PatientSQLFormat.PATIENT_LASTNAME, randomName(random));
+			cv.put(PatientSQLFormat.PATIENT_DOB, 19700101 + random.nextInt(30) * 10000);
+			cv.put(PatientSQLFormat.PATIENT_GENDER, random.nextBoolean() ? "m" : "f");
+			patients[i] = cv;
+		}
+		return patients;
+	}
+
+	/** Deletes the patients made by createPatients. */
+	static void deletePatients(Context c) {
+		c.getContentResolver().delete(PatientSQLFormat.CONTENT_URI,
+				PatientSQLFormat.PATIENT_ID + " LIKE ?", new String[] { ID_PREFIX + "%" });
+		PatientCache.invalidate();
+	}
+
+	private static void search(Context c, List<String> results, String measure, String[] queries) {
+		UserDatabase.searchPatients(c, queries[0], LIMIT);
+		long start = System.nanoTime();
+		for (String query : queries)
+			UserDatabase.searchPatients(c, query, LIMIT);
+		record(c, results, "search " + measure, start, queries.length);
+	}
+
+	private static String randomName(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int syllables = 2 + random.nextInt(2);
+		for (int i = 0; i < syllables; i++)
+			sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+		return sb.toString();
+	}
+
+	// Vowels after the first letter do not change how a name sounds to
+	// PatientProvider.getPhoneticKey.
+	private static String changeLastVowel(String name, Random random) {
+		StringBuilder sb = new StringBuilder(name.toLowerCase());
+		for (int i = sb.length() - 1; i > 0; i--) {
+			int vowel = VOWELS.indexOf(sb.charAt(i));
+			if (vowel >= 0) {
+				sb.setCharAt(i, VOWELS.charAt((vowel + 1 + random.nextInt(VOWELS.length() - 1)) % VOWELS.length()));
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void record(Context c, List<String> results, String measure, long start, int runs) {
+		long micros = (System.nanoTime() - start) / 1000 / runs;
+		String result = "patients " + measure + " " + micros + " us";
+		Log.i(TAG, result);
+		results.add(result);
+		EventDAO.registerEvent(c, EventType.PERFORMANCE_BENCHMARK, result);
+	}
+}
@@ -1,8 +1,16 @@
 package org.moca.util;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.moca.db.PatientInfo;
+import org.moca.db.PatientProvider;
 import org.moca.db.MocaDB.PatientSQLFormat;
+import org.moca.net.PatientListReader;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -18,55 +26,109 @@ public class UserDatabase {
 		PatientSQLFormat.PATIENT_FIRSTNAME, PatientSQLFormat.PATIENT_LASTNAME, PatientSQLFormat.PATIENT_GENDER,
 		PatientSQLFormat.PATIENT_ID};
     
-	public static void addDataToUsers(ContentResolver cr, String users) {
-		users = users.trim();
-		ContentValues newuser = new ContentValues();
-
-		String[] data = users.split("##");
+    private static final String[] SEARCH_PROJECTION = new String[] {PatientSQLFormat.PATIENT_ID,
+    	PatientSQLFormat.PATIENT_DOB, PatientSQLFormat.PATIENT_FIRSTNAME, PatientSQLFormat.PATIENT_LASTNAME, 
+    	PatientSQLFormat.PATIENT_GENDER, PatientSQLFormat.FIRSTNAME_PHONETIC, PatientSQLFormat.LASTNAME_PHONETIC};
+    
+    // Patients written to the cache per transaction while syncing
+    static final int SYNC_BATCH_SIZE = 500;
+    
+	/**
+	 * Applies a patient list from the MDS to the local cache as it is read
+	 * from the response. Patients are upserted by patient id rather than the
+	 * cache being cleared first, so lookups keep working while a sync is
+	 * running.
+	 * 
+	 * An MDS which supports incremental sync also sends a "!since:<token>"
+	 * record, with the token to send on the next sync, and a
+	 * "!deleted:<patient id>" record for each patient removed since the
+	 * token we sent. See PatientListReader for the format of the list.
+	 * 
+	 * @param cr
+	 * @param in the response body holding the patient list
+	 * @param syncTime the time the sync started, stored with each patient
+	 * @return the new sync token, or null if the MDS did not send one
+	 * @throws IOException if the list could not be read or the MDS reported failure
+	 */
+	public static String syncPatients(ContentResolver cr, Reader in, long syncTime) throws IOException {
+		long start = System.currentTimeMillis();
+		PatientSync sync = new PatientSync(cr, syncTime);
+		PatientListReader reader = new PatientListReader(in, sync);
+		boolean succeeded = reader.read();
+		sync.flush();
 		
-		for (String record : data) {
-			record = record.trim();
-			if ("".equals(record)) {
-				continue;
-			}
-			
-			Log.i(TAG, "Processing:" + record);
-			try {
-				
-				String gender = record.substring(record.length() - 1);
-				record = record.substring(0, record.length() - 1);
-				String[] findname = record.split("[0-9]+");
-				String firstname = findname[0];
-				String lastname = findname[1];
-				String[] findrest = record.split("[A-Za-z]+");
-				int birthdate = 0;
-				try {
-					birthdate = Integer.parseInt(findrest[1]);
-				} catch (Exception e) {
-
-				}
-				String id = findrest[2];
-
-				Log.i(TAG, "firstname is " + firstname);
-				Log.i(TAG, "lastname is " + lastname);
-				Log.i(TAG, "birthdate is " + birthdate);
-				Log.i(TAG, "gender is " + gender);
-				Log.i(TAG, "id is " + id);
-
-				// add new user to database
-				newuser.put(PatientSQLFormat.PATIENT_FIRSTNAME, firstname);
-				newuser.put(PatientSQLFormat.PATIENT_LASTNAME, lastname);
-				newuser.put(PatientSQLFormat.PATIENT_DOB, birthdate);
-				newuser.put(PatientSQLFormat.PATIENT_ID, id);
-				newuser.put(PatientSQLFormat.PATIENT_GENDER, gender);
-				cr.insert(PatientSQLFormat.CONTENT_URI, newuser);
-				newuser.clear();
-				Log.i(TAG, "added new patient to database");
-			} catch (Exception e) {
-				Log.i(TAG, "Exception while processing:" + record + " : "
-						+ e.toString());
-			}
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		Log.i(TAG, "Patient sync wrote " + sync.written + ", deleted " + sync.deleted + " in " 
+				+ elapsed + "ms, " + (sync.written * 1000L / elapsed) + " patients/s");
+		if (!succeeded)
+			throw new IOException("MDS reports failure for patient database download: " + reader.getMessage());
+		return sync.token;
+	}
+	
+	/**
+	 * Writes the patients of a list to the cache in batches of
+	 * SYNC_BATCH_SIZE, each in one transaction.
+	 */
+	private static class PatientSync implements PatientListReader.Listener {
+		private final ContentResolver cr;
+		private final long syncTime;
+		private final List<ContentValues> batch = new ArrayList<ContentValues>(SYNC_BATCH_SIZE);
+		String token = null;
+		int written = 0;
+		int deleted = 0;
+		
+		PatientSync(ContentResolver cr, long syncTime) {
+			this.cr = cr;
+			this.syncTime = syncTime;
+		}
+		
+		public void onPatient(String firstname, String lastname, int birthdate, String id, String gender) {
+			// add new user to database
+			ContentValues newuser = new ContentValues();
+			newuser.put(PatientSQLFormat.PATIENT_FIRSTNAME, firstname);
+			newuser.put(PatientSQLFormat.PATIENT_LASTNAME, lastname);
+			newuser.put(PatientSQLFormat.PATIENT_DOB, birthdate);
+			newuser.put(PatientSQLFormat.PATIENT_ID, id);
+			newuser.put(PatientSQLFormat.PATIENT_GENDER, gender);
+			newuser.put(PatientSQLFormat.SYNCED, syncTime);
+			batch.add(newuser);
+			if (batch.size() >= SYNC_BATCH_SIZE)
+				flush();
+		}
+		
+		public void onSince(String token) {
+			this.token = token;
+		}
+		
+		public void onDeleted(String id) {
+			// The patient may be in the unwritten batch.
+			flush();
+			deleted += cr.delete(PatientSQLFormat.CONTENT_URI, PatientSQLFormat.PATIENT_ID + "=?", new String[] { id });
+		}
+		
+		public void onMalformed(String record) {
+			Log.i(TAG, "Could not parse patient record: " + record);
 		}
+		
+		/** Upserts the batch in one transaction and empties it. */
+		void flush() {
+			if (batch.isEmpty())
+				return;
+			written += cr.bulkInsert(PatientSQLFormat.CONTENT_URI, batch.toArray(new ContentValues[batch.size()]));
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Removes the patients a complete patient list did not include.
+	 * 
+	 * @param cr
+	 * @param syncTime the time the sync which fetched the complete list started
+	 * @return the number of patients removed
+	 */
+	public static int removePatientsNotSyncedSince(ContentResolver cr, long syncTime) {
+		return cr.delete(PatientSQLFormat.CONTENT_URI, PatientSQLFormat.SYNCED + " IS NULL OR " 
+				+ PatientSQLFormat.SYNCED + "<?", new String[] { Long.toString(syncTime) });
 	}
 	
 	private static Date dateFromString(String dumbBirthdate) {
@@ -130,14 +192,19 @@ public class UserDatabase {
 	}
 	
 	public static void populateUsingDatabase(Cursor cursor, String patientId, PatientInfo pi) {
+		cursor.moveToFirst();
+
+		pi.setPatientIdentifier(patientId);
+		populateFromRow(cursor, pi);
+	}
+	
+	// Fills in a patient from the current row of a cursor over the patient cache.
+	private static void populateFromRow(Cursor cursor, PatientInfo pi) {
 		int firstnameind = cursor.getColumnIndex("patient_firstname");
 		int lastnameind = cursor.getColumnIndex("patient_lastname");
 		int birthdateind = cursor.getColumnIndex("patient_dob");
 		int genderind = cursor.getColumnIndex("patient_gender");
 
-		cursor.moveToFirst();
-
-		pi.setPatientIdentifier(patientId);
 		String gender = cursor.getString(genderind).trim().toLowerCase();
 		Date d = dateFromString(cursor.getString(birthdateind).trim().toLowerCase());
 		pi.setPatientBirthdate(d);
@@ -149,13 +216,100 @@ public class UserDatabase {
 		pi.setConfirmed(true);
 	}
 	
+	/**
+	 * Searches the patient cache by name. Each word of the query must match
+	 * the start of the first or last name, ignoring case, or sound like
+	 * either name (see PatientProvider.getPhoneticKey). Patients whose names
+	 * start with a word come before those which only sound like it.
+	 * 
+	 * Candidates are found through the name indexes using the longest word,
+	 * the remaining words are checked against the candidates.
+	 * 
+	 * @param c current context
+	 * @param query one or more words of the patient's names
+	 * @param limit the most patients to return
+	 * @return the matching patients
+	 */
+	public static List<PatientInfo> searchPatients(Context c, String query, int limit) {
+		long start = System.currentTimeMillis();
+		Map<String, PatientInfo> found = new LinkedHashMap<String, PatientInfo>();
+		String[] words = query.trim().toLowerCase().split("\\s+");
+		String longest = "";
+		String[] keys = new String[words.length];
+		for (int i = 0; i < words.length; i++) {
+			keys[i] = PatientProvider.getPhoneticKey(words[i]);
+			if (words[i].length() > longest.length())
+				longest = words[i];
+		}
+		if (longest.length() == 0)
+			return new ArrayList<PatientInfo>();
+		
+		// Everything from the word up to the next possible prefix, which an
+		// index on the name can answer unlike LIKE.
+		String[] prefix = new String[] { longest, longest.substring(0, longest.length() - 1) 
+				+ (char) (longest.charAt(longest.length() - 1) + 1) };
+		String[] key = new String[] { PatientProvider.getPhoneticKey(longest) };
+		String[] names = new String[] { PatientSQLFormat.PATIENT_LASTNAME, PatientSQLFormat.PATIENT_FIRSTNAME };
+		String[] phonetics = new String[] { PatientSQLFormat.LASTNAME_PHONETIC, PatientSQLFormat.FIRSTNAME_PHONETIC };
+		
+		for (String name : names) {
+			searchPatients(c, name + " COLLATE NOCASE >= ? AND " + name + " COLLATE NOCASE < ?", prefix, 
+					name + " COLLATE NOCASE", words, keys, limit, found);
+		}
+		if (!"".equals(key[0])) {
+			for (String phonetic : phonetics) {
+				searchPatients(c, phonetic + "=?", key, PatientSQLFormat.PATIENT_LASTNAME + " COLLATE NOCASE", 
+						words, keys, limit, found);
+			}
+		}
+		
+		Log.i(TAG, "Patient search for \"" + query + "\" found " + found.size() + " in " 
+				+ (System.currentTimeMillis() - start) + "ms");
+		return new ArrayList<PatientInfo>(found.values());
+	}
+	
+	// Adds the patients selected which match every word, up to limit in all.
+	private static void searchPatients(Context c, String selection, String[] selectionArgs, String sortOrder,
+			String[] words, String[] keys, int limit, Map<String, PatientInfo> found) {
+		if (found.size() >= limit)
+			return;
+		Cursor cursor = c.getContentResolver().query(PatientSQLFormat.CONTENT_URI, SEARCH_PROJECTION, 
+				selection, selectionArgs, sortOrder);
+		try {
+			while (found.size() < limit && cursor.moveToNext()) {
+				String id = cursor.getString(0);
+				if (found.containsKey(id) || !matchesAll(cursor.getString(2), cursor.getString(3), 
+						cursor.getString(5), cursor.getString(6), words, keys))
+					continue;
+				PatientInfo pi = new PatientInfo();
+				pi.setPatientIdentifier(id);
+				populateFromRow(cursor, pi);
+				found.put(id, pi);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private static boolean matchesAll(String firstname, String lastname, String firstnameKey, String lastnameKey,
+			String[] words, String[] keys) {
+		firstname = firstname != null ? firstname.toLowerCase() : "";
+		lastname = lastname != null ? lastname.toLowerCase() : "";
+		for (int i = 0; i < words.length; i++) {
+			boolean matches = firstname.startsWith(words[i]) || lastname.startsWith(words[i])
+				|| (!"".equals(keys[i]) && (keys[i].equals(firstnameKey) || keys[i].equals(lastnameKey)));
+			if (!matches)
+				return false;
+		}
+		return true;
+	}
+	
 	//checks cached database on phone for patient information
 	public static PatientInfo getPatientFromLocalDatabase(Context c, String id) {
-		// TODO SQL escaping
-		
 		Cursor cursor = null;
 		try {
-			cursor = c.getContentResolver().query(PatientSQLFormat.CONTENT_URI, PROJECTION, "(patient_id=\""+id+"\")", null, null);
+			cursor = c.getContentResolver().query(PatientSQLFormat.CONTENT_URI, PROJECTION, 
+					PatientSQLFormat.PATIENT_ID + "=?", new String[] { id }, null);
 			
 			if (cursor.getCount() > 0) {
 				PatientInfo pi = new PatientInfo();